@@ -0,0 +1,184 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static java.util.stream.Collectors.toList;
+
+import com.google.common.annotations.VisibleForTesting;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pulsar.broker.PulsarService;
+import org.apache.pulsar.broker.loadbalance.LoadManager;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.apache.pulsar.policies.data.loadbalancer.ServiceLookupData;
+import org.apache.pulsar.zookeeper.ZooKeeperCache;
+import org.apache.pulsar.zookeeper.ZooKeeperCache.Deserializer;
+import org.apache.pulsar.zookeeper.ZooKeeperCacheListener;
+import org.apache.pulsar.zookeeper.ZooKeeperChildrenCache;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * AdvertisedListenersIndex maps the address of each active Pulsar broker to the Kafka listeners it advertises.
+ *
+ * <p>Each broker writes its ServiceLookupData, which has its service urls and the protocol data of KoP,
+ * under {@link LoadManager#LOADBALANCE_BROKERS_ROOT}. The index is built from these znodes, and built again
+ * once a broker joins or leaves, by a watch on the children of the load balance root. The znode of a broker
+ * is rewritten with each load report, but its urls and protocol data do not change until it restarts,
+ * so its data is not watched.
+ */
+@Slf4j
+public class AdvertisedListenersIndex implements ZooKeeperCacheListener<Set<String>> {
+
+    private final PulsarService pulsarService;
+    private final ZooKeeperCache zkCache;
+    private final ZooKeeperChildrenCache activeBrokers;
+
+    // <host:port of broker service or web service urls, advertised Kafka listeners>
+    private volatile Map<String, String> listenersOfAddress;
+    // completed once the index is built after the latest change of brokers.
+    private volatile CompletableFuture<Void> refreshFuture;
+    private final AtomicLong refreshVersion;
+    private volatile boolean closed;
+
+    AdvertisedListenersIndex(PulsarService pulsarService) {
+        this.pulsarService = pulsarService;
+        this.zkCache = pulsarService.getLocalZkCache();
+        this.activeBrokers = new ZooKeeperChildrenCache(zkCache, LoadManager.LOADBALANCE_BROKERS_ROOT);
+        this.listenersOfAddress = Collections.emptyMap();
+        this.refreshVersion = new AtomicLong(0);
+        this.closed = false;
+
+        activeBrokers.registerListener(this);
+        this.refreshFuture = refresh();
+    }
+
+    /**
+     * Get the advertised Kafka listeners of the broker at pulsarAddress.
+     * If the broker is not indexed, e.g. it just joined and the watch is not triggered yet,
+     * the index is built again before giving up.
+     */
+    public CompletableFuture<Optional<String>> getListeners(InetSocketAddress pulsarAddress) {
+        String hostAndPort = pulsarAddress.getHostName() + ":" + pulsarAddress.getPort();
+        String listeners = listenersOfAddress.get(hostAndPort);
+        if (listeners != null) {
+            return CompletableFuture.completedFuture(Optional.of(listeners));
+        }
+
+        // concurrent misses wait for the same build.
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            pending = refreshFuture;
+            if (pending.isDone()) {
+                pending = refresh();
+                refreshFuture = pending;
+            }
+        }
+        return pending.thenApply(ignore -> {
+            String found = listenersOfAddress.get(hostAndPort);
+            if (found == null) {
+                log.error("Not able to find {} in all child of zk://loadbalance", pulsarAddress);
+            }
+            return Optional.ofNullable(found);
+        });
+    }
+
+    // called back by the watch on the children of load balance root.
+    @Override
+    public void onUpdate(String path, Set<String> brokers, Stat stat) {
+        if (closed) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Active brokers changed to {}, rebuild advertised listeners index", brokers);
+        }
+        synchronized (this) {
+            refreshFuture = refresh();
+        }
+    }
+
+    // build the index from all the broker znodes. a build that is started earlier not overwrites a later one.
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Void> refresh() {
+        long version = refreshVersion.incrementAndGet();
+        Deserializer<ServiceLookupData> deserializer =
+            (Deserializer<ServiceLookupData>) pulsarService.getLoadManager().get().getLoadReportDeserializer();
+
+        return activeBrokers.getAsync().thenCompose(brokers -> {
+            List<CompletableFuture<Optional<ServiceLookupData>>> list = brokers.stream()
+                .map(broker -> zkCache.getDataAsync(
+                    String.format("%s/%s", LoadManager.LOADBALANCE_BROKERS_ROOT, broker), deserializer))
+                .collect(toList());
+
+            return FutureUtil.waitForAll(list).thenAccept(ignore -> {
+                Map<String, String> index = new HashMap<>();
+                for (CompletableFuture<Optional<ServiceLookupData>> lookupData : list) {
+                    lookupData.join().ifPresent(data -> addToIndex(index, data));
+                }
+                synchronized (this) {
+                    if (version == refreshVersion.get()) {
+                        listenersOfAddress = Collections.unmodifiableMap(index);
+                    }
+                }
+            });
+        }).exceptionally(e -> {
+            log.error("Error in building advertised listeners index from zk://loadbalance", e);
+            return null;
+        });
+    }
+
+    @VisibleForTesting
+    static void addToIndex(Map<String, String> index, ServiceLookupData data) {
+        Optional<String> listeners = data.getProtocol(KafkaProtocolHandler.PROTOCOL_NAME);
+        if (!listeners.isPresent()) {
+            return;
+        }
+        for (String url : new String[] {data.getPulsarServiceUrl(), data.getPulsarServiceUrlTls(),
+            data.getWebServiceUrl(), data.getWebServiceUrlTls()}) {
+            String hostAndPort = hostAndPort(url);
+            if (hostAndPort != null) {
+                index.put(hostAndPort, listeners.get());
+            }
+        }
+    }
+
+    private static String hostAndPort(String url) {
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        try {
+            URI uri = URI.create(url);
+            if (uri.getHost() == null || uri.getPort() < 0) {
+                return null;
+            }
+            return uri.getHost() + ":" + uri.getPort();
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid service url {} in zk://loadbalance", url);
+            return null;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        listenersOfAddress = Collections.emptyMap();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import io.streamnative.pulsar.handlers.kop.utils.delayed.DelayedOperation;
+import io.streamnative.pulsar.handlers.kop.utils.delayed.DelayedOperationKey.TopicPartitionOperationKey;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pulsar.common.naming.TopicName;
+
+/**
+ * A delayed fetch operation that waits for new entries on any of the fetched partitions.
+ *
+ * <p>It is watched by the key of each partition, and woken by the publish completions of these partitions.
+ * Once completed, either because new entries arrived or because the fetch wait time expired,
+ * the next read round of the fetch is triggered.
+ */
+@Slf4j
+public class DelayedFetch extends DelayedOperation {
+
+    // whether any of the fetched partitions has new entries to read.
+    private final BooleanSupplier hasNewEntries;
+    private final Runnable readNextRound;
+    private final Executor executor;
+
+    public DelayedFetch(long delayMs,
+                        BooleanSupplier hasNewEntries,
+                        Runnable readNextRound,
+                        Executor executor) {
+        super(delayMs, Optional.empty());
+        this.hasNewEntries = hasNewEntries;
+        this.readNextRound = readNextRound;
+        this.executor = executor;
+    }
+
+    // the key to watch a delayed fetch on, and to check when messages are published.
+    // topicName is the pulsar topic name of a partition, e.g. persistent://public/default/topic-partition-0
+    public static TopicPartitionOperationKey keyFor(TopicName topicName) {
+        return new TopicPartitionOperationKey(topicName.getPartitionedTopicName(), topicName.getPartitionIndex());
+    }
+
+    public static TopicPartitionOperationKey keyFor(String topicName) {
+        return keyFor(TopicName.get(topicName));
+    }
+
+    @Override
+    public void onExpiration() {
+        if (log.isDebugEnabled()) {
+            log.debug("Delayed fetch expired without new entries.");
+        }
+    }
+
+    @Override
+    public void onComplete() {
+        // not run the read in the thread that completes the publish or expires the operation.
+        executor.execute(readNextRound);
+    }
+
+    @Override
+    public boolean tryComplete() {
+        if (hasNewEntries.getAsBoolean()) {
+            return forceComplete();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * FetchReadPlanner splits the byte budget of a FetchRequest into the number of entries
+ * to read from each partition cursor in one read round.
+ */
+final class FetchReadPlanner {
+
+    // upper bound of entries read from one cursor in one round.
+    static final int MAX_ENTRIES_PER_READ = 500;
+    // entry size used when there is no history of entry sizes for a topic.
+    static final long DEFAULT_AVERAGE_ENTRY_SIZE = 1024;
+
+    private FetchReadPlanner() {
+    }
+
+    /**
+     * Plan the entries to read for each partition in the next round.
+     *
+     * <p>The request bytes left are shared equally between partitions which still have bytes left of their own
+     * maxBytes, and each share is turned into an entry count based on the average entry size of the partition.
+     * Partitions that already reached their own maxBytes are not contained in the returned map.
+     *
+     * @param partitionBytesLeft bytes left for each partition, according to PartitionData.maxBytes
+     * @param requestBytesLeft bytes left for the whole request, according to FetchRequest.maxBytes
+     * @param averageEntrySize recent average entry size of each partition
+     * @return number of entries to read for each partition
+     */
+    static Map<TopicPartition, Integer> plan(Map<TopicPartition, Integer> partitionBytesLeft,
+                                             long requestBytesLeft,
+                                             ToLongFunction<TopicPartition> averageEntrySize) {
+        Map<TopicPartition, Integer> plan = new HashMap<>();
+
+        long activePartitions = partitionBytesLeft.values().stream().filter(left -> left > 0).count();
+        if (activePartitions == 0 || requestBytesLeft <= 0) {
+            return plan;
+        }
+
+        long share = requestBytesLeft / activePartitions;
+        partitionBytesLeft.forEach((topicPartition, left) -> {
+            if (left <= 0) {
+                return;
+            }
+            long budget = Math.min(left, share);
+            plan.put(topicPartition, entriesForBudget(budget, averageEntrySize.applyAsLong(topicPartition)));
+        });
+        return plan;
+    }
+
+    // turn a byte budget into an entry count, always read at least 1 entry to make progress.
+    static int entriesForBudget(long budget, long averageEntrySize) {
+        if (averageEntrySize <= 0) {
+            averageEntrySize = DEFAULT_AVERAGE_ENTRY_SIZE;
+        }
+        long entries = budget / averageEntrySize;
+        return (int) Math.max(1, Math.min(entries, MAX_ENTRIES_PER_READ));
+    }
+}
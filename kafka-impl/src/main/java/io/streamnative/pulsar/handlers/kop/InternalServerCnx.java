@@ -20,27 +20,26 @@ import org.apache.pulsar.broker.service.Producer;
 import org.apache.pulsar.broker.service.ServerCnx;
 
 /**
- * InternalServerCnx, this only used to construct internalProducer / internalConsumer.
- * So when topic is unload, we could disconnect the connection between kafkaRequestHandler and client,
- * by internalProducer / internalConsumer.close();
- * which means when topic unload happens, we should close the connection.
+ * InternalServerCnx, this only used to construct internalProducer / internalConsumer of a topic.
+ * So when topic is unload, we are notified by internalProducer / internalConsumer.close(),
+ * and invalidate the topic in the kafkaRequestHandlers that reference it.
+ * And when publishing to the topic is throttled, reads of the kafkaRequestHandlers that publish to it are paused
+ * by auto read.
  */
 @Slf4j
 public class InternalServerCnx extends ServerCnx {
     @Getter
-    KafkaRequestHandler kafkaRequestHandler;
-
-    public InternalServerCnx(KafkaRequestHandler kafkaRequestHandler) {
-        super(kafkaRequestHandler.getPulsarService());
-        this.kafkaRequestHandler = kafkaRequestHandler;
-        // this is the client address that connect to this server.
-        this.remoteAddress = kafkaRequestHandler.getRemoteAddress();
+    KafkaTopicService topicService;
+    @Getter
+    private final String topicName;
 
+    public InternalServerCnx(KafkaTopicService topicService, String topicName) {
+        super(topicService.getPulsarService());
+        this.topicService = topicService;
+        this.topicName = topicName;
+        // this cnx is used by the internal producer of a topic, not related to a client address.
         // mock some values, or Producer create will meet NPE.
-        // used in test, which will not call channel.active, and not call updateCtx.
-        if (this.remoteAddress == null) {
-            this.remoteAddress = new InetSocketAddress("localhost", 9999);
-        }
+        this.remoteAddress = new InetSocketAddress("localhost", 9999);
     }
 
     // this will call back by bundle unload
@@ -52,23 +51,18 @@ public class InternalServerCnx extends ServerCnx {
                 remoteAddress, producer.getTopic().getName(), producer);
         }
 
-        kafkaRequestHandler.close();
-    }
-
-    // called after channel active
-    public void updateCtx() {
-        this.remoteAddress = kafkaRequestHandler.getRemoteAddress();
+        topicService.onTopicClosed(producer.getTopic().getName());
     }
 
+    // this will call back when publish throttling of the topic ends.
     @Override
     public void enableCnxAutoRead() {
-        // do nothing in this mock.
-        return;
+        topicService.setTopicThrottled(topicName, false);
     }
 
+    // this will call back when publishing to the topic is throttled, e.g. by publish rate limit.
     @Override
     public void disableCnxAutoRead() {
-        // do nothing in this mock.
-        return;
+        topicService.setTopicThrottled(topicName, true);
     }
 }
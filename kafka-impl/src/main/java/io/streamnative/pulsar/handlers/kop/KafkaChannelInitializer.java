@@ -16,11 +16,14 @@ package io.streamnative.pulsar.handlers.kop;
 import static io.streamnative.pulsar.handlers.kop.KafkaProtocolHandler.TLS_HANDLER;
 
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.ssl.SslHandler;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupCoordinator;
+import io.streamnative.pulsar.handlers.kop.utils.EntryFormat;
+import io.streamnative.pulsar.handlers.kop.utils.delayed.DelayedOperationPurgatory;
 import io.streamnative.pulsar.handlers.kop.utils.ssl.SSLUtils;
 import lombok.Getter;
 import org.apache.pulsar.broker.PulsarService;
@@ -40,6 +43,12 @@ public class KafkaChannelInitializer extends ChannelInitializer<SocketChannel> {
     @Getter
     private final GroupCoordinator groupCoordinator;
     @Getter
+    private final DelayedOperationPurgatory<DelayedFetch> fetchPurgatory;
+    @Getter
+    private final KafkaTopicService topicService;
+    @Getter
+    private final EntryFormat entryFormat;
+    @Getter
     private final boolean enableTls;
     @Getter
     private final SslContextFactory sslContextFactory;
@@ -47,11 +56,17 @@ public class KafkaChannelInitializer extends ChannelInitializer<SocketChannel> {
     public KafkaChannelInitializer(PulsarService pulsarService,
                                    KafkaServiceConfiguration kafkaConfig,
                                    GroupCoordinator groupCoordinator,
+                                   DelayedOperationPurgatory<DelayedFetch> fetchPurgatory,
+                                   KafkaTopicService topicService,
+                                   EntryFormat entryFormat,
                                    boolean enableTLS) throws Exception {
         super();
         this.pulsarService = pulsarService;
         this.kafkaConfig = kafkaConfig;
         this.groupCoordinator = groupCoordinator;
+        this.fetchPurgatory = fetchPurgatory;
+        this.topicService = topicService;
+        this.entryFormat = entryFormat;
         this.enableTls = enableTLS;
 
         if (enableTls) {
@@ -63,6 +78,8 @@ public class KafkaChannelInitializer extends ChannelInitializer<SocketChannel> {
 
     @Override
     protected void initChannel(SocketChannel ch) throws Exception {
+        ch.config().setWriteBufferWaterMark(new WriteBufferWaterMark(
+            kafkaConfig.getKafkaWriteBufferLowWaterMark(), kafkaConfig.getKafkaWriteBufferHighWaterMark()));
         if (this.enableTls) {
             ch.pipeline().addLast(TLS_HANDLER, new SslHandler(SSLUtils.createSslEngine(sslContextFactory)));
         }
@@ -70,7 +87,8 @@ public class KafkaChannelInitializer extends ChannelInitializer<SocketChannel> {
         ch.pipeline().addLast("frameDecoder",
             new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
         ch.pipeline().addLast("handler",
-            new KafkaRequestHandler(pulsarService, kafkaConfig, groupCoordinator, enableTls));
+            new KafkaRequestHandler(pulsarService, kafkaConfig, groupCoordinator, fetchPurgatory,
+                topicService, entryFormat, enableTls));
     }
 
 }
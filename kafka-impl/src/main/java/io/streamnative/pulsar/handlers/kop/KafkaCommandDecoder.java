@@ -20,6 +20,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.tuple.Pair;
 import org.apache.kafka.common.errors.LeaderNotAvailableException;
 import org.apache.kafka.common.message.ApiVersionsRequestData;
 import org.apache.kafka.common.protocol.ApiKeys;
@@ -34,10 +35,15 @@ import org.apache.kafka.common.requests.ResponseUtils;
 import java.io.Closeable;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static org.apache.kafka.common.protocol.ApiKeys.API_VERSIONS;
@@ -54,11 +60,27 @@ public abstract class KafkaCommandDecoder extends ChannelInboundHandlerAdapter {
     @Getter
     protected AtomicBoolean isActive = new AtomicBoolean(false);
 
-    // Queue to make request get responseFuture in order.
-    protected final ConcurrentHashMap<Channel, Queue<ResponseAndRequest>> responsesQueue =
-        new ConcurrentHashMap();
+    // Queue to make request get responseFuture in order. it is only accessed in the event loop of the channel.
+    protected final Queue<ResponseAndRequest> responsesQueue = new ArrayDeque<>();
 
-    public KafkaCommandDecoder() {
+    // reasons that reads of the channel are paused for, e.g. a throttled topic. reads are resumed once no reason
+    // is left, so a connection that writes to many topics stays paused until all of them are resumed.
+    private final Set<String> readPausedReasons = ConcurrentHashMap.newKeySet();
+
+    // bytes of the requests queued in this connection, and in all the connections of this broker.
+    private static final String QUEUED_BYTES_PAUSE_REASON = "connection-queued-request-bytes";
+    private final AtomicLong queuedRequestBytes = new AtomicLong(0);
+    private final long maxQueuedRequestBytes;
+    private final RequestMemoryPool requestMemoryPool;
+
+    // tasks deferred until the channel is writable, e.g. reads of fetches, so that responses to a slow consumer
+    // not pile up in the outbound buffer beyond its high water mark. each task is kept with what to run instead
+    // if it is dropped for an inactive channel.
+    private final Queue<Pair<Runnable, Runnable>> tasksUntilWritable = Queues.newConcurrentLinkedQueue();
+
+    public KafkaCommandDecoder(RequestMemoryPool requestMemoryPool, long maxQueuedRequestBytes) {
+        this.requestMemoryPool = requestMemoryPool;
+        this.maxQueuedRequestBytes = maxQueuedRequestBytes;
     }
 
     @Override
@@ -79,11 +101,121 @@ public abstract class KafkaCommandDecoder extends ChannelInboundHandlerAdapter {
         ctx.close();
     }
 
+    protected void pauseRead(String reason) {
+        if (readPausedReasons.add(reason)) {
+            updateAutoRead();
+        }
+    }
+
+    protected void resumeRead(String reason) {
+        if (readPausedReasons.remove(reason)) {
+            updateAutoRead();
+        }
+    }
+
+    // a request is queued. reads are paused once the queued bytes exceed the limit of connection or broker.
+    private void acquireRequestBytes(long bytes) {
+        long queued = queuedRequestBytes.addAndGet(bytes);
+        if (maxQueuedRequestBytes > 0 && queued > maxQueuedRequestBytes) {
+            pauseRead(QUEUED_BYTES_PAUSE_REASON);
+        }
+        requestMemoryPool.acquire(this, bytes);
+    }
+
+    // the response of a request is written, or the request is dropped.
+    private void releaseRequestBytes(long bytes) {
+        long queued = queuedRequestBytes.addAndGet(-bytes);
+        if (queued <= maxQueuedRequestBytes) {
+            resumeRead(QUEUED_BYTES_PAUSE_REASON);
+        }
+        requestMemoryPool.release(bytes);
+    }
+
+    // set in event loop by the reasons at that time, so concurrent pause and resume end with the right state.
+    private void updateAutoRead() {
+        ChannelHandlerContext context = ctx;
+        if (context == null) {
+            return;
+        }
+        context.channel().eventLoop().execute(() -> {
+            boolean autoRead = readPausedReasons.isEmpty();
+            if (context.channel().config().isAutoRead() != autoRead) {
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Set autoRead to {}, paused for {}", remoteAddress, autoRead, readPausedReasons);
+                }
+                context.channel().config().setAutoRead(autoRead);
+            }
+        });
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        super.channelInactive(ctx);
+        // the deferred tasks are not run for a dead connection, but dropped so that they release what they hold.
+        dropTasksUntilWritable();
+    }
+
     @Override
     public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
         if (log.isDebugEnabled()) {
             log.debug("Channel writability has changed to: {}", ctx.channel().isWritable());
         }
+        if (ctx.channel().isWritable()) {
+            runTasksUntilWritable();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    // run task now if the channel is writable, or once it becomes writable. if the channel is or becomes
+    // inactive first, onDropped is run instead, e.g. to fail the request and release what the task holds.
+    protected void runWhenWritable(Runnable task, Runnable onDropped) {
+        ChannelHandlerContext context = ctx;
+        if (context == null) {
+            task.run();
+            return;
+        }
+        if (!context.channel().isActive()) {
+            onDropped.run();
+            return;
+        }
+        if (context.channel().isWritable() && tasksUntilWritable.isEmpty()) {
+            task.run();
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Channel is not writable, defer task", remoteAddress);
+        }
+        tasksUntilWritable.add(Pair.of(task, onDropped));
+        // the channel may become inactive or writable before the task is added.
+        if (!context.channel().isActive()) {
+            dropTasksUntilWritable();
+        } else if (context.channel().isWritable()) {
+            context.channel().eventLoop().execute(this::runTasksUntilWritable);
+        }
+    }
+
+    // run deferred tasks in order while the channel is writable.
+    private void runTasksUntilWritable() {
+        Pair<Runnable, Runnable> task;
+        while (ctx.channel().isWritable() && (task = tasksUntilWritable.poll()) != null) {
+            try {
+                task.getLeft().run();
+            } catch (Exception e) {
+                log.error("[{}] Failed to run deferred task", remoteAddress, e);
+            }
+        }
+    }
+
+    // drop all the deferred tasks of an inactive channel.
+    private void dropTasksUntilWritable() {
+        Pair<Runnable, Runnable> task;
+        while ((task = tasksUntilWritable.poll()) != null) {
+            try {
+                task.getRight().run();
+            } catch (Exception e) {
+                log.error("[{}] Failed to drop deferred task", remoteAddress, e);
+            }
+        }
     }
 
     // turn input ByteBuf msg, which send from client side, into KafkaHeaderAndRequest
@@ -144,20 +276,18 @@ public abstract class KafkaCommandDecoder extends ChannelInboundHandlerAdapter {
 
             CompletableFuture<AbstractResponse> responseFuture = new CompletableFuture<>();
 
-            responsesQueue.compute(channel, (key, queue) -> {
-                if (queue == null) {
-                    Queue<ResponseAndRequest> newQueue = Queues.newConcurrentLinkedQueue();
-                    newQueue.add(ResponseAndRequest.of(responseFuture, kafkaHeaderAndRequest));
-                    return newQueue;
-                } else {
-                    queue.add(ResponseAndRequest.of(responseFuture, kafkaHeaderAndRequest));
-                    return queue;
-                }
-            });
-
             if (!isActive.get()) {
-                handleInactive(kafkaHeaderAndRequest, responseFuture);
+                // the queue is not drained once the channel is closing, so the request is neither queued
+                // nor counted in the queued bytes, and it is released right after it is handled.
+                try {
+                    handleInactive(kafkaHeaderAndRequest, responseFuture);
+                } finally {
+                    kafkaHeaderAndRequest.close();
+                }
             } else {
+                responsesQueue.add(ResponseAndRequest.of(responseFuture, kafkaHeaderAndRequest));
+                acquireRequestBytes(kafkaHeaderAndRequest.getBuffer().readableBytes());
+
                 switch (kafkaHeaderAndRequest.getHeader().apiKey()) {
                     case API_VERSIONS:
                         handleApiVersionsRequest(kafkaHeaderAndRequest, responseFuture);
@@ -218,7 +348,11 @@ public abstract class KafkaCommandDecoder extends ChannelInboundHandlerAdapter {
             }
 
             responseFuture.whenComplete((response, e) -> {
-                writeAndFlushResponseToClient(channel);
+                if (channel.eventLoop().inEventLoop()) {
+                    writeAndFlushResponseToClient(channel);
+                } else {
+                    channel.eventLoop().execute(() -> writeAndFlushResponseToClient(channel));
+                }
             });
         } catch (Exception e) {
             log.error("error while handle command:", e);
@@ -229,46 +363,55 @@ public abstract class KafkaCommandDecoder extends ChannelInboundHandlerAdapter {
         }
     }
 
-    // Write and flush continuously completed request back through channel.
-    // This is to make sure request get responseFuture in the same order.
+    // Write continuously completed request back through channel, and flush them once.
+    // This is to make sure request get responseFuture in the same order. It should be called in the event loop.
     protected void writeAndFlushResponseToClient(Channel channel) {
-        Queue<ResponseAndRequest> responseQueue =
-            responsesQueue.get(channel);
-
+        boolean written = false;
         // loop from first responseFuture.
-        while (responseQueue != null && responseQueue.peek() != null
-            && responseQueue.peek().getResponseFuture().isDone() && isActive.get()) {
-            ResponseAndRequest response = responseQueue.remove();
+        while (responsesQueue.peek() != null
+            && responsesQueue.peek().getResponseFuture().isDone() && isActive.get()) {
+            ResponseAndRequest response = responsesQueue.remove();
+            // the bytes are released even if the response fails to write, or reads may stay paused.
+            long requestBytes = response.getRequest().getBuffer().readableBytes();
             try {
+                AbstractResponse apiResponse = getResponse(response);
                 if (log.isDebugEnabled()) {
                     log.debug("Write kafka cmd response back to client. \n"
                             + "\trequest content: {} \n"
                             + "\tresponse content: {}",
                         response.getRequest().toString(),
-                        response.getResponseFuture().join().toString(response.getRequest().getRequest().version()));
+                        apiResponse.toString(response.getRequest().getRequest().version()));
                     log.debug("Write kafka cmd responseFuture back to client. request: {}",
                         response.getRequest().getHeader());
                 }
 
-                ByteBuf result = responseToByteBuf(response.getResponseFuture().get(), response.getRequest());
-                channel.writeAndFlush(result);
+                ByteBuf result = responseToByteBuf(apiResponse, response.getRequest());
+                channel.write(result);
+                written = true;
             } catch (Exception e) {
                 // should not comes here.
                 log.error("error to get Response ByteBuf:", e);
+            } finally {
+                releaseRequestBytes(requestBytes);
             }
         }
+        if (written) {
+            channel.flush();
+        }
     }
 
     // return all the current command before a channel close. return Error response for all pending request.
     protected void writeAndFlushWhenInactiveChannel(Channel channel) {
-        Queue<ResponseAndRequest> responseQueue =
-            responsesQueue.get(channel);
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> writeAndFlushWhenInactiveChannel(channel));
+            return;
+        }
 
         // loop from first responseFuture, and return them all
-        while (responseQueue != null && responseQueue.peek() != null) {
+        while (responsesQueue.peek() != null) {
+            ResponseAndRequest pair = responsesQueue.remove();
+            long requestBytes = pair.getRequest().getBuffer().readableBytes();
             try {
-                ResponseAndRequest pair = responseQueue.remove();
-
                 if (log.isDebugEnabled()) {
                     log.debug("Channel Closing! Write kafka cmd responseFuture back to client. request: {}",
                         pair.getRequest().getHeader());
@@ -278,13 +421,28 @@ public abstract class KafkaCommandDecoder extends ChannelInboundHandlerAdapter {
                     .getErrorResponse(new LeaderNotAvailableException("Channel is closing!"));
                 pair.getResponseFuture().complete(apiResponse);
 
-                ByteBuf result = responseToByteBuf(pair.getResponseFuture().get(), pair.getRequest());
-                channel.writeAndFlush(result);
+                ByteBuf result = responseToByteBuf(getResponse(pair), pair.getRequest());
+                channel.write(result);
             } catch (Exception e) {
                 // should not comes here.
                 log.error("error to get Response ByteBuf:", e);
+            } finally {
+                releaseRequestBytes(requestBytes);
             }
         }
+        channel.flush();
+    }
+
+    // the response of a completed request, or an error response if handling the request failed.
+    private AbstractResponse getResponse(ResponseAndRequest responseAndRequest) {
+        try {
+            return responseAndRequest.getResponseFuture().join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.error("[{}] Failed to handle request {}", remoteAddress,
+                responseAndRequest.getRequest().getHeader(), cause);
+            return responseAndRequest.getRequest().getRequest().getErrorResponse(cause);
+        }
     }
 
     protected abstract void
@@ -0,0 +1,144 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pulsar.broker.namespace.NamespaceBundleOwnershipListener;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.util.FutureUtil;
+
+/**
+ * KafkaMetadataCache caches what a Metadata request needs for each topic, shared by all the Kafka connections
+ * of this broker: the partition count of each topic, and the advertised Kafka listeners of the broker that
+ * owns each partition.
+ *
+ * <p>Each cache is bounded in size, evicting the least recently used topics, and entries expire after a short
+ * TTL. Besides, the partitions of a bundle are invalidated once the bundle is loaded or unloaded by this broker.
+ * Concurrent loads of the same entry share one future, and failed loads are not cached.
+ */
+@Slf4j
+public class KafkaMetadataCache implements NamespaceBundleOwnershipListener {
+
+    // <pulsar topic name, partition count>. partition count is 0 for a non-partitioned topic.
+    // null if the cache is disabled.
+    private final Cache<String, CompletableFuture<Integer>> partitionCounts;
+    // <pulsar partition name, advertised Kafka listeners of owner broker>. null if the cache is disabled.
+    private final Cache<String, CompletableFuture<Optional<String>>> ownerListeners;
+
+    KafkaMetadataCache(long maxSize, long ttlMs) {
+        this.partitionCounts = ttlMs > 0 ? newCache(maxSize, ttlMs) : null;
+        this.ownerListeners = ttlMs > 0 ? newCache(maxSize, ttlMs) : null;
+    }
+
+    private static <T> Cache<String, CompletableFuture<T>> newCache(long maxSize, long ttlMs) {
+        return CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+            .build();
+    }
+
+    public CompletableFuture<Integer> getPartitionCount(String topicName,
+                                                       Function<String, CompletableFuture<Integer>> loader) {
+        return get(partitionCounts, topicName, loader, count -> count != null);
+    }
+
+    public CompletableFuture<Optional<String>> getOwnerListeners(
+            String topicName,
+            Function<String, CompletableFuture<Optional<String>>> loader) {
+        return get(ownerListeners, topicName, loader, listeners -> listeners != null && listeners.isPresent());
+    }
+
+    public void invalidatePartitionCount(String topicName) {
+        if (partitionCounts != null) {
+            partitionCounts.invalidate(topicName);
+        }
+    }
+
+    public void invalidateOwner(String topicName) {
+        if (ownerListeners != null) {
+            ownerListeners.invalidate(topicName);
+        }
+    }
+
+    private <T> CompletableFuture<T> get(Cache<String, CompletableFuture<T>> cache,
+                                         String key,
+                                         Function<String, CompletableFuture<T>> loader,
+                                         Function<T, Boolean> cacheable) {
+        if (cache == null) {
+            return loader.apply(key);
+        }
+
+        AtomicBoolean loaded = new AtomicBoolean(false);
+        CompletableFuture<T> future;
+        try {
+            future = cache.get(key, () -> {
+                loaded.set(true);
+                return loader.apply(key);
+            });
+        } catch (ExecutionException e) {
+            return FutureUtil.failedFuture(e.getCause());
+        }
+        if (loaded.get()) {
+            future.whenComplete((value, throwable) -> {
+                if (throwable != null || !cacheable.apply(value)) {
+                    cache.asMap().remove(key, future);
+                }
+            });
+        }
+        return future;
+    }
+
+    // the owner of the partitions in bundle is changed.
+    private void invalidate(NamespaceBundle bundle) {
+        if (ownerListeners == null) {
+            return;
+        }
+        ownerListeners.asMap().keySet().removeIf(topicName -> bundle.includes(TopicName.get(topicName)));
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidated cached owners of bundle {}", bundle);
+        }
+    }
+
+    @Override
+    public void onLoad(NamespaceBundle bundle) {
+        invalidate(bundle);
+    }
+
+    @Override
+    public void unLoad(NamespaceBundle bundle) {
+        invalidate(bundle);
+    }
+
+    // topics of any namespace could be requested by Kafka clients.
+    @Override
+    public boolean test(NamespaceBundle namespaceBundle) {
+        return true;
+    }
+
+    public void clear() {
+        if (partitionCounts != null) {
+            partitionCounts.invalidateAll();
+            ownerListeners.invalidateAll();
+        }
+    }
+}
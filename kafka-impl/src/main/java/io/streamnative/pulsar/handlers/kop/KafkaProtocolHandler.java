@@ -24,14 +24,19 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.socket.SocketChannel;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupConfig;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupCoordinator;
+import io.streamnative.pulsar.handlers.kop.coordinator.group.OffsetAcker;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.OffsetConfig;
 import io.streamnative.pulsar.handlers.kop.utils.ConfigurationUtils;
+import io.streamnative.pulsar.handlers.kop.utils.EntryFormat;
+import io.streamnative.pulsar.handlers.kop.utils.delayed.DelayedOperationPurgatory;
 import io.streamnative.pulsar.handlers.kop.utils.timer.SystemTimer;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -45,6 +50,7 @@ import org.apache.pulsar.broker.ServiceConfigurationUtils;
 import org.apache.pulsar.broker.namespace.NamespaceBundleOwnershipListener;
 import org.apache.pulsar.broker.protocol.ProtocolHandler;
 import org.apache.pulsar.broker.service.BrokerService;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
 import org.apache.pulsar.client.admin.PulsarAdmin;
 import org.apache.pulsar.client.admin.PulsarAdminException;
 import org.apache.pulsar.client.admin.PulsarAdminException.ConflictException;
@@ -102,8 +108,6 @@ public class KafkaProtocolHandler implements ProtocolHandler {
                             if (Topic.GROUP_METADATA_TOPIC_NAME.equals(getKafkaTopicNameFromPulsarTopicname(name))) {
                                 checkState(name.isPartitioned(),
                                     "OffsetTopic should be partitioned in onLoad, but get " + name);
-                                KafkaTopicManager.removeLookupCache(name.toString());
-
                                 if (log.isDebugEnabled()) {
                                     log.debug("New offset partition load:  {}, broker: {}",
                                         name, service.pulsar().getBrokerServiceUrl());
@@ -133,8 +137,6 @@ public class KafkaProtocolHandler implements ProtocolHandler {
                             if (Topic.GROUP_METADATA_TOPIC_NAME.equals(getKafkaTopicNameFromPulsarTopicname(name))) {
                                 checkState(name.isPartitioned(),
                                     "OffsetTopic should be partitioned in unLoad, but get " + name);
-                                KafkaTopicManager.removeLookupCache(name.toString());
-
                                 if (log.isDebugEnabled()) {
                                     log.debug("Offset partition unload:  {}, broker: {}",
                                         name, service.pulsar().getBrokerServiceUrl());
@@ -174,6 +176,15 @@ public class KafkaProtocolHandler implements ProtocolHandler {
     private GroupCoordinator groupCoordinator;
     @Getter
     private String bindAddress;
+    // fetches waiting for new entries, shared by all the Kafka connections of this broker.
+    @Getter
+    private DelayedOperationPurgatory<DelayedFetch> fetchPurgatory;
+    // topics served to Kafka clients, shared by all the Kafka connections of this broker.
+    @Getter
+    private KafkaTopicService topicService;
+    // parsed once from the config, shared by all the Kafka connections of this broker.
+    @Getter
+    private EntryFormat entryFormat;
 
 
     @Override
@@ -197,6 +208,8 @@ public class KafkaProtocolHandler implements ProtocolHandler {
             kafkaConfig = ConfigurationUtils.create(conf.getProperties(), KafkaServiceConfiguration.class);
         }
         this.bindAddress = ServiceConfigurationUtils.getDefaultOrConfiguredAddress(kafkaConfig.getBindAddress());
+        // an invalid entry format fails the broker startup, instead of every incoming connection.
+        this.entryFormat = EntryFormat.of(kafkaConfig.getEntryFormat());
     }
 
     // This method is called after initialize
@@ -220,6 +233,15 @@ public class KafkaProtocolHandler implements ProtocolHandler {
             KopVersion.getBuildHost(),
             KopVersion.getBuildTime());
 
+        fetchPurgatory = DelayedOperationPurgatory.<DelayedFetch>builder()
+            .purgatoryName("kop-delayed-fetch")
+            .build();
+        topicService = new KafkaTopicService(brokerService.pulsar(), kafkaConfig);
+        // invalidate cached lookups and partition leaders once bundle ownership changes.
+        brokerService.pulsar()
+            .getNamespaceService()
+            .addNamespaceBundleOwnershipListener(topicService.getLookupCache(), topicService.getMetadataCache());
+
         // init and start group coordinator
         if (kafkaConfig.isEnableGroupCoordinator()) {
             try {
@@ -261,6 +283,9 @@ public class KafkaProtocolHandler implements ProtocolHandler {
                         new KafkaChannelInitializer(brokerService.pulsar(),
                             kafkaConfig,
                             groupCoordinator,
+                            fetchPurgatory,
+                            topicService,
+                            entryFormat,
                             false));
                 } else if (listener.startsWith(SSL_PREFIX)) {
                     builder.put(
@@ -268,6 +293,9 @@ public class KafkaProtocolHandler implements ProtocolHandler {
                         new KafkaChannelInitializer(brokerService.pulsar(),
                             kafkaConfig,
                             groupCoordinator,
+                            fetchPurgatory,
+                            topicService,
+                            entryFormat,
                             true));
                 } else {
                     log.error("Kafka listener {} not supported. supports {} and {}",
@@ -287,7 +315,12 @@ public class KafkaProtocolHandler implements ProtocolHandler {
         if (groupCoordinator != null) {
             groupCoordinator.shutdown();
         }
-        KafkaTopicManager.LOOKUP_CACHE.clear();
+        if (fetchPurgatory != null) {
+            fetchPurgatory.shutdown();
+        }
+        if (topicService != null) {
+            topicService.close();
+        }
     }
 
     public void initGroupCoordinator(BrokerService service) throws Exception {
@@ -306,6 +339,10 @@ public class KafkaProtocolHandler implements ProtocolHandler {
             .maxMetadataSize(kafkaConfig.getOffsetMetadataMaxSize())
             .offsetsRetentionCheckIntervalMs(kafkaConfig.getOffsetsRetentionCheckIntervalMs())
             .offsetsRetentionMs(TimeUnit.MINUTES.toMillis(kafkaConfig.getOffsetsRetentionMinutes()))
+            .offsetCommitLingerMs(kafkaConfig.getOffsetCommitLingerMs())
+            .offsetsLoadThreads(kafkaConfig.getOffsetsLoadThreads())
+            .offsetsLoadBatchSize(kafkaConfig.getOffsetsLoadBatchSize())
+            .offsetsSnapshotIntervalMs(kafkaConfig.getOffsetsSnapshotIntervalMs())
             .build();
 
         createKafkaMetadataNamespaceIfNeeded(service);
@@ -319,8 +356,24 @@ public class KafkaProtocolHandler implements ProtocolHandler {
             SystemTimer.builder()
                 .executorName("group-coordinator-timer")
                 .build(),
-            Time.SYSTEM
+            Time.SYSTEM,
+            new OffsetAcker(service, kafkaConfig.getOffsetAckIntervalMs())
         );
+        // load the offsets topic partitions served by this broker from their managed ledgers. the partition is loaded,
+        // or created, if it is not loaded yet, so that its snapshot cursor is opened before any entry is trimmed.
+        groupCoordinator.getGroupManager().setOffsetsTopicLedgerProvider(topic ->
+            service.getTopic(TopicName.get(topic).toString(), true)
+                .thenApply(optionalTopic -> optionalTopic
+                    .filter(t -> t instanceof PersistentTopic)
+                    .map(t -> ((PersistentTopic) t).getManagedLedger()))
+                .exceptionally(cause -> {
+                    // the partition is not served by this broker, it is read through a reader.
+                    if (KafkaTopicService.isTopicClosedError(cause)) {
+                        return Optional.empty();
+                    }
+                    throw cause instanceof CompletionException
+                        ? (CompletionException) cause : new CompletionException(cause);
+                }));
 
         loadOffsetTopics(groupCoordinator);
     }
@@ -359,8 +412,10 @@ public class KafkaProtocolHandler implements ProtocolHandler {
                 Set<String> clusters = Sets.newHashSet(kafkaConfig.getClusterName());
                 pulsarAdmin.namespaces().createNamespace(kafkaMetadataNamespace, clusters);
                 pulsarAdmin.namespaces().setNamespaceReplicationClusters(kafkaMetadataNamespace, clusters);
+                // with snapshots, the entries of the offsets topic covered by the latest snapshot are trimmed,
+                // while the snapshot cursor keeps the rest. the topics are never deleted as inactive.
                 pulsarAdmin.namespaces().setRetention(kafkaMetadataNamespace,
-                    new RetentionPolicies(-1, -1));
+                    new RetentionPolicies(-1, kafkaConfig.getOffsetsSnapshotIntervalMs() > 0 ? 0 : -1));
             }
         } catch (PulsarAdminException e) {
             if (e instanceof ConflictException) {
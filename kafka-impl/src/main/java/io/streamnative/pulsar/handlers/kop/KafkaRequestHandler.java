@@ -15,17 +15,18 @@ package io.streamnative.pulsar.handlers.kop;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Queues;
 import io.netty.channel.ChannelHandlerContext;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupCoordinator;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupMetadata.GroupOverview;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupMetadata.GroupSummary;
 import io.streamnative.pulsar.handlers.kop.offset.OffsetAndMetadata;
 import io.streamnative.pulsar.handlers.kop.utils.CoreUtils;
+import io.streamnative.pulsar.handlers.kop.utils.EntryFormat;
 import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
 import io.streamnative.pulsar.handlers.kop.utils.OffsetFinder;
 import io.streamnative.pulsar.handlers.kop.utils.SaslUtils;
 import io.streamnative.pulsar.handlers.kop.utils.TopicNameUtils;
+import io.streamnative.pulsar.handlers.kop.utils.delayed.DelayedOperationPurgatory;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
@@ -34,7 +35,6 @@ import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.commons.lang3.NotImplementedException;
-import org.apache.commons.lang3.tuple.Pair;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.LeaderNotAvailableException;
@@ -98,7 +98,6 @@ import org.apache.pulsar.broker.ServiceConfigurationUtils;
 import org.apache.pulsar.broker.authentication.AuthenticationProvider;
 import org.apache.pulsar.broker.authentication.AuthenticationService;
 import org.apache.pulsar.broker.authentication.AuthenticationState;
-import org.apache.pulsar.broker.loadbalance.LoadManager;
 import org.apache.pulsar.broker.service.persistent.PersistentTopic;
 import org.apache.pulsar.client.admin.PulsarAdmin;
 import org.apache.pulsar.client.admin.PulsarAdminException;
@@ -108,14 +107,9 @@ import org.apache.pulsar.common.api.AuthData;
 import org.apache.pulsar.common.naming.NamespaceName;
 import org.apache.pulsar.common.naming.TopicDomain;
 import org.apache.pulsar.common.naming.TopicName;
-import org.apache.pulsar.common.partition.PartitionedTopicMetadata;
 import org.apache.pulsar.common.policies.data.AuthAction;
 import org.apache.pulsar.common.schema.KeyValue;
-import org.apache.pulsar.common.util.FutureUtil;
 import org.apache.pulsar.common.util.Murmur3_32Hash;
-import org.apache.pulsar.policies.data.loadbalancer.ServiceLookupData;
-import org.apache.pulsar.zookeeper.ZooKeeperCache;
-import org.apache.pulsar.zookeeper.ZooKeeperCache.Deserializer;
 
 import javax.naming.AuthenticationException;
 import java.io.IOException;
@@ -129,12 +123,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -169,6 +161,8 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
     private final KafkaServiceConfiguration kafkaConfig;
     private final KafkaTopicManager topicManager;
     private final GroupCoordinator groupCoordinator;
+    private final DelayedOperationPurgatory<DelayedFetch> fetchPurgatory;
+    private final EntryFormat entryFormat;
 
     private final String clusterName;
     private final ScheduledExecutorService executor;
@@ -184,11 +178,16 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
     public KafkaRequestHandler(PulsarService pulsarService,
                                KafkaServiceConfiguration kafkaConfig,
                                GroupCoordinator groupCoordinator,
+                               DelayedOperationPurgatory<DelayedFetch> fetchPurgatory,
+                               KafkaTopicService topicService,
+                               EntryFormat entryFormat,
                                Boolean tlsEnabled) throws Exception {
-        super();
+        super(topicService.getRequestMemoryPool(), kafkaConfig.getMaxQueuedRequestBytesPerConnection());
         this.pulsarService = pulsarService;
         this.kafkaConfig = kafkaConfig;
         this.groupCoordinator = groupCoordinator;
+        this.fetchPurgatory = fetchPurgatory;
+        this.entryFormat = entryFormat;
         this.clusterName = kafkaConfig.getClusterName();
         this.executor = pulsarService.getExecutor();
         this.admin = pulsarService.getAdminClient();
@@ -199,13 +198,12 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
         this.namespace = NamespaceName.get(
             kafkaConfig.getKafkaTenant(),
             kafkaConfig.getKafkaNamespace());
-        this.topicManager = new KafkaTopicManager(this);
+        this.topicManager = new KafkaTopicManager(this, topicService);
     }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         super.channelActive(ctx);
-        getTopicManager().updateCtx();
         log.info("channel active: {}", ctx.channel());
     }
 
@@ -293,9 +291,10 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
         resultFuture.complete(apiResponse);
     }
 
-    // Leverage pulsar admin to get partitioned topic metadata
-    private CompletableFuture<PartitionedTopicMetadata> getPartitionedTopicMetadataAsync(String topicName) {
-        return admin.topics().getPartitionedTopicMetadataAsync(topicName);
+    // partition count of topic, 0 for a non-partitioned topic. cached for all the connections.
+    private CompletableFuture<Integer> getPartitionCountAsync(String topicName) {
+        return topicManager.getMetadataCache().getPartitionCount(topicName,
+            name -> topicManager.fetchPartitionCount(TopicName.get(name)));
     }
 
     protected void handleTopicMetadataRequest(KafkaHeaderAndRequest metadataHar,
@@ -353,8 +352,8 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
                     }
 
                     // get partition numbers for each topic.
-                    getPartitionedTopicMetadataAsync(pulsarTopicName.toString())
-                        .whenComplete((partitionedTopicMetadata, throwable) -> {
+                    getPartitionCountAsync(pulsarTopicName.toString())
+                        .whenComplete((partitionCount, throwable) -> {
                             if (throwable != null) {
                                 // Failed get partitions.
                                 MetadataResponseData.MetadataResponseTopic metadataResponseTopic = new MetadataResponseData.MetadataResponseTopic();
@@ -367,13 +366,13 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
                                     ctx.channel(), metadataHar.getHeader(), pulsarTopicName, throwable.getMessage());
                             } else {
                                 List<TopicName> pulsarTopicNames;
-                                if (partitionedTopicMetadata.partitions > 0) {
+                                if (partitionCount > 0) {
                                     if (log.isDebugEnabled()) {
                                         log.debug("Topic {} has {} partitions",
-                                            topic, partitionedTopicMetadata.partitions);
+                                            topic, partitionCount);
                                     }
                                     pulsarTopicNames = IntStream
-                                        .range(0, partitionedTopicMetadata.partitions)
+                                        .range(0, partitionCount)
                                         .mapToObj(i ->
                                             TopicName.get(pulsarTopicName.toString() + PARTITIONED_TOPIC_SUFFIX + i))
                                         .collect(toList());
@@ -385,7 +384,15 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
                                                     + "auto create partitioned topic",
                                                 ctx.channel(), metadataHar.getHeader(), topic);
                                         }
-                                        admin.topics().createPartitionedTopicAsync(pulsarTopicName.toString(), 1);
+                                        topicManager.createPartitionedTopic(pulsarTopicName, 1)
+                                            .whenComplete((ignored, e) -> {
+                                                if (e != null) {
+                                                    log.warn("[{}] Request {}: Failed to auto create topic {}",
+                                                        ctx.channel(), metadataHar.getHeader(), topic, e);
+                                                }
+                                                topicManager.getMetadataCache()
+                                                    .invalidatePartitionCount(pulsarTopicName.toString());
+                                            });
                                         final TopicName newTopic = TopicName
                                             .get(pulsarTopicName.toString() + PARTITIONED_TOPIC_SUFFIX + 0);
                                         pulsarTopics.put(topic, Lists.newArrayList(newTopic));
@@ -532,27 +539,49 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
         });
     }
 
-    // handle produce request one by one, so the produced MessageId is in order.
-    private Queue<Pair<KafkaHeaderAndRequest, CompletableFuture<AbstractResponse>>> produceRequestsQueue = Queues
-        .newConcurrentLinkedQueue();
-    // whether the head of queue is running.
-    private AtomicBoolean isHeadRequestRun = new AtomicBoolean(false);
+    // the publish of the last produce request of each partition, completed once its records are handed to the topic.
+    // publishes of the same partition are chained on it, so the produced MessageId is in order,
+    // while produce requests of different partitions run concurrently.
+    private final ConcurrentHashMap<TopicPartition, CompletableFuture<Void>> lastPublishOfPartitions =
+        new ConcurrentHashMap<>();
 
-    private void handleProducerRequestInternal() {
-        // the first request that success set to running, get running.
-        if (produceRequestsQueue.isEmpty() || !isHeadRequestRun.compareAndSet(false, true)) {
-            // the head of queue is already running, when head complete, it will peek the following request to run.
-            if (log.isDebugEnabled()) {
-                log.debug(" Produce messages not entered. queue.size: {}, head isHeadRequestRun: {}",
-                    produceRequestsQueue.size(), isHeadRequestRun.get());
-            }
-            return;
+    // publishes in flight of this connection. like ServerCnx, reads are paused once they reach
+    // maxPendingPublishdRequestsPerConnection, and resumed once half of them complete.
+    private static final String PENDING_PUBLISH_REASON = "pending-publish";
+    private final AtomicInteger pendingPublishes = new AtomicInteger(0);
+
+    private void startPublish() {
+        if (pendingPublishes.incrementAndGet() == kafkaConfig.getMaxPendingPublishdRequestsPerConnection()) {
+            pauseRead(PENDING_PUBLISH_REASON);
+        }
+    }
+
+    private void completePublish() {
+        if (pendingPublishes.decrementAndGet() == kafkaConfig.getMaxPendingPublishdRequestsPerConnection() / 2) {
+            resumeRead(PENDING_PUBLISH_REASON);
+        }
+    }
+
+    // publishing to topic is throttled or resumed by pulsar, e.g. by publish rate limit.
+    void setTopicThrottled(String topicName, boolean throttled) {
+        if (throttled) {
+            pauseRead(topicName);
+        } else {
+            resumeRead(topicName);
         }
+    }
 
-        Pair<KafkaHeaderAndRequest, CompletableFuture<AbstractResponse>> head = produceRequestsQueue.peek();
-        KafkaHeaderAndRequest produceHar = head.getKey();
-        CompletableFuture<AbstractResponse> resultFuture = head.getValue();
+    protected void handleProduceRequest(KafkaHeaderAndRequest produceHar,
+                                        CompletableFuture<AbstractResponse> resultFuture) {
+        checkArgument(produceHar.getRequest() instanceof ProduceRequest);
         ProduceRequest produceRequest = (ProduceRequest) produceHar.getRequest();
+        if (produceRequest.transactionalId() != null) {
+            log.warn("[{}] Transactions not supported", ctx.channel());
+
+            resultFuture.complete(
+                failedResponse(produceHar, new UnsupportedOperationException("No transaction support")));
+            return;
+        }
 
         // Ignore request.acks() and request.timeout(), which related to kafka replication in this broker.
         Map<TopicPartition, CompletableFuture<PartitionResponse>> responsesFutures = new HashMap<>();
@@ -566,6 +595,8 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
 
             CompletableFuture<PartitionResponse> partitionResponse = new CompletableFuture<>();
             responsesFutures.put(topicPartition, partitionResponse);
+            startPublish();
+            partitionResponse.whenComplete((response, e) -> completePublish());
 
             if (log.isDebugEnabled()) {
                 log.debug("[{}] Request {}: Produce messages for topic {} partition {}, request size: {} ",
@@ -575,18 +606,32 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
 
             TopicName topicName = pulsarTopicName(topicPartition, namespace);
 
-            topicManager.getTopic(topicName.toString()).whenComplete((persistentTopic, exception) -> {
-                if (exception != null || persistentTopic == null) {
-                    log.warn("[{}] Request {}: Failed to getOrCreateTopic {}. "
-                            + "Topic is in loading status, return LEADER_NOT_AVAILABLE. exception:",
-                        ctx.channel(), produceHar.getHeader(), topicName, exception);
-                    partitionResponse.complete(new PartitionResponse(Errors.LEADER_NOT_AVAILABLE));
-                } else {
-                    CompletableFuture<PersistentTopic> topicFuture = new CompletableFuture<>();
-                    topicFuture.complete(persistentTopic);
-                    publishMessages((MemoryRecords) entry.getValue(), persistentTopic, partitionResponse);
-                }
-            });
+            // requests are handled in the order they arrive, so is the publish chain of each partition.
+            CompletableFuture<Void> published = new CompletableFuture<>();
+            CompletableFuture<Void> previous = lastPublishOfPartitions.put(topicPartition, published);
+            Runnable publish = () -> topicManager.getTopicForPublish(topicName.toString())
+                .whenComplete((persistentTopic, exception) -> {
+                    try {
+                        if (exception != null || persistentTopic == null) {
+                            log.warn("[{}] Request {}: Failed to getOrCreateTopic {}. "
+                                    + "Topic is in loading status, return LEADER_NOT_AVAILABLE. exception:",
+                                ctx.channel(), produceHar.getHeader(), topicName, exception);
+                            partitionResponse.complete(new PartitionResponse(Errors.LEADER_NOT_AVAILABLE));
+                        } else {
+                            publishMessages((MemoryRecords) entry.getValue(), persistentTopic,
+                                topicManager.getLogOffsetTracker(persistentTopic), partitionResponse,
+                                fetchPurgatory, entryFormat);
+                        }
+                    } finally {
+                        published.complete(null);
+                        lastPublishOfPartitions.remove(topicPartition, published);
+                    }
+                });
+            if (previous == null) {
+                publish.run();
+            } else {
+                previous.whenComplete((ignore, ex) -> publish.run());
+            }
         }
 
         CompletableFuture.allOf(responsesFutures.values().toArray(new CompletableFuture<?>[responsesSize]))
@@ -604,47 +649,6 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
                 }
                 resultFuture.complete(new ProduceResponse(responses));
             });
-
-        // trigger following request to run.
-        resultFuture.whenComplete((response, throwable) -> {
-            if (throwable != null) {
-                log.warn("Error produce message for {}.", produceHar.getHeader(), throwable);
-            }
-
-            if (log.isDebugEnabled()) {
-                log.debug("Produce messages complete. trigger next. queue.size: {}, head isHeadRequestRun: {}",
-                    produceRequestsQueue.size(), isHeadRequestRun.get());
-            }
-
-            boolean compare = isHeadRequestRun.compareAndSet(true, false);
-            checkState(compare, "Head should be running when completed head.");
-            // remove completed request.
-            produceRequestsQueue.remove();
-
-            // trigger another run.
-            handleProducerRequestInternal();
-        });
-    }
-
-    protected void handleProduceRequest(KafkaHeaderAndRequest produceHar,
-                                        CompletableFuture<AbstractResponse> resultFuture) {
-        checkArgument(produceHar.getRequest() instanceof ProduceRequest);
-        ProduceRequest produceRequest = (ProduceRequest) produceHar.getRequest();
-        if (produceRequest.transactionalId() != null) {
-            log.warn("[{}] Transactions not supported", ctx.channel());
-
-            resultFuture.complete(
-                failedResponse(produceHar, new UnsupportedOperationException("No transaction support")));
-            return;
-        }
-
-        if (log.isDebugEnabled()) {
-            log.debug(" new produce request comes: {}, isHeadRequestRun: {}",
-                produceRequestsQueue.size(), isHeadRequestRun.get());
-        }
-        produceRequestsQueue.add(Pair.of(produceHar, resultFuture));
-
-        handleProducerRequestInternal();
     }
 
     protected void handleFindCoordinatorRequest(KafkaHeaderAndRequest findCoordinator,
@@ -720,33 +724,29 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
             }
 
             ManagedLedgerImpl managedLedger = (ManagedLedgerImpl) perTopic.getManagedLedger();
+            LogOffsetTracker logOffsetTracker = topicManager.getLogOffsetTracker(perTopic);
             if (timestamp == ListOffsetRequest.LATEST_TIMESTAMP) {
-                PositionImpl position = (PositionImpl) managedLedger.getLastConfirmedEntry();
+                long offset = logOffsetTracker.getLogEndOffset();
                 if (log.isDebugEnabled()) {
-                    log.debug("Get latest position for topic {} time {}. result: {}",
-                        perTopic.getName(), timestamp, position);
+                    log.debug("Get latest offset for topic {} time {}. result: {}",
+                        perTopic.getName(), timestamp, offset);
                 }
 
-                // no entry in ledger, then entry id could be -1
-                long entryId = position.getEntryId();
-
                 if (legacyMode) {
                     partitionData.complete(new ListOffsetResponse.PartitionData(
                         Errors.NONE,
-                        Collections.singletonList(MessageIdUtils
-                            .getOffset(position.getLedgerId(), entryId == -1 ? 0 : entryId))));
+                        Collections.singletonList(offset)));
 
                 } else {
                     partitionData.complete(new ListOffsetResponse.PartitionData(
                         Errors.NONE,
                         DEFAULT_TIMESTAMP,
-                        MessageIdUtils
-                            .getOffset(position.getLedgerId(), entryId == -1 ? 0 : entryId),
+                        offset,
                         Optional.empty()));
                 }
 
             } else if (timestamp == ListOffsetRequest.EARLIEST_TIMESTAMP) {
-                PositionImpl position = OffsetFinder.getFirstValidPosition(managedLedger);
+                PositionImpl position = logOffsetTracker.getLogStartPosition();
 
                 if (log.isDebugEnabled()) {
                     log.debug("Get earliest position for topic {} time {}. result: {}",
@@ -768,14 +768,14 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
 
             } else {
                 // find with real wanted timestamp
-                OffsetFinder offsetFinder = new OffsetFinder(managedLedger);
+                OffsetFinder offsetFinder = new OffsetFinder(managedLedger, logOffsetTracker.getTimestampIndex());
 
                 offsetFinder.findMessages(timestamp, new AsyncCallbacks.FindEntryCallback() {
                     @Override
                     public void findEntryComplete(Position position, Object ctx) {
                         PositionImpl finalPosition;
                         if (position == null) {
-                            finalPosition = OffsetFinder.getFirstValidPosition(managedLedger);
+                            finalPosition = logOffsetTracker.getLogStartPosition();
                             if (finalPosition == null) {
                                 log.warn("Unable to find position for topic {} time {}. get NULL position",
                                     perTopic.getName(), timestamp);
@@ -986,8 +986,10 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
             });
         }
 
-        MessageFetchContext fetchContext = MessageFetchContext.get(this, fetch);
-        fetchContext.handleFetch(resultFuture);
+        // not start reads while the responses are not sent out, e.g. for a slow consumer.
+        runWhenWritable(() -> MessageFetchContext.get(this, fetch).handleFetch(resultFuture),
+            () -> resultFuture.complete(
+                fetch.getRequest().getErrorResponse(new LeaderNotAvailableException("Channel is closing!"))));
     }
 
     protected void handleJoinGroupRequest(KafkaHeaderAndRequest joinGroup,
@@ -1267,17 +1269,13 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
     private CompletableFuture<Optional<String>>
     getProtocolDataToAdvertise(InetSocketAddress pulsarAddress,
                                TopicName topic) {
-
-        CompletableFuture<Optional<String>> returnFuture = new CompletableFuture<>();
-
         if (pulsarAddress == null) {
             log.error("[{}] failed get pulsar address, returned null.", topic.toString());
 
             // getTopicBroker returns null. topic should be removed from LookupCache.
             topicManager.removeLookupCache(topic.toString());
 
-            returnFuture.complete(Optional.empty());
-            return returnFuture;
+            return CompletableFuture.completedFuture(Optional.empty());
         }
 
         if (log.isDebugEnabled()) {
@@ -1285,78 +1283,9 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
                 topic, pulsarAddress);
         }
 
-        // advertised data is write in  /loadbalance/brokers/advertisedAddress:webServicePort
-        // here we get the broker url, need to find related webServiceUrl.
-        ZooKeeperCache zkCache = pulsarService.getLocalZkCache();
-        zkCache.getChildrenAsync(LoadManager.LOADBALANCE_BROKERS_ROOT, zkCache)
-            .whenComplete((set, throwable) -> {
-                if (throwable != null) {
-                    log.error("Error in getChildrenAsync(zk://loadbalance) for {}", pulsarAddress, throwable);
-                    returnFuture.complete(Optional.empty());
-                    return;
-                }
-
-                String hostAndPort = pulsarAddress.getHostName() + ":" + pulsarAddress.getPort();
-                List<String> matchBrokers = Lists.newArrayList();
-                // match host part of url
-                for (String activeBroker : set) {
-                    if (activeBroker.startsWith(pulsarAddress.getHostName() + ":")) {
-                        matchBrokers.add(activeBroker);
-                    }
-                }
-
-                if (matchBrokers.isEmpty()) {
-                    log.error("No node for broker {} under zk://loadbalance", pulsarAddress);
-                    returnFuture.complete(Optional.empty());
-                    return;
-                }
-
-                // Get a list of ServiceLookupData for each matchBroker.
-                List<CompletableFuture<Optional<ServiceLookupData>>> list = matchBrokers.stream()
-                    .map(matchBroker ->
-                        zkCache.getDataAsync(
-                            String.format("%s/%s", LoadManager.LOADBALANCE_BROKERS_ROOT, matchBroker),
-                            (Deserializer<ServiceLookupData>)
-                                pulsarService.getLoadManager().get().getLoadReportDeserializer()))
-                    .collect(toList());
-
-                FutureUtil.waitForAll(list)
-                    .whenComplete((ignore, th) -> {
-                            if (th != null) {
-                                log.error("Error in getDataAsync() for {}", pulsarAddress, th);
-                                returnFuture.complete(Optional.empty());
-                                return;
-                            }
-
-                            try {
-                                for (CompletableFuture<Optional<ServiceLookupData>> lookupData : list) {
-                                    ServiceLookupData data = lookupData.get().get();
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("Handle getProtocolDataToAdvertise for {}, pulsarUrl: {}, "
-                                                + "pulsarUrlTls: {}, webUrl: {}, webUrlTls: {} kafka: {}",
-                                            topic, data.getPulsarServiceUrl(), data.getPulsarServiceUrlTls(),
-                                            data.getWebServiceUrl(), data.getWebServiceUrlTls(),
-                                            data.getProtocol(KafkaProtocolHandler.PROTOCOL_NAME));
-                                    }
-
-                                    if (lookupDataContainsAddress(data, hostAndPort)) {
-                                        returnFuture.complete(data.getProtocol(KafkaProtocolHandler.PROTOCOL_NAME));
-                                        return;
-                                    }
-                                }
-                            } catch (Exception e) {
-                                log.error("Error in {} lookupFuture get: ", pulsarAddress, e);
-                                returnFuture.complete(Optional.empty());
-                                return;
-                            }
-
-                            // no matching lookup data in all matchBrokers.
-                            log.error("Not able to search {} in all child of zk://loadbalance", pulsarAddress);
-                            returnFuture.complete(Optional.empty());
-                        }
-                    );
-            });
-        return returnFuture;
+        // advertised data is write in  /loadbalance/brokers/advertisedAddress:webServicePort,
+        // and indexed by the service urls of each broker.
+        return topicManager.getAdvertisedListenersIndex().getListeners(pulsarAddress);
     }
 
     private boolean isOffsetTopic(String topic) {
@@ -1373,10 +1302,12 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
         }
         CompletableFuture<PartitionMetadata> returnFuture = new CompletableFuture<>();
 
-        topicManager.getTopicBroker(topic.toString())
-            .thenCompose(pair -> getProtocolDataToAdvertise(pair, topic))
+        // listeners of the owner broker are cached, and invalidated when the bundle ownership changes.
+        topicManager.getMetadataCache()
+            .getOwnerListeners(topic.toString(), name -> topicManager.getTopicBroker(name)
+                .thenCompose(pair -> getProtocolDataToAdvertise(pair, topic)))
             .whenComplete((stringOptional, throwable) -> {
-                if (!stringOptional.isPresent() || throwable != null) {
+                if (throwable != null || !stringOptional.isPresent()) {
                     log.error("Not get advertise data for Kafka topic:{}. throwable",
                         topic, throwable);
                     returnFuture.complete(null);
@@ -1405,12 +1336,8 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
                         listeners, topic, localListeners, listeners);
                 }
 
-                // here we found topic broker: broker2, but this is in broker1,
-                // how to clean the lookup cache?
-                if (!localListeners.contains(kopBrokerUrl)) {
-                    topicManager.removeLookupCache(topic.toString());
-                }
-
+                // a topic owned by another broker stays in the lookup cache, until it expires,
+                // or its bundle ownership changes on this broker.
                 if (!topicManager.topicExists(topic.toString())
                     && localListeners.contains(kopBrokerUrl)) {
                     topicManager.getTopic(topic.toString()).whenComplete((persistentTopic, exception) -> {
@@ -1514,12 +1441,4 @@ public class KafkaRequestHandler extends KafkaCommandDecoder {
         }
         return requestHar.getRequest().getErrorResponse(((Integer) THROTTLE_TIME_MS.defaultValue), e);
     }
-
-    // whether a ServiceLookupData contains wanted address.
-    static boolean lookupDataContainsAddress(ServiceLookupData data, String hostAndPort) {
-        return (data.getPulsarServiceUrl() != null && data.getPulsarServiceUrl().contains(hostAndPort))
-            || (data.getPulsarServiceUrlTls() != null && data.getPulsarServiceUrlTls().contains(hostAndPort))
-            || (data.getWebServiceUrl() != null && data.getWebServiceUrl().contains(hostAndPort))
-            || (data.getWebServiceUrlTls() != null && data.getWebServiceUrlTls().contains(hostAndPort));
-    }
 }
@@ -137,6 +137,43 @@ public class KafkaServiceConfiguration extends ServiceConfiguration {
     )
     private long offsetsRetentionCheckIntervalMs = OffsetConfig.DefaultOffsetsRetentionCheckIntervalMs;
 
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Time to wait for more offset commits to the same offsets topic partition, before storing them"
+            + " as one entry. Set to 0 to store each offset commit as its own entry."
+    )
+    private long offsetCommitLingerMs = OffsetConfig.DefaultOffsetCommitLingerMs;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Number of threads to decode the offsets topic partitions loaded by the group coordinator,"
+            + " so that several partitions are loaded in parallel"
+    )
+    private int offsetsLoadThreads = OffsetConfig.DefaultOffsetsLoadThreads;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Number of entries read in a batch, when loading an offsets topic partition from its managed ledger"
+    )
+    private int offsetsLoadBatchSize = OffsetConfig.DefaultOffsetsLoadBatchSize;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Frequency at which the group coordinator writes a snapshot of the groups and offsets of each owned"
+            + " offsets topic partition, so that loading the partition only replays the entries after the latest"
+            + " snapshot. The entries covered by the latest snapshot are trimmed, if the retention size of the"
+            + " kafka metadata namespace is 0, which is set when the namespace is created with snapshots enabled."
+            + " The snapshots are disabled by default, set a positive interval to enable them."
+    )
+    private long offsetsSnapshotIntervalMs = OffsetConfig.DefaultOffsetsSnapshotIntervalMs;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Frequency at which the latest committed offsets are acknowledged on the subscriptions of the groups,"
+            + " so that each subscription is moved at most once per interval. Set to 0 to acknowledge each commit."
+    )
+    private long offsetAckIntervalMs = 1000L;
+
     @FieldContext(
         category = CATEGORY_KOP,
         doc = "ListenersProp for Kafka service(host should follow the advertisedAddress). "
@@ -145,6 +182,81 @@ public class KafkaServiceConfiguration extends ServiceConfiguration {
     )
     private String listeners;
 
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "The format of the entries written into topics of kafkaNamespace, pulsar or kafka. "
+            + "With pulsar format, each Kafka record is converted into a Pulsar message, "
+            + "so topics could be consumed by Pulsar clients too. "
+            + "With kafka format, the produced records batch is stored as-is and returned to fetch "
+            + "without conversion, but topics could only be consumed by Kafka clients."
+    )
+    private String entryFormat = "pulsar";
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Flag to read entries for fetch by position from the managed ledger, without creating "
+            + "a non-durable cursor for each fetch offset. Reads are not tracked by any cursor, "
+            + "so they do not hold back the trimming of ledgers."
+    )
+    private boolean enableFetchWithoutCursor = false;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Time in milliseconds that partition counts and partition leaders are cached for Metadata requests."
+            + " The cached leaders of a bundle are also invalidated once its ownership changes on this broker."
+            + " Set to 0 to disable the cache."
+    )
+    private long metadataCacheTtlMs = 5000;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Max number of topics whose partition count, and of partitions whose leader, are cached for Metadata"
+            + " requests. Least recently used ones are evicted first."
+    )
+    private long metadataCacheMaxSize = 100000;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Max number of topics whose owner broker is cached. Least recently used topics are evicted first."
+    )
+    private long lookupCacheMaxSize = 100000;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Time in milliseconds that the owner broker of a topic is cached. The cached owners of a bundle are"
+            + " also invalidated once its ownership changes on this broker."
+    )
+    private long lookupCacheTtlMs = 60000;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Max bytes of requests queued in all the Kafka connections of this broker, like queued.max.request.bytes"
+            + " of Kafka. Connections pause reading once it is exceeded, until responses complete."
+            + " Set to 0 for no limit."
+    )
+    private long maxQueuedRequestBytes = 1024 * 1024 * 1024L;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Max bytes of requests queued in a Kafka connection. The connection pauses reading once it is exceeded,"
+            + " until responses complete. Set to 0 for no limit."
+    )
+    private long maxQueuedRequestBytesPerConnection = 100 * 1024 * 1024L;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "High water mark of bytes of responses buffered to write in a Kafka connection. Once it is exceeded,"
+            + " the connection is not writable, and reads of new fetches of it are deferred."
+    )
+    private int kafkaWriteBufferHighWaterMark = 4 * 1024 * 1024;
+
+    @FieldContext(
+        category = CATEGORY_KOP,
+        doc = "Low water mark of bytes of responses buffered to write in a Kafka connection. Once buffered bytes"
+            + " drop below it, the connection is writable again, and the deferred reads of fetches start."
+    )
+    private int kafkaWriteBufferLowWaterMark = 2 * 1024 * 1024;
+
     // Kafka SSL configs
     @FieldContext(
         category = CATEGORY_KOP_SSL,
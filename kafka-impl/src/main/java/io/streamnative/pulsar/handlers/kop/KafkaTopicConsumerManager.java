@@ -16,22 +16,30 @@ package io.streamnative.pulsar.handlers.kop;
 import static com.google.common.base.Preconditions.checkArgument;
 import static io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils.offsetAfterBatchIndex;
 
+import com.google.common.collect.Lists;
 import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
 import java.io.Closeable;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCursorCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
+import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.common.util.FutureUtil;
 import org.apache.pulsar.common.util.collections.ConcurrentLongHashMap;
 
 /**
@@ -41,7 +49,9 @@ import org.apache.pulsar.common.util.collections.ConcurrentLongHashMap;
 @Slf4j
 public class KafkaTopicConsumerManager implements Closeable {
     private final PersistentTopic topic;
-    private final KafkaRequestHandler requestHandler;
+    // log offsets of the topic, shared with produce and list offsets.
+    @Getter
+    private final LogOffsetTracker logOffsetTracker;
 
     // the lock for closed status change.
     // once closed, should not add new cursor back, since consumers are cleared.
@@ -59,14 +69,131 @@ public class KafkaTopicConsumerManager implements Closeable {
     @Getter
     private final ConcurrentLongHashMap<Long> lastAccessTimes;
 
-    KafkaTopicConsumerManager(KafkaRequestHandler requestHandler, PersistentTopic topic) {
+    // max number of entries read from the managed ledger at a time by asyncReadEntries.
+    static final int MAX_PARALLEL_READS = 16;
+
+    // moving average of the size of entries read from this topic, used to plan multi-entry reads.
+    private volatile long averageEntrySize;
+
+    KafkaTopicConsumerManager(PersistentTopic topic, LogOffsetTracker logOffsetTracker) {
         this.topic = topic;
+        this.logOffsetTracker = logOffsetTracker;
         this.consumers = new ConcurrentLongHashMap<>();
         this.createdCursors = new ConcurrentHashMap<>();
         this.lastAccessTimes = new ConcurrentLongHashMap<>();
-        this.requestHandler = requestHandler;
         this.rwLock = new ReentrantReadWriteLock();
         this.closed = false;
+        this.averageEntrySize = -1;
+    }
+
+    // get recent average entry size of this topic.
+    // before any read, estimate it from the size and number of entries of the managed ledger.
+    public long getAverageEntrySize() {
+        long average = averageEntrySize;
+        if (average > 0) {
+            return average;
+        }
+
+        ManagedLedger ledger = topic.getManagedLedger();
+        long numberOfEntries = ledger.getNumberOfEntries();
+        if (numberOfEntries > 0) {
+            return ledger.getTotalSize() / numberOfEntries;
+        }
+        return FetchReadPlanner.DEFAULT_AVERAGE_ENTRY_SIZE;
+    }
+
+    // record a read of numEntries entries with total size numBytes.
+    public void recordEntriesRead(int numEntries, long numBytes) {
+        if (numEntries <= 0) {
+            return;
+        }
+        long sample = numBytes / numEntries;
+        long average = averageEntrySize;
+        // not strictly atomic, a lost update only makes the estimate a little stale.
+        averageEntrySize = average <= 0 ? sample : (average * 3 + sample) / 4;
+    }
+
+    // read at most maxEntries entries from the fetch offset by position, without a cursor.
+    // entries are read one by one through the managed ledger, which serves them from its entry cache when possible.
+    // an entry not in the cache is a separate bookie read, so at most MAX_PARALLEL_READS reads are issued at a time.
+    public CompletableFuture<List<Entry>> asyncReadEntries(long offset, int maxEntries) {
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) topic.getManagedLedger();
+        PositionImpl lastConfirmed = (PositionImpl) ledger.getLastConfirmedEntry();
+
+        PositionImpl position = firstReadPosition(ledger, offset);
+
+        List<PositionImpl> positions = Lists.newArrayListWithExpectedSize(maxEntries);
+        while (position != null && positions.size() < maxEntries && position.compareTo(lastConfirmed) <= 0) {
+            positions.add(position);
+            position = ledger.getNextValidPosition(position);
+        }
+
+        CompletableFuture<List<Entry>> readFuture =
+            CompletableFuture.completedFuture(Lists.newArrayListWithExpectedSize(positions.size()));
+        for (int from = 0; from < positions.size(); from += MAX_PARALLEL_READS) {
+            List<PositionImpl> readPositions =
+                positions.subList(from, Math.min(from + MAX_PARALLEL_READS, positions.size()));
+            readFuture = readFuture.thenCompose(entries ->
+                readEntries(ledger, readPositions).handle((readEntries, ex) -> {
+                    if (ex != null) {
+                        entries.forEach(Entry::release);
+                        throw new CompletionException(ex);
+                    }
+                    entries.addAll(readEntries);
+                    return entries;
+                }));
+        }
+        return readFuture;
+    }
+
+    // read the entries at the positions in parallel, the entries read are released if any of the reads failed.
+    private CompletableFuture<List<Entry>> readEntries(ManagedLedgerImpl ledger, List<PositionImpl> positions) {
+        List<CompletableFuture<Entry>> readFutures = Lists.newArrayListWithExpectedSize(positions.size());
+        for (PositionImpl readPosition : positions) {
+            CompletableFuture<Entry> readFuture = new CompletableFuture<>();
+            ledger.asyncReadEntry(readPosition, new ReadEntryCallback() {
+                @Override
+                public void readEntryComplete(Entry entry, Object ctx) {
+                    readFuture.complete(entry);
+                }
+
+                @Override
+                public void readEntryFailed(ManagedLedgerException exception, Object ctx) {
+                    readFuture.completeExceptionally(exception);
+                }
+            }, null);
+            readFutures.add(readFuture);
+        }
+
+        return FutureUtil.waitForAll(readFutures).handle((ignore, ex) -> {
+            List<Entry> entries = Lists.newArrayListWithExpectedSize(readFutures.size());
+            readFutures.forEach(readFuture -> {
+                if (!readFuture.isCompletedExceptionally()) {
+                    entries.add(readFuture.join());
+                }
+            });
+            if (ex != null) {
+                log.error("[{}] Failed to read {} entries from position {}.",
+                    topic.getName(), positions.size(), positions.get(0), ex);
+                entries.forEach(Entry::release);
+                throw new CompletionException(ex);
+            }
+            return entries;
+        });
+    }
+
+    // whether there are entries to read from the fetch offset, without a cursor.
+    public boolean hasEntriesFrom(long offset) {
+        ManagedLedgerImpl ledger = (ManagedLedgerImpl) topic.getManagedLedger();
+        PositionImpl position = firstReadPosition(ledger, offset);
+        return position != null && ((PositionImpl) ledger.getLastConfirmedEntry()).compareTo(position) >= 0;
+    }
+
+    // same as a new NonDurableCursor, start from the next valid position of the previous one,
+    // so positions in deleted ledgers or after the end of a ledger move to the following ledger.
+    private static PositionImpl firstReadPosition(ManagedLedgerImpl ledger, long offset) {
+        PositionImpl position = MessageIdUtils.getPosition(offsetAfterBatchIndex(offset));
+        return ledger.getNextValidPosition(ledger.getPreviousPosition(position));
     }
 
     // delete expired cursors, so backlog can be cleared.
@@ -96,7 +223,7 @@ public class KafkaTopicConsumerManager implements Closeable {
         if (pair != null) {
             if (log.isDebugEnabled()) {
                 log.debug("[{}] Cursor timed out for offset: {} - {}, cursors cache size: {}",
-                    requestHandler.ctx.channel(), offset, MessageIdUtils.getPosition(offset), consumers.size());
+                    topic.getName(), offset, MessageIdUtils.getPosition(offset), consumers.size());
             }
 
             ManagedCursor managedCursor = pair.getKey();
@@ -111,15 +238,15 @@ public class KafkaTopicConsumerManager implements Closeable {
                 @Override
                 public void deleteCursorComplete(Object ctx) {
                     if (log.isDebugEnabled()) {
-                        log.debug("[{}] Cursor {} for topic {} deleted successfully for reason: {}.",
-                            requestHandler.ctx.channel(), cursor.getName(), topic.getName(), reason);
+                        log.debug("Cursor {} for topic {} deleted successfully for reason: {}.",
+                            cursor.getName(), topic.getName(), reason);
                     }
                 }
 
                 @Override
                 public void deleteCursorFailed(ManagedLedgerException exception, Object ctx) {
-                    log.warn("[{}] Error deleting cursor for topic {} for reason: {}.",
-                        requestHandler.ctx.channel(), cursor.getName(), topic.getName(), reason, exception);
+                    log.warn("Error deleting cursor {} for topic {} for reason: {}.",
+                        cursor.getName(), topic.getName(), reason, exception);
                 }
             }, null);
             createdCursors.remove(cursor.getName());
@@ -147,7 +274,7 @@ public class KafkaTopicConsumerManager implements Closeable {
         if (cursor != null) {
             if (log.isDebugEnabled()) {
                 log.debug("[{}] Get cursor for offset: {} - {} in cache. cache size: {}",
-                    requestHandler.ctx.channel(), offset, MessageIdUtils.getPosition(offset), consumers.size());
+                    topic.getName(), offset, MessageIdUtils.getPosition(offset), consumers.size());
             }
             return cursor;
         }
@@ -181,15 +308,15 @@ public class KafkaTopicConsumerManager implements Closeable {
                     PositionImpl previous = ledger.getPreviousPosition(position);
                     if (log.isDebugEnabled()) {
                         log.debug("[{}] Create cursor {} for offset: {}. position: {}, previousPosition: {}",
-                            requestHandler.ctx.channel(), cursorName, off, position, previous);
+                            topic.getName(), cursorName, off, position, previous);
                     }
                     ManagedCursor newCursor;
                     try {
                         newCursor = ledger.newNonDurableCursor(previous, cursorName);
                         createdCursors.put(newCursor.getName(), newCursor);
                     } catch (ManagedLedgerException e) {
-                        log.error("[{}] Error new cursor for topic {} at offset {} - {}. will cause fetch data error.",
-                            requestHandler.ctx.channel(), topic.getName(), off, previous, e);
+                        log.error("Error new cursor for topic {} at offset {} - {}. will cause fetch data error.",
+                            topic.getName(), off, previous, e);
                         return null;
                     }
 
@@ -232,7 +359,7 @@ public class KafkaTopicConsumerManager implements Closeable {
 
         if (log.isDebugEnabled()) {
             log.debug("[{}] Add cursor back {} for offset: {} - {}",
-                requestHandler.ctx.channel(), pair.getLeft().getName(), offset, MessageIdUtils.getPosition(offset));
+                topic.getName(), pair.getLeft().getName(), offset, MessageIdUtils.getPosition(offset));
         }
     }
 
@@ -248,8 +375,7 @@ public class KafkaTopicConsumerManager implements Closeable {
             }
             closed = true;
             if (log.isDebugEnabled()) {
-                log.debug("[{}] Close TCM for topic {}.",
-                    requestHandler.ctx.channel(), topic.getName());
+                log.debug("Close TCM for topic {}.", topic.getName());
             }
             consumersToClose = new ConcurrentLongHashMap<>();
             consumers.forEach((k, v) -> consumersToClose.put(k, v));
@@ -13,309 +13,163 @@
  */
 package io.streamnative.pulsar.handlers.kop;
 
-import static com.google.common.base.Preconditions.checkState;
-
 import java.net.InetSocketAddress;
-import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.pulsar.broker.PulsarServerException;
-import org.apache.pulsar.broker.PulsarService;
-import org.apache.pulsar.broker.service.BrokerService;
-import org.apache.pulsar.broker.service.Producer;
 import org.apache.pulsar.broker.service.persistent.PersistentTopic;
-import org.apache.pulsar.client.impl.Backoff;
-import org.apache.pulsar.client.impl.PulsarClientImpl;
 import org.apache.pulsar.common.naming.TopicName;
 
 /**
- * KafkaTopicManager manages a Map of topic to KafkaTopicConsumerManager.
- * For each topic, there is a KafkaTopicConsumerManager, which manages a topic and its related offset cursor.
+ * KafkaTopicManager is the view of a connection on the broker-wide KafkaTopicService.
+ * It tracks the topics used by the connection, and releases their references when the connection closes.
  * This is mainly used to cache the produce/consume topic, not include offsetTopic.
  */
 @Slf4j
 public class KafkaTopicManager {
 
     private final KafkaRequestHandler requestHandler;
-    private final PulsarService pulsarService;
-    private final BrokerService brokerService;
-
-    // consumerTopicManagers for consumers cache.
-    @Getter
-    private final ConcurrentHashMap<String, CompletableFuture<KafkaTopicConsumerManager>> consumerTopicManagers;
-
-    // cache for topics: <topicName, persistentTopic>
-    private final ConcurrentHashMap<String, CompletableFuture<PersistentTopic>> topics;
-    // cache for references in PersistentTopic: <topicName, producer>
-    private final ConcurrentHashMap<String, Producer> references;
+    private final KafkaTopicService topicService;
 
-    private InternalServerCnx internalServerCnx;
-
-    // every 1 min, check if the KafkaTopicConsumerManagers have expired cursors.
-    // remove expired cursors, so backlog can be cleared.
-    private long checkPeriodMillis = 1 * 60 * 1000;
-    private long expirePeriodMillis = 2 * 60 * 1000;
-    private final ScheduledFuture<?> cursorExpireTask;
+    // topics referenced by this connection.
+    private final Set<String> topics;
+    // topics this connection publishes to, a subset of topics. only reads of publishers are paused by throttling.
+    private final Set<String> publishTopics;
 
     // the lock for closed status change.
     private final ReentrantReadWriteLock rwLock;
     private boolean closed;
 
-    public static final ConcurrentHashMap<String, CompletableFuture<InetSocketAddress>>
-        LOOKUP_CACHE = new ConcurrentHashMap<>();
-
-    KafkaTopicManager(KafkaRequestHandler kafkaRequestHandler) {
+    KafkaTopicManager(KafkaRequestHandler kafkaRequestHandler, KafkaTopicService topicService) {
         this.requestHandler = kafkaRequestHandler;
-        this.pulsarService = kafkaRequestHandler.getPulsarService();
-        this.brokerService = pulsarService.getBrokerService();
-        this.internalServerCnx = new InternalServerCnx(requestHandler);
-
-        consumerTopicManagers = new ConcurrentHashMap<>();
-        topics = new ConcurrentHashMap<>();
-        references = new ConcurrentHashMap<>();
+        this.topicService = topicService;
+        this.topics = ConcurrentHashMap.newKeySet();
+        this.publishTopics = ConcurrentHashMap.newKeySet();
 
         this.rwLock = new ReentrantReadWriteLock();
         this.closed = false;
+    }
 
-        // check expired cursor every 1 min.
-        this.cursorExpireTask = brokerService.executor().scheduleWithFixedDelay(() -> {
-            long current = System.currentTimeMillis();
-            if (log.isDebugEnabled()) {
-                log.debug("[{}] Schedule a check of expired cursor",
-                    requestHandler.ctx.channel());
-            }
-            consumerTopicManagers.values().forEach(future -> {
-                if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
-                    future.join().deleteExpiredCursor(current, expirePeriodMillis);
+    // reference a topic from this connection, returns false if the connection is closing.
+    private boolean reference(String topicName, boolean publish) {
+        rwLock.readLock().lock();
+        try {
+            if (closed) {
+                if (log.isDebugEnabled()) {
+                    log.debug("[{}] Not reference topic {} since channel is closing",
+                        requestHandler.ctx.channel(), topicName);
                 }
-            });
-        }, checkPeriodMillis, checkPeriodMillis, TimeUnit.MILLISECONDS);
+                return false;
+            }
+            if (topics.add(topicName)) {
+                topicService.addReference(topicName, requestHandler);
+            }
+            if (publish && publishTopics.add(topicName)) {
+                topicService.addPublisher(topicName, requestHandler);
+            }
+            return true;
+        } finally {
+            rwLock.readLock().unlock();
+        }
     }
 
-    // update Ctx information, since at internalServerCnx create time there is no ctx passed into kafkaRequestHandler.
-    public void updateCtx() {
-        internalServerCnx.updateCtx();
+    public ConcurrentHashMap<String, CompletableFuture<KafkaTopicConsumerManager>> getConsumerTopicManagers() {
+        return topicService.getConsumerTopicManagers();
     }
 
     // topicName is in pulsar format. e.g. persistent://public/default/topic-partition-0
     // future will complete with null when topic not owned by this broker, or meet error.
     public CompletableFuture<KafkaTopicConsumerManager> getTopicConsumerManager(String topicName) {
-        return consumerTopicManagers.computeIfAbsent(
-            topicName,
-            t -> {
-                CompletableFuture<PersistentTopic> topic = getTopic(t);
-                checkState(topic != null);
+        if (!reference(topicName, false)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return topicService.getTopicConsumerManager(topicName);
+    }
 
-                return topic.thenApply(t2 -> {
-                    if (log.isDebugEnabled()) {
-                        log.debug("[{}] Call getTopicConsumerManager for {}, and create TCM for {}.",
-                            requestHandler.ctx.channel(), topicName, t2);
-                    }
+    // log offsets of a topic got from getTopic.
+    public LogOffsetTracker getLogOffsetTracker(PersistentTopic persistentTopic) {
+        return topicService.getLogOffsetTracker(persistentTopic);
+    }
 
-                    if (t2 == null) {
-                        return null;
-                    }
-                    // return consumer manager
-                    return new KafkaTopicConsumerManager(requestHandler, t2);
-                });
-            }
-        );
+    // partition counts and partition leaders shared by all connections.
+    public KafkaMetadataCache getMetadataCache() {
+        return topicService.getMetadataCache();
     }
 
-    public static void removeLookupCache(String topicName) {
-        LOOKUP_CACHE.remove(topicName);
+    // partition count of topic, 0 for a non-partitioned topic.
+    public CompletableFuture<Integer> fetchPartitionCount(TopicName topicName) {
+        return topicService.fetchPartitionCount(topicName);
     }
 
-    // whether topic exists in cache.
-    public boolean topicExists(String topicName) {
-        return topics.containsKey(topicName);
+    public CompletableFuture<Void> createPartitionedTopic(TopicName topicName, int numPartitions) {
+        return topicService.createPartitionedTopic(topicName, numPartitions);
     }
 
-    // exception throw for pulsar.getClient();
-    private Producer registerInPersistentTopic(PersistentTopic persistentTopic) throws Exception {
-        Producer producer = new InternalProducer(persistentTopic, internalServerCnx,
-            ((PulsarClientImpl) (pulsarService.getClient())).newRequestId(),
-            brokerService.generateUniqueProducerName());
+    // advertised Kafka listeners of each active broker.
+    public AdvertisedListenersIndex getAdvertisedListenersIndex() {
+        return topicService.getAdvertisedListenersIndex();
+    }
 
-        if (log.isDebugEnabled()) {
-            log.debug("[{}] Register Mock Producer {} into PersistentTopic {}",
-                requestHandler.ctx.channel(), producer, persistentTopic.getName());
-        }
+    public void removeLookupCache(String topicName) {
+        topicService.removeLookupCache(topicName);
+    }
 
-        // this will register and add USAGE_COUNT_UPDATER.
-        persistentTopic.addProducer(producer);
-        return producer;
+    // whether topic exists in cache.
+    public boolean topicExists(String topicName) {
+        return topicService.topicExists(topicName);
     }
 
-    // call pulsarclient.lookup.getbroker to get and own a topic.
+    // lookup the broker that owns a topic, the topic is assigned to a broker if it has no owner.
     // when error happens, the returned future will complete with null.
     public CompletableFuture<InetSocketAddress> getTopicBroker(String topicName) {
-
         rwLock.readLock().lock();
         try {
             if (closed) {
-                CompletableFuture<InetSocketAddress> retFuture = new CompletableFuture<>();
-                retFuture.complete(null);
                 if (log.isDebugEnabled()) {
                     log.debug("[{}] Return null for getTopicBroker({}) since channel closing",
                         requestHandler.ctx.channel(), topicName);
                 }
-                return retFuture;
+                return CompletableFuture.completedFuture(null);
             }
         } finally {
             rwLock.readLock().unlock();
         }
-
-        return LOOKUP_CACHE.computeIfAbsent(topicName, t -> {
-            if (log.isDebugEnabled()) {
-                log.debug("[{}] topic {} not in Lookup_cache, call lookupBroker",
-                    requestHandler.ctx.channel(), topicName);
-            }
-            CompletableFuture<InetSocketAddress> returnFuture = new CompletableFuture<>();
-            Backoff backoff = new Backoff(
-                100, TimeUnit.MILLISECONDS,
-                30, TimeUnit.SECONDS,
-                30, TimeUnit.SECONDS
-                );
-            lookupBroker(topicName, backoff, returnFuture);
-            return returnFuture;
-        });
-    }
-
-    // this method do the real lookup into Pulsar broker.
-    // retFuture will be completed with null when meet error.
-    private void lookupBroker(String topicName,
-                              Backoff backoff,
-                              CompletableFuture<InetSocketAddress> retFuture) {
-        try {
-            // If channel is closing, complete a null to avoid brings in further handling.
-            rwLock.readLock().lock();
-            try {
-                if (closed) {
-                    retFuture.complete(null);
-                    if (log.isDebugEnabled()) {
-                        log.debug("[{}] Return null for getTopic({}) since channel closing",
-                            requestHandler.ctx.channel(), topicName);
-                    }
-                    return;
-                }
-            } finally {
-                rwLock.readLock().unlock();
-            }
-
-            ((PulsarClientImpl) pulsarService.getClient()).getLookup()
-                .getBroker(TopicName.get(topicName))
-                .thenAccept(pair -> {
-                    checkState(pair.getLeft().equals(pair.getRight()));
-                    retFuture.complete(pair.getLeft());
-                })
-                .exceptionally(th -> {
-                    long waitTimeMs = backoff.next();
-
-                    if (backoff.isMandatoryStopMade()) {
-                        log.warn("[{}] getBroker for topic failed, retried too many times, return null. throwable: ",
-                            requestHandler.ctx.channel(), topicName, waitTimeMs, th);
-                        retFuture.complete(null);
-                    } else {
-                        log.warn("[{}] getBroker for topic failed, will retry in {} ms. throwable: ",
-                            topicName, waitTimeMs, th);
-                        requestHandler.getPulsarService().getExecutor()
-                            .schedule(() -> lookupBroker(topicName, backoff, retFuture),
-                                waitTimeMs,
-                                TimeUnit.MILLISECONDS);
-                    }
-                    return null;
-                });
-        } catch (PulsarServerException e) {
-            log.error("[{}] getTopicBroker for topic {} failed get pulsar client, return null. throwable: ",
-                requestHandler.ctx.channel(), topicName, e);
-            retFuture.complete(null);
-        }
+        return topicService.getTopicBroker(topicName);
     }
 
     // For Produce/Consume we need to lookup, to make sure topic served by brokerService,
     // or will meet error: "Service unit is not ready when loading the topic".
-    // If getTopic is called after lookup, then no needLookup.
     // Returned Future wil complete with null when meet error.
     public CompletableFuture<PersistentTopic> getTopic(String topicName) {
-        CompletableFuture<PersistentTopic> topicCompletableFuture = new CompletableFuture<>();
-
-        // If channel is closing, complete a null to avoid brings in further handling.
-        rwLock.readLock().lock();
-        try {
-            if (closed) {
-                topicCompletableFuture.complete(null);
-                if (log.isDebugEnabled()) {
-                    log.debug("[{}] Return null for getTopic({}) since channel is closing",
-                        requestHandler.ctx.channel(), topicName);
-                }
-                return topicCompletableFuture;
-            }
-        } finally {
-            rwLock.readLock().unlock();
+        if (!reference(topicName, false)) {
+            return CompletableFuture.completedFuture(null);
         }
+        return topicService.getTopic(topicName);
+    }
 
-        return topics.computeIfAbsent(topicName,
-            t -> {
-                getTopicBroker(t).whenCompleteAsync((ignore, th) -> {
-                    if (th != null || ignore == null) {
-                        log.warn("[{}] Failed getTopicBroker {}, return null PersistentTopic. throwable: ",
-                            requestHandler.ctx.channel(), t, th);
-
-                        // get topic broker returns null. topic should be removed from LookupCache.
-                        if (ignore == null) {
-                            removeLookupCache(topicName);
-                        }
-
-                        topicCompletableFuture.complete(null);
-                        return;
-                    }
-
-                    if (log.isDebugEnabled()) {
-                        log.debug("[{}] getTopicBroker for {} in KafkaTopicManager. brokerAddress: {}",
-                            requestHandler.ctx.channel(), t, ignore);
-                    }
-
-                    brokerService
-                        .getTopic(t, true)
-                        .whenComplete((t2, throwable) -> {
-                            if (throwable != null) {
-                                log.error("[{}] Failed to getTopic {}. exception:",
-                                    requestHandler.ctx.channel(), t, throwable);
-                                // failed to getTopic from current broker, remove cache, which added in getTopicBroker.
-                                removeLookupCache(t);
-                                topicCompletableFuture.complete(null);
-                                return;
-                            }
+    // same as getTopic, for a produce request. reads of this connection are paused while publishing to the
+    // topic is throttled.
+    public CompletableFuture<PersistentTopic> getTopicForPublish(String topicName) {
+        if (!reference(topicName, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return topicService.getTopic(topicName);
+    }
 
-                            try {
-                                if (t2.isPresent()) {
-                                    PersistentTopic persistentTopic = (PersistentTopic) t2.get();
-                                    references.putIfAbsent(t, registerInPersistentTopic(persistentTopic));
-                                    topicCompletableFuture.complete(persistentTopic);
-                                } else {
-                                    log.error("[{}]Get empty topic for name {}",
-                                        requestHandler.ctx.channel(), t);
-                                    topicCompletableFuture.complete(null);
-                                }
-                            } catch (Exception e) {
-                                log.error("[{}] Failed to get client in registerInPersistentTopic {}. exception:",
-                                    requestHandler.ctx.channel(), t, e);
-                                topicCompletableFuture.complete(null);
-                            }
-                        });
-                });
-                return topicCompletableFuture;
-            });
+    // the topic is closed on this broker, e.g. its bundle is unloaded. it is referenced again once used later.
+    void onTopicClosed(String topicName) {
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Topic {} closed, remove it from TopicManager",
+                requestHandler.ctx.channel(), topicName);
+        }
+        topics.remove(topicName);
+        publishTopics.remove(topicName);
     }
 
-    // when channel close, release all the topics reference in persistentTopic
-    public synchronized void close() {
+    // when channel close, release the references of this connection to its topics.
+    public void close() {
         rwLock.writeLock().lock();
         try {
             if (closed) {
@@ -330,54 +184,8 @@ public class KafkaTopicManager {
             rwLock.writeLock().unlock();
         }
 
-        try {
-            this.cursorExpireTask.cancel(true);
-
-            for (CompletableFuture<KafkaTopicConsumerManager> manager : consumerTopicManagers.values()) {
-                manager.get().close();
-            }
-            consumerTopicManagers.clear();
-
-            for (Map.Entry<String, CompletableFuture<PersistentTopic>> entry : topics.entrySet()) {
-                String topicName = entry.getKey();
-                removeLookupCache(topicName);
-                CompletableFuture<PersistentTopic> topicFuture = entry.getValue();
-                if (log.isDebugEnabled()) {
-                    log.debug("[{}] remove producer {} for topic {} at close()",
-                        requestHandler.ctx.channel(), references.get(topicName), topicName);
-                }
-                if (references.get(topicName) != null) {
-                    topicFuture.get().removeProducer(references.get(topicName));
-                    references.remove(topicName);
-                }
-                topics.remove(topicName);
-            }
-            topics.clear();
-        } catch (Exception e) {
-            log.error("[{}] Failed to close KafkaTopicManager. exception:",
-                requestHandler.ctx.channel(), e);
-        }
-    }
-
-    public void deReference(String topicName) {
-        try {
-            removeLookupCache(topicName);
-
-            if (consumerTopicManagers.containsKey(topicName)) {
-                CompletableFuture<KafkaTopicConsumerManager> manager = consumerTopicManagers.get(topicName);
-                manager.get().close();
-                consumerTopicManagers.remove(topicName);
-            }
-
-            if (!topics.containsKey(topicName)) {
-                return;
-            }
-            topics.get(topicName).get().removeProducer(references.get(topicName));
-            topics.remove(topicName);
-        } catch (Exception e) {
-            log.error("[{}] Failed to close reference for individual topic {}. exception:",
-                requestHandler.ctx.channel(), topicName, e);
-        }
+        topics.forEach(topicName -> topicService.removeReference(topicName, requestHandler));
+        topics.clear();
+        publishTopics.clear();
     }
-
 }
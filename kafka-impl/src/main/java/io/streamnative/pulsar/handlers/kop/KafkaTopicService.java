@@ -0,0 +1,586 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.annotations.VisibleForTesting;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.util.ZkUtils;
+import org.apache.pulsar.broker.PulsarServerException;
+import org.apache.pulsar.broker.PulsarService;
+import org.apache.pulsar.broker.lookup.LookupResult;
+import org.apache.pulsar.broker.namespace.NamespaceService;
+import org.apache.pulsar.broker.service.BrokerService;
+import org.apache.pulsar.broker.service.BrokerServiceException;
+import org.apache.pulsar.broker.service.Producer;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.client.impl.Backoff;
+import org.apache.pulsar.client.impl.PulsarClientImpl;
+import org.apache.pulsar.common.lookup.data.LookupData;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.partition.PartitionedTopicMetadata;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.apache.pulsar.common.util.ObjectMapperFactory;
+import org.apache.pulsar.zookeeper.ZooKeeperCache;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+
+/**
+ * KafkaTopicService is the broker-wide state of the topics served to Kafka clients.
+ *
+ * <p>It resolves topics, registers one internal producer into each PersistentTopic, and keeps one
+ * KafkaTopicConsumerManager for each topic, all shared by the connections of this broker.
+ * Each connection references the topics it uses through its KafkaTopicManager, and a topic is released
+ * once no connection references it.
+ */
+@Slf4j
+public class KafkaTopicService {
+
+    private final PulsarService pulsarService;
+    private final BrokerService brokerService;
+
+    // consumerTopicManagers for consumers cache.
+    @Getter
+    private final ConcurrentHashMap<String, CompletableFuture<KafkaTopicConsumerManager>> consumerTopicManagers;
+
+    // cache for topics: <topicName, persistentTopic>
+    private final ConcurrentHashMap<String, CompletableFuture<PersistentTopic>> topics;
+    // cache for references in PersistentTopic: <topicName, producer>
+    private final ConcurrentHashMap<String, Producer> references;
+    // connections that reference each topic: <topicName, requestHandlers>
+    private final ConcurrentHashMap<String, Set<KafkaRequestHandler>> topicHandlers;
+    // connections that publish to each topic, a subset of topicHandlers: <topicName, requestHandlers>
+    private final ConcurrentHashMap<String, Set<KafkaRequestHandler>> topicPublishers;
+    // topics whose publishing is throttled by pulsar, e.g. by publish rate limit.
+    private final Set<String> throttledTopics;
+    // log start and end offsets of each topic: <topicName, tracker>
+    private final ConcurrentHashMap<String, LogOffsetTracker> logOffsetTrackers;
+    // partition counts and partition leaders for Metadata requests.
+    @Getter
+    private final KafkaMetadataCache metadataCache;
+    // advertised Kafka listeners of each active broker.
+    @Getter
+    private final AdvertisedListenersIndex advertisedListenersIndex;
+    // owner broker of each topic looked up.
+    @Getter
+    private final TopicLookupCache lookupCache;
+    // bytes of requests queued in all the Kafka connections.
+    @Getter
+    private final RequestMemoryPool requestMemoryPool;
+    // in-flight lookups of owner, shared by the topics in one bundle: <bundle, owner address>
+    private final ConcurrentHashMap<NamespaceBundle, CompletableFuture<InetSocketAddress>> bundleLookups;
+
+    // every 1 min, check if the KafkaTopicConsumerManagers have expired cursors.
+    // remove expired cursors, so backlog can be cleared.
+    private long checkPeriodMillis = 1 * 60 * 1000;
+    private long expirePeriodMillis = 2 * 60 * 1000;
+    private final ScheduledFuture<?> cursorExpireTask;
+
+    private volatile boolean closed;
+
+    // same as the znodes of the namespace policies and the partitioned topic metadata written by pulsar admin.
+    private static final String PARTITIONED_TOPIC_PATH_ZNODE = "/admin/partitioned-topics";
+    private static final String POLICIES_PATH_ZNODE = "/admin/policies";
+
+    KafkaTopicService(PulsarService pulsarService, KafkaServiceConfiguration kafkaConfig) {
+        this.pulsarService = pulsarService;
+        this.brokerService = pulsarService.getBrokerService();
+
+        consumerTopicManagers = new ConcurrentHashMap<>();
+        topics = new ConcurrentHashMap<>();
+        references = new ConcurrentHashMap<>();
+        topicHandlers = new ConcurrentHashMap<>();
+        topicPublishers = new ConcurrentHashMap<>();
+        throttledTopics = ConcurrentHashMap.newKeySet();
+        logOffsetTrackers = new ConcurrentHashMap<>();
+        metadataCache = new KafkaMetadataCache(kafkaConfig.getMetadataCacheMaxSize(),
+            kafkaConfig.getMetadataCacheTtlMs());
+        advertisedListenersIndex = new AdvertisedListenersIndex(pulsarService);
+        bundleLookups = new ConcurrentHashMap<>();
+        lookupCache = new TopicLookupCache(kafkaConfig.getLookupCacheMaxSize(), kafkaConfig.getLookupCacheTtlMs());
+        requestMemoryPool = new RequestMemoryPool(kafkaConfig.getMaxQueuedRequestBytes());
+
+        this.closed = false;
+
+        // check expired cursor every 1 min.
+        this.cursorExpireTask = brokerService.executor().scheduleWithFixedDelay(() -> {
+            long current = System.currentTimeMillis();
+            if (log.isDebugEnabled()) {
+                log.debug("Schedule a check of expired cursor");
+            }
+            consumerTopicManagers.values().forEach(future -> {
+                if (future != null && future.isDone() && !future.isCompletedExceptionally()) {
+                    KafkaTopicConsumerManager manager = future.join();
+                    if (manager != null) {
+                        manager.deleteExpiredCursor(current, expirePeriodMillis);
+                    }
+                }
+            });
+        }, checkPeriodMillis, checkPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    PulsarService getPulsarService() {
+        return pulsarService;
+    }
+
+    // add a reference of requestHandler to topic.
+    void addReference(String topicName, KafkaRequestHandler requestHandler) {
+        topicHandlers.compute(topicName, (t, handlers) -> {
+            if (handlers == null) {
+                handlers = ConcurrentHashMap.newKeySet();
+            }
+            handlers.add(requestHandler);
+            return handlers;
+        });
+    }
+
+    // add requestHandler as a publisher of topic, which is paused while publishing to the topic is throttled.
+    // connections that only fetch from the topic are not paused, so their fetches and heartbeats go on.
+    void addPublisher(String topicName, KafkaRequestHandler requestHandler) {
+        topicPublishers.compute(topicName, (t, handlers) -> {
+            if (handlers == null) {
+                handlers = ConcurrentHashMap.newKeySet();
+            }
+            handlers.add(requestHandler);
+            return handlers;
+        });
+        if (throttledTopics.contains(topicName)) {
+            requestHandler.setTopicThrottled(topicName, true);
+        }
+    }
+
+    // remove the reference of requestHandler to topic, the topic is released once there is no reference.
+    void removeReference(String topicName, KafkaRequestHandler requestHandler) {
+        topicPublishers.computeIfPresent(topicName, (t, handlers) -> {
+            handlers.remove(requestHandler);
+            return handlers.isEmpty() ? null : handlers;
+        });
+        topicHandlers.computeIfPresent(topicName, (t, handlers) -> {
+            handlers.remove(requestHandler);
+            if (handlers.isEmpty()) {
+                releaseTopic(t);
+                return null;
+            }
+            return handlers;
+        });
+    }
+
+    // called back by the internal producer cnx of topic, when pulsar throttles or resumes publishing to it.
+    // reads of the connections that publish to the topic are paused until it is resumed.
+    void setTopicThrottled(String topicName, boolean throttled) {
+        boolean changed = throttled ? throttledTopics.add(topicName) : throttledTopics.remove(topicName);
+        if (!changed) {
+            return;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Publishing to topic {} is {}", topicName, throttled ? "throttled" : "resumed");
+        }
+        Set<KafkaRequestHandler> handlers = topicPublishers.get(topicName);
+        if (handlers != null) {
+            handlers.forEach(handler -> handler.setTopicThrottled(topicName, throttled));
+        }
+    }
+
+    // topicName is in pulsar format. e.g. persistent://public/default/topic-partition-0
+    // future will complete with null when topic not owned by this broker, or meet error.
+    public CompletableFuture<KafkaTopicConsumerManager> getTopicConsumerManager(String topicName) {
+        CompletableFuture<KafkaTopicConsumerManager> future = consumerTopicManagers.computeIfAbsent(
+            topicName,
+            t -> {
+                CompletableFuture<PersistentTopic> topic = getTopic(t);
+                checkState(topic != null);
+
+                return topic.thenApply(t2 -> {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Call getTopicConsumerManager for {}, and create TCM for {}.",
+                            topicName, t2);
+                    }
+
+                    if (t2 == null) {
+                        return null;
+                    }
+                    // return consumer manager
+                    return new KafkaTopicConsumerManager(t2, getLogOffsetTracker(t2));
+                });
+            }
+        );
+        // not cache the failure, so a later call could retry, e.g. once the topic is owned by this broker.
+        future.whenComplete((tcm, throwable) -> {
+            if (tcm == null || throwable != null) {
+                consumerTopicManagers.remove(topicName, future);
+            }
+        });
+        return future;
+    }
+
+    public LogOffsetTracker getLogOffsetTracker(PersistentTopic persistentTopic) {
+        return logOffsetTrackers.computeIfAbsent(persistentTopic.getName(),
+            t -> new LogOffsetTracker((ManagedLedgerImpl) persistentTopic.getManagedLedger()));
+    }
+
+    public void removeLookupCache(String topicName) {
+        lookupCache.invalidate(topicName);
+    }
+
+    // whether topic exists in cache.
+    public boolean topicExists(String topicName) {
+        return topics.containsKey(topicName);
+    }
+
+    // exception throw for pulsar.getClient();
+    private Producer registerInPersistentTopic(PersistentTopic persistentTopic) throws Exception {
+        Producer producer = new InternalProducer(persistentTopic,
+            new InternalServerCnx(this, persistentTopic.getName()),
+            ((PulsarClientImpl) (pulsarService.getClient())).newRequestId(),
+            brokerService.generateUniqueProducerName());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Register Mock Producer {} into PersistentTopic {}",
+                producer, persistentTopic.getName());
+        }
+
+        // this will register and add USAGE_COUNT_UPDATER.
+        persistentTopic.addProducer(producer);
+        return producer;
+    }
+
+    // partition count of topic, 0 for a non-partitioned topic. read in-process from the partitioned topic
+    // metadata in global zk through the zk cache, the same way as pulsar lookup does.
+    public CompletableFuture<Integer> fetchPartitionCount(TopicName topicName) {
+        return brokerService.fetchPartitionedTopicMetadataAsync(topicName)
+            .thenApply(metadata -> metadata.partitions);
+    }
+
+    // create a partitioned topic in-process, by writing its metadata into global zk as the admin api does.
+    // partitions are created once they are looked up. completes normally if the topic already exists.
+    // as the admin api, it fails if the namespace does not exist or a non-partitioned topic has the same name.
+    public CompletableFuture<Void> createPartitionedTopic(TopicName topicName, int numPartitions) {
+        String policiesPath = String.format("%s/%s", POLICIES_PATH_ZNODE, topicName.getNamespace());
+        return pulsarService.getConfigurationCache().policiesCache().getAsync(policiesPath)
+            .thenCompose(policies -> {
+                if (!policies.isPresent() || policies.get().deleted) {
+                    return FutureUtil.<List<String>>failedFuture(
+                        new PulsarServerException("Namespace does not exist: " + topicName.getNamespace()));
+                }
+                return pulsarService.getNamespaceService().getListOfPersistentTopics(topicName.getNamespaceObject());
+            })
+            .thenCompose(topics -> {
+                if (topics.contains(topicName.toString())) {
+                    return FutureUtil.<Void>failedFuture(
+                        new PulsarServerException("A non-partitioned topic already exists: " + topicName));
+                }
+                return writePartitionedTopicMetadata(topicName, numPartitions);
+            });
+    }
+
+    private CompletableFuture<Void> writePartitionedTopicMetadata(TopicName topicName, int numPartitions) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        String path = String.format("%s/%s/%s/%s", PARTITIONED_TOPIC_PATH_ZNODE,
+            topicName.getNamespace(), topicName.getDomain().value(), topicName.getEncodedLocalName());
+        byte[] data;
+        try {
+            data = ObjectMapperFactory.getThreadLocal().writeValueAsBytes(new PartitionedTopicMetadata(numPartitions));
+        } catch (JsonProcessingException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        ZooKeeperCache globalZkCache = pulsarService.getGlobalZkCache();
+        ZkUtils.asyncCreateFullPathOptimistic(globalZkCache.getZooKeeper(), path, data,
+            ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, createdPath, ctx, name) -> {
+                if (rc == KeeperException.Code.OK.intValue() || rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                    // a missing node may be cached.
+                    globalZkCache.invalidate(path);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Created partitioned topic {} with {} partitions", topicName, numPartitions);
+                    }
+                    future.complete(null);
+                } else {
+                    log.error("Failed to create partitioned topic {}", topicName);
+                    future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+                }
+            }, null);
+        return future;
+    }
+
+    // lookup the broker that owns a topic, the topic is assigned to a broker if it has no owner.
+    // when error happens, the returned future will complete with null.
+    public CompletableFuture<InetSocketAddress> getTopicBroker(String topicName) {
+        if (closed) {
+            if (log.isDebugEnabled()) {
+                log.debug("Return null for getTopicBroker({}) since topic service closed", topicName);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return lookupCache.get(topicName, t -> {
+            CompletableFuture<InetSocketAddress> returnFuture = new CompletableFuture<>();
+            Backoff backoff = new Backoff(
+                100, TimeUnit.MILLISECONDS,
+                30, TimeUnit.SECONDS,
+                30, TimeUnit.SECONDS
+                );
+            lookupBroker(topicName, backoff, returnFuture);
+            return returnFuture;
+        });
+    }
+
+    // this method do the real lookup into Pulsar broker.
+    // retFuture will be completed with null when meet error.
+    private void lookupBroker(String topicName,
+                              Backoff backoff,
+                              CompletableFuture<InetSocketAddress> retFuture) {
+        if (closed) {
+            retFuture.complete(null);
+            if (log.isDebugEnabled()) {
+                log.debug("Return null for getTopic({}) since topic service closed", topicName);
+            }
+            return;
+        }
+
+        lookupBundleOwner(pulsarService.getNamespaceService(), TopicName.get(topicName))
+            .thenAccept(retFuture::complete)
+            .exceptionally(th -> {
+                long waitTimeMs = backoff.next();
+
+                if (backoff.isMandatoryStopMade()) {
+                    log.warn("getBroker for topic {} failed, retried too many times, return null. throwable: ",
+                        topicName, th);
+                    retFuture.complete(null);
+                } else {
+                    log.warn("getBroker for topic {} failed, will retry in {} ms. throwable: ",
+                        topicName, waitTimeMs, th);
+                    pulsarService.getExecutor()
+                        .schedule(() -> lookupBroker(topicName, backoff, retFuture),
+                            waitTimeMs,
+                            TimeUnit.MILLISECONDS);
+                }
+                return null;
+            });
+    }
+
+    // find the owner of the bundle of topic through the namespace service of this broker, which also assigns
+    // the bundle if it has no owner. ownership is per bundle, so concurrent lookups in a bundle share one.
+    @VisibleForTesting
+    CompletableFuture<InetSocketAddress> lookupBundleOwner(NamespaceService namespaceService, TopicName topicName) {
+        return namespaceService.getBundleAsync(topicName).thenCompose(bundle -> {
+            CompletableFuture<InetSocketAddress> future = bundleLookups.computeIfAbsent(bundle, b ->
+                namespaceService.getBrokerServiceUrlAsync(topicName, false)
+                    .thenCompose(result -> {
+                        if (!result.isPresent()) {
+                            return FutureUtil.failedFuture(
+                                new PulsarServerException("No broker was available to own " + bundle));
+                        }
+                        LookupResult lookupResult = result.get();
+                        if (lookupResult.isRedirect()) {
+                            // the bundle is to be assigned by another broker, e.g. the leader.
+                            return lookupByClient(topicName);
+                        }
+                        LookupData lookupData = lookupResult.getLookupData();
+                        String brokerUrl = lookupData.getBrokerUrl() != null
+                            ? lookupData.getBrokerUrl() : lookupData.getBrokerUrlTls();
+                        URI uri = URI.create(brokerUrl);
+                        return CompletableFuture.completedFuture(
+                            InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort()));
+                    }));
+            future.whenComplete((address, th) -> bundleLookups.remove(bundle, future));
+            return future;
+        });
+    }
+
+    // lookup by the pulsar client of this broker, which follows redirects to other brokers.
+    private CompletableFuture<InetSocketAddress> lookupByClient(TopicName topicName) {
+        try {
+            return ((PulsarClientImpl) pulsarService.getClient()).getLookup()
+                .getBroker(topicName)
+                .thenApply(pair -> {
+                    checkState(pair.getLeft().equals(pair.getRight()));
+                    return pair.getLeft();
+                });
+        } catch (PulsarServerException e) {
+            log.error("getTopicBroker for topic {} failed get pulsar client. throwable: ", topicName, e);
+            return FutureUtil.failedFuture(e);
+        }
+    }
+
+    // For Produce/Consume we need to lookup, to make sure topic served by brokerService,
+    // or will meet error: "Service unit is not ready when loading the topic".
+    // If getTopic is called after lookup, then no needLookup.
+    // Returned Future wil complete with null when meet error.
+    public CompletableFuture<PersistentTopic> getTopic(String topicName) {
+        if (closed) {
+            if (log.isDebugEnabled()) {
+                log.debug("Return null for getTopic({}) since topic service closed", topicName);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return topics.computeIfAbsent(topicName,
+            t -> {
+                CompletableFuture<PersistentTopic> topicCompletableFuture = new CompletableFuture<>();
+                getTopicBroker(t).whenCompleteAsync((ignore, th) -> {
+                    if (th != null || ignore == null) {
+                        log.warn("Failed getTopicBroker {}, return null PersistentTopic. throwable: ", t, th);
+
+                        // get topic broker returns null. topic should be removed from LookupCache.
+                        if (ignore == null) {
+                            removeLookupCache(topicName);
+                        }
+
+                        // not cache the failure, so a later call could retry.
+                        topics.remove(t, topicCompletableFuture);
+                        topicCompletableFuture.complete(null);
+                        return;
+                    }
+
+                    if (log.isDebugEnabled()) {
+                        log.debug("getTopicBroker for {} in KafkaTopicService. brokerAddress: {}", t, ignore);
+                    }
+
+                    brokerService
+                        .getTopic(t, true)
+                        .whenComplete((t2, throwable) -> {
+                            if (throwable != null) {
+                                log.error("Failed to getTopic {}. exception:", t, throwable);
+                                // failed to getTopic from current broker, remove cache, which added in getTopicBroker.
+                                removeLookupCache(t);
+                                topics.remove(t, topicCompletableFuture);
+                                topicCompletableFuture.complete(null);
+                                return;
+                            }
+
+                            try {
+                                if (t2.isPresent()) {
+                                    PersistentTopic persistentTopic = (PersistentTopic) t2.get();
+                                    references.computeIfAbsent(t, name -> {
+                                        try {
+                                            return registerInPersistentTopic(persistentTopic);
+                                        } catch (Exception e) {
+                                            throw new RuntimeException(e);
+                                        }
+                                    });
+                                    topicCompletableFuture.complete(persistentTopic);
+                                } else {
+                                    log.error("Get empty topic for name {}", t);
+                                    topics.remove(t, topicCompletableFuture);
+                                    topicCompletableFuture.complete(null);
+                                }
+                            } catch (Exception e) {
+                                log.error("Failed to get client in registerInPersistentTopic {}. exception:", t, e);
+                                topics.remove(t, topicCompletableFuture);
+                                topicCompletableFuture.complete(null);
+                            }
+                        });
+                });
+                return topicCompletableFuture;
+            });
+    }
+
+    // called back when the internal producer of a topic is closed, e.g. by bundle unload.
+    // only this topic is invalidated in the connections that reference it, and the connections are kept.
+    // requests in flight on the topic fail with NOT_LEADER_FOR_PARTITION, so their clients lookup the topic again.
+    void onTopicClosed(String topicName) {
+        Set<KafkaRequestHandler> handlers = topicHandlers.remove(topicName);
+        Set<KafkaRequestHandler> publishers = topicPublishers.remove(topicName);
+        // the topic may be moved to another broker.
+        removeLookupCache(topicName);
+        metadataCache.invalidateOwner(topicName);
+        releaseTopic(topicName);
+        boolean throttled = throttledTopics.remove(topicName);
+        if (handlers != null) {
+            handlers.forEach(handler -> handler.getTopicManager().onTopicClosed(topicName));
+        }
+        if (throttled && publishers != null) {
+            publishers.forEach(handler -> handler.setTopicThrottled(topicName, false));
+        }
+    }
+
+    // whether the error is caused by the topic being closed on this broker, e.g. its bundle is unloaded.
+    static boolean isTopicClosedError(Throwable throwable) {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (t instanceof BrokerServiceException.TopicClosedException
+                || t instanceof BrokerServiceException.TopicFencedException
+                || t instanceof BrokerServiceException.ServiceUnitNotReadyException
+                || t instanceof ManagedLedgerException.ManagedLedgerAlreadyClosedException
+                || t instanceof ManagedLedgerException.ManagedLedgerFencedException
+                || t instanceof ManagedLedgerException.CursorAlreadyClosedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // remove the cached state of a topic, and the producer registered into it.
+    private void releaseTopic(String topicName) {
+        logOffsetTrackers.remove(topicName);
+
+        CompletableFuture<KafkaTopicConsumerManager> manager = consumerTopicManagers.remove(topicName);
+        if (manager != null) {
+            manager.thenAccept(tcm -> {
+                if (tcm != null) {
+                    tcm.close();
+                }
+            });
+        }
+
+        CompletableFuture<PersistentTopic> topicFuture = topics.remove(topicName);
+        Producer producer = references.remove(topicName);
+        if (topicFuture != null && producer != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("remove producer {} for topic {}", producer, topicName);
+            }
+            topicFuture.thenAccept(persistentTopic -> {
+                if (persistentTopic != null) {
+                    persistentTopic.removeProducer(producer);
+                }
+            });
+        }
+    }
+
+    // when broker close, release all the topics reference in persistentTopic
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            this.cursorExpireTask.cancel(true);
+
+            topicHandlers.clear();
+            topics.keySet().forEach(this::releaseTopic);
+            consumerTopicManagers.keySet().forEach(this::releaseTopic);
+            lookupCache.invalidateAll();
+            metadataCache.clear();
+            advertisedListenersIndex.close();
+        } catch (Exception e) {
+            log.error("Failed to close KafkaTopicService. exception:", e);
+        }
+    }
+}
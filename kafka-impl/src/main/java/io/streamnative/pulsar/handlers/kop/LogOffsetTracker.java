@@ -0,0 +1,121 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
+import io.streamnative.pulsar.handlers.kop.utils.OffsetFinder;
+import io.streamnative.pulsar.handlers.kop.utils.TimestampIndex;
+import lombok.Getter;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.kafka.common.requests.FetchResponse;
+
+/**
+ * LogOffsetTracker keeps the log start offset and the log end offset of a partition.
+ * The log end offset is also used as the high watermark, since an entry is readable once it is persisted.
+ *
+ * <p>The log end is updated when KoP publishes an entry. The managed ledger may also be written by Pulsar
+ * producers, and its ledgers are rolled over and trimmed without notification. So the cached offsets are
+ * checked against the last confirmed entry and the first ledger of the managed ledger, which are lock-free reads,
+ * and only encoded again once they changed.
+ */
+public class LogOffsetTracker {
+
+    private final ManagedLedgerImpl managedLedger;
+    // sparse index of publish time, used to find offsets by timestamp.
+    @Getter
+    private final TimestampIndex timestampIndex;
+
+    // position and its offset are kept in one object, so they are always read consistently.
+    private volatile PositionOffset logEnd;
+    private volatile PositionOffset logStart;
+
+    LogOffsetTracker(ManagedLedgerImpl managedLedger) {
+        this.managedLedger = managedLedger;
+        this.timestampIndex = new TimestampIndex(managedLedger);
+    }
+
+    // called when an entry is persisted into the partition. its publish time is in [minPublishTime, maxPublishTime].
+    public void onEntryPublished(long ledgerId, long entryId, long minPublishTime, long maxPublishTime) {
+        timestampIndex.add(ledgerId, entryId, minPublishTime, maxPublishTime);
+
+        PositionImpl position = PositionImpl.get(ledgerId, entryId);
+        PositionOffset current = logEnd;
+        if (current == null || current.position.compareTo(position) < 0) {
+            logEnd = new PositionOffset(position);
+        }
+    }
+
+    // the offset of the last confirmed entry. no entry in ledger, then entry id could be -1, and offset of 0 is used.
+    public long getLogEndOffset() {
+        PositionImpl lastConfirmed = (PositionImpl) managedLedger.getLastConfirmedEntry();
+        PositionOffset current = logEnd;
+        if (current != null && current.position.equals(lastConfirmed)) {
+            return current.offset;
+        }
+        current = new PositionOffset(lastConfirmed);
+        logEnd = current;
+        return current.offset;
+    }
+
+    public long getHighWatermark() {
+        return getLogEndOffset();
+    }
+
+    // the first valid position, or null if there is no valid position.
+    public PositionImpl getLogStartPosition() {
+        PositionImpl firstPosition = managedLedger.getFirstPosition();
+        if (firstPosition == null) {
+            return null;
+        }
+        PositionOffset current = logStart;
+        // the first valid position changes only when the ledgers before it are trimmed.
+        if (current != null && current.firstLedgerId == firstPosition.getLedgerId()) {
+            return current.position;
+        }
+        PositionImpl position = OffsetFinder.getFirstValidPosition(managedLedger);
+        if (position == null) {
+            return null;
+        }
+        logStart = new PositionOffset(position, firstPosition.getLedgerId());
+        return position;
+    }
+
+    // the offset of the first valid position, or INVALID_LOG_START_OFFSET if there is no valid position.
+    public long getLogStartOffset() {
+        PositionImpl position = getLogStartPosition();
+        if (position == null) {
+            return FetchResponse.INVALID_LOG_START_OFFSET;
+        }
+        return MessageIdUtils.getOffset(position.getLedgerId(), position.getEntryId());
+    }
+
+    private static final class PositionOffset {
+        private final PositionImpl position;
+        private final long offset;
+        // only for log start, the first ledger when position is computed.
+        private final long firstLedgerId;
+
+        PositionOffset(PositionImpl position) {
+            this(position, -1L);
+        }
+
+        PositionOffset(PositionImpl position, long firstLedgerId) {
+            this.position = position;
+            long entryId = position.getEntryId();
+            this.offset = MessageIdUtils.getOffset(position.getLedgerId(), entryId == -1 ? 0 : entryId);
+            this.firstLedgerId = firstLedgerId;
+        }
+    }
+}
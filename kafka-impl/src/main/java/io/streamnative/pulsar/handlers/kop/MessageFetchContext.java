@@ -22,14 +22,13 @@ import io.netty.util.Recycler;
 import io.netty.util.Recycler.Handle;
 import io.streamnative.pulsar.handlers.kop.KafkaCommandDecoder.KafkaHeaderAndRequest;
 import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import lombok.extern.slf4j.Slf4j;
@@ -42,6 +41,7 @@ import org.apache.bookkeeper.mledger.impl.NonDurableCursorImpl;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.LeaderNotAvailableException;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.requests.AbstractResponse;
@@ -58,6 +58,10 @@ public final class MessageFetchContext {
 
     private KafkaRequestHandler requestHandler;
     private KafkaHeaderAndRequest fetchRequest;
+    // tcm of each partition, used to get the recent entry size when planning reads.
+    private Map<TopicPartition, KafkaTopicConsumerManager> consumerManagers;
+    // read entries by position without cursors, then the cursor of each partition in the read map is null.
+    private boolean readWithoutCursor;
 
     // recycler and get for this object
     public static MessageFetchContext get(KafkaRequestHandler requestHandler,
@@ -65,6 +69,8 @@ public final class MessageFetchContext {
         MessageFetchContext context = RECYCLER.get();
         context.requestHandler = requestHandler;
         context.fetchRequest = fetchRequest;
+        context.consumerManagers = new ConcurrentHashMap<>();
+        context.readWithoutCursor = requestHandler.getKafkaConfig().isEnableFetchWithoutCursor();
         return context;
     }
 
@@ -83,6 +89,8 @@ public final class MessageFetchContext {
     public void recycle() {
         requestHandler = null;
         fetchRequest = null;
+        consumerManagers = null;
+        readWithoutCursor = false;
         recyclerHandle.recycle(this);
     }
 
@@ -144,7 +152,9 @@ public final class MessageFetchContext {
                                     pair.getKey(), offset, MessageIdUtils.getPosition(offset));
                             }
 
-                            Pair<ManagedCursor, Long> cursorLongPair = tcm.remove(offset);
+                            Pair<ManagedCursor, Long> cursorLongPair = readWithoutCursor
+                                ? Pair.of(null, offset)
+                                : tcm.remove(offset);
                             if (cursorLongPair == null) {
                                 log.warn("KafkaTopicConsumerManager.remove({}) return null for topic {}. "
                                         + "Fetch for topic return error.",
@@ -162,6 +172,7 @@ public final class MessageFetchContext {
                                 return null;
                             }
 
+                            consumerManagers.put(pair.getKey(), tcm);
                             return Pair.of(pair.getKey(), cursorLongPair);
                         })
                         .filter(x -> x != null)
@@ -182,62 +193,103 @@ public final class MessageFetchContext {
                               LinkedHashMap<TopicPartition, PartitionData<MemoryRecords>> responseData) {
         AtomicInteger bytesRead = new AtomicInteger(0);
         Map<TopicPartition, List<Entry>> entryValues = new ConcurrentHashMap<>();
+        // partitions may not be read in a round, but their cursors still need to be added back to TCM.
+        cursors.keySet().forEach(topicPartition -> entryValues.put(topicPartition, Lists.newArrayList()));
 
-        readMessagesInternal(fetch, cursors, bytesRead, entryValues, resultFuture, responseData);
+        // if waitTime <= 0, then no time wait, return after first round of read.
+        int waitTime = ((FetchRequest) fetch.getRequest()).maxWait(); // in ms
+        long deadline = System.currentTimeMillis() + Math.max(waitTime, 0);
+
+        readMessagesInternal(fetch, cursors, deadline, bytesRead, entryValues, resultFuture, responseData);
     }
 
     private void readMessagesInternal(KafkaHeaderAndRequest fetch,
                                       Map<TopicPartition, Pair<ManagedCursor, Long>> cursors,
+                                      long deadline,
                                       AtomicInteger bytesRead,
                                       Map<TopicPartition, List<Entry>> responseValues,
                                       CompletableFuture<AbstractResponse> resultFuture,
                                       LinkedHashMap<TopicPartition, PartitionData<MemoryRecords>> responseData) {
         AtomicInteger entriesRead = new AtomicInteger(0);
+        FetchRequest request = (FetchRequest) fetch.getRequest();
+
+        // split the bytes left of request and of each partition into the entries to read in this round.
+        Map<TopicPartition, Integer> partitionBytesLeft = cursors.keySet().stream()
+            .collect(Collectors.toMap(
+                topicPartition -> topicPartition,
+                topicPartition -> request.fetchData().get(topicPartition).maxBytes
+                    - (int) responseValues.getOrDefault(topicPartition, Collections.emptyList()).stream()
+                        .mapToLong(Entry::getLength).sum()));
+        Map<TopicPartition, Integer> readPlan = FetchReadPlanner.plan(
+            partitionBytesLeft,
+            request.maxBytes() - bytesRead.get(),
+            topicPartition -> {
+                KafkaTopicConsumerManager tcm = consumerManagers.get(topicPartition);
+                return tcm == null ? FetchReadPlanner.DEFAULT_AVERAGE_ENTRY_SIZE : tcm.getAverageEntrySize();
+            });
+
         // here do the real read, and in read callback put cursor back to KafkaTopicConsumerManager.
-        Map<TopicPartition, CompletableFuture<Entry>> readFutures = readAllCursorOnce(cursors);
+        Map<TopicPartition, CompletableFuture<List<Entry>>> readFutures = readAllCursorOnce(cursors, readPlan);
         CompletableFuture.allOf(readFutures.values().stream().toArray(CompletableFuture<?>[]::new))
             .whenComplete((ignore, ex) -> {
-                // keep entries since all read completed. currently only read 1 entry each time.
-                readFutures.forEach((kafkaTopic, readEntry) -> {
+                // keep entries since all read completed.
+                readFutures.forEach((kafkaTopic, readEntries) -> {
                     try {
-                        Entry entry = readEntry.get();
+                        List<Entry> entries = readEntries.get();
                         List<Entry> entryList = responseValues.computeIfAbsent(kafkaTopic, l -> Lists.newArrayList());
 
-                        if (entry != null) {
-                            entryList.add(entry);
-                            entriesRead.incrementAndGet();
-                            bytesRead.addAndGet(entry.getLength());
+                        if (!entries.isEmpty()) {
+                            long readSize = 0;
+                            for (Entry entry : entries) {
+                                readSize += entry.getLength();
+                            }
+                            entryList.addAll(entries);
+                            entriesRead.addAndGet(entries.size());
+                            bytesRead.addAndGet((int) readSize);
+
+                            KafkaTopicConsumerManager tcm = consumerManagers.get(kafkaTopic);
+                            if (tcm != null) {
+                                tcm.recordEntriesRead(entries.size(), readSize);
+                            }
                             if (log.isDebugEnabled()) {
-                                log.debug("Request {}: For topic {}, entries in list: {}. add new entry {}:{}",
+                                log.debug("Request {}: For topic {}, entries in list: {}. add {} new entries, "
+                                        + "size: {}, planned entries: {}",
                                     fetch.getHeader(), kafkaTopic.toString(), entryList.size(),
-                                    entry.getLedgerId(), entry.getEntryId());
+                                    entries.size(), readSize, readPlan.get(kafkaTopic));
                             }
                         }
                     } catch (Exception e) {
-                        // readEntry.get failed because of readEntriesFailed. return error for this partition
-                        log.error("Request {}: Failed readEntry.get for topic: {}. ",
+                        // readEntries.get failed because of readEntriesFailed. return error for this partition
+                        log.error("Request {}: Failed readEntries.get for topic: {}. ",
                             fetch.getHeader(), kafkaTopic, e);
 
                         // delete related cursor in TCM
-                        TopicName pulsarTopicName = pulsarTopicName(kafkaTopic, requestHandler.getNamespace());
-                        requestHandler.getTopicManager()
-                            .getTopicConsumerManager(pulsarTopicName.toString())
-                            .thenAccept(cm -> {
-                                // Notice, channel may be close, then TCM would be null.
-                                if (cm != null) {
-                                    cm.deleteOneCursorAsync(
-                                        cursors.get(kafkaTopic).getLeft(),
-                                        "cursor.readEntry fail. deleteCursor");
-                                } else {
-                                    log.warn("Cursor deleted while TCM close.");
-                                }
-                            });
+                        if (!readWithoutCursor) {
+                            TopicName pulsarTopicName = pulsarTopicName(kafkaTopic, requestHandler.getNamespace());
+                            requestHandler.getTopicManager()
+                                .getTopicConsumerManager(pulsarTopicName.toString())
+                                .thenAccept(cm -> {
+                                    // Notice, channel may be close, then TCM would be null.
+                                    if (cm != null) {
+                                        cm.deleteOneCursorAsync(
+                                            cursors.get(kafkaTopic).getLeft(),
+                                            "cursor.readEntry fail. deleteCursor");
+                                    } else {
+                                        log.warn("Cursor deleted while TCM close.");
+                                    }
+                                });
+                        }
 
                         cursors.remove(kafkaTopic);
+                        List<Entry> entriesReadBefore = responseValues.remove(kafkaTopic);
+                        if (entriesReadBefore != null) {
+                            entriesReadBefore.forEach(Entry::release);
+                        }
 
+                        // topic closed on this broker, e.g. by bundle unload, then client should find the new owner.
                         responseData.put(kafkaTopic,
                             new FetchResponse.PartitionData(
-                            Errors.NONE,
+                            KafkaTopicService.isTopicClosedError(e) ? Errors.NOT_LEADER_FOR_PARTITION : Errors.NONE,
                             FetchResponse.INVALID_HIGHWATERMARK,
                             FetchResponse.INVALID_LAST_STABLE_OFFSET,
                             FetchResponse.INVALID_LOG_START_OFFSET,
@@ -246,67 +298,67 @@ public final class MessageFetchContext {
                     }
                 });
 
-                FetchRequest request = (FetchRequest) fetch.getRequest();
                 int maxBytes = request.maxBytes();
                 int minBytes = request.minBytes();
-                int waitTime = request.maxWait(); // in ms
-                // if endTime <= 0, then no time wait, wait for minBytes.
-                long endTime = waitTime > 0 ? System.currentTimeMillis() + waitTime : waitTime;
+                long now = System.currentTimeMillis();
 
                 int allSize = bytesRead.get();
 
                 if (log.isDebugEnabled()) {
                     log.debug("Request {}: One round read {} entries, "
-                            + "allSize/maxBytes/minBytes/endTime: {}/{}/{}/{}",
+                            + "allSize/maxBytes/minBytes/deadline: {}/{}/{}/{}",
                         fetch.getHeader(), entriesRead.get(),
-                        allSize, maxBytes, minBytes, new Date(endTime));
+                        allSize, maxBytes, minBytes, new Date(deadline));
                 }
 
-                // all partitions read no entry, return earlier;
+                // all partitions reached their maxBytes, return;
                 // reach maxTime, return;
-                // reach minBytes if no endTime, return;
-                if ((allSize == 0 && entriesRead.get() == 0)
-                    || (endTime > 0 && endTime <= System.currentTimeMillis())
+                // reach minBytes or maxBytes, return;
+                // otherwise wait in purgatory until new entries are published or maxTime reached.
+                if (readPlan.isEmpty()
+                    || deadline <= now
                     || allSize > minBytes
-                    || allSize > maxBytes){
+                    || allSize >= maxBytes){
                     if (log.isDebugEnabled()) {
                         log.debug(" Request {}: Complete read {} entries with size {}",
                             fetch.getHeader(), entriesRead.get(), allSize);
                     }
 
-                    AtomicBoolean allPartitionsNoEntry = new AtomicBoolean(true);
                     responseValues.forEach((kafkaPartition, entries) -> {
                         final FetchResponse.PartitionData partitionData;
 
                         // Add cursor and offset back to TCM when all the read completed.
-                        TopicName pulsarTopicName = pulsarTopicName(kafkaPartition, requestHandler.getNamespace());
                         Pair<ManagedCursor, Long> pair = cursors.get(kafkaPartition);
-                        requestHandler.getTopicManager()
-                            .getTopicConsumerManager(pulsarTopicName.toString())
-                            .thenAccept(cm -> {
-                                // Notice, channel may be close, then TCM would be null.
-                                if (cm != null) {
-                                    cm.add(pair.getRight(), pair);
-                                } else {
-                                    log.warn("Cursor deleted while TCM close, failed to add cursor back to TCM.");
-                                }
-                            });
+                        if (!readWithoutCursor) {
+                            TopicName pulsarTopicName = pulsarTopicName(kafkaPartition, requestHandler.getNamespace());
+                            requestHandler.getTopicManager()
+                                .getTopicConsumerManager(pulsarTopicName.toString())
+                                .thenAccept(cm -> {
+                                    // Notice, channel may be close, then TCM would be null.
+                                    if (cm != null) {
+                                        cm.add(pair.getRight(), pair);
+                                    } else {
+                                        log.warn("Cursor deleted while TCM close, "
+                                            + "failed to add cursor back to TCM.");
+                                    }
+                                });
+                        }
+
+                        // cached offsets of the partition, so consumers get the lag without scanning ledgers.
+                        LogOffsetTracker logOffsetTracker = consumerManagers.get(kafkaPartition)
+                            .getLogOffsetTracker();
+                        long highWatermark = logOffsetTracker.getHighWatermark();
+                        long logStartOffset = logOffsetTracker.getLogStartOffset();
 
                         if (entries.isEmpty()) {
                             partitionData = new FetchResponse.PartitionData(
                                 Errors.NONE,
-                                FetchResponse.INVALID_HIGHWATERMARK,
-                                FetchResponse.INVALID_LAST_STABLE_OFFSET,
-                                FetchResponse.INVALID_LOG_START_OFFSET,
+                                highWatermark,
+                                highWatermark,
+                                logStartOffset,
                                 null,
                                 MemoryRecords.EMPTY);
                         } else {
-                            allPartitionsNoEntry.set(false);
-                            Entry entry = entries.get(entries.size() - 1);
-                            long entryOffset = MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId());
-                            long highWatermark = entryOffset
-                                + cursors.get(kafkaPartition).getLeft().getNumberOfEntries();
-
                             // by default kafka is produced message in batched mode.
                             MemoryRecords records;
                             records = entriesToRecords(entries);
@@ -315,115 +367,175 @@ public final class MessageFetchContext {
                                 Errors.NONE,
                                 highWatermark,
                                 highWatermark,
-                                highWatermark,
+                                logStartOffset,
                                 null,
                                 records);
                         }
                         responseData.put(kafkaPartition, partitionData);
                     });
 
-                    if (allPartitionsNoEntry.get()) {
-                        if (log.isDebugEnabled()) {
-                            log.debug("Request {}: All partitions for request read 0 entry",
-                                fetch.getHeader());
-                        }
-
-                        requestHandler.getPulsarService().getExecutor().schedule(() -> {
-                            resultFuture.complete(
-                                new FetchResponse(Errors.NONE,
-                                    responseData,
-                                    ((Integer) THROTTLE_TIME_MS.defaultValue),
-                                    ((FetchRequest) fetch.getRequest()).metadata().sessionId()));
-                            this.recycle();
-                        }, waitTime, TimeUnit.MILLISECONDS);
-                    } else {
-                        resultFuture.complete(
-                            new FetchResponse(
-                                Errors.NONE,
-                                responseData,
-                                ((Integer) THROTTLE_TIME_MS.defaultValue),
-                                ((FetchRequest) fetch.getRequest()).metadata().sessionId()));
-                        this.recycle();
-                    }
+                    resultFuture.complete(
+                        new FetchResponse(
+                            Errors.NONE,
+                            responseData,
+                            ((Integer) THROTTLE_TIME_MS.defaultValue),
+                            ((FetchRequest) fetch.getRequest()).metadata().sessionId()));
+                    this.recycle();
                 } else {
                     if (log.isDebugEnabled()) {
-                        log.debug("Request {}: Read time or size not reach, do another round of read before return.",
-                            fetch.getHeader());
+                        log.debug("Request {}: Read time or size not reach, wait for new entries before "
+                                + "another round of read.", fetch.getHeader());
                     }
-                    // need do another round read
-                    readMessagesInternal(fetch, cursors, bytesRead, responseValues, resultFuture, responseData);
+                    // need do another round read, once any of the partitions has new entries.
+                    DelayedFetch delayedFetch = new DelayedFetch(
+                        deadline - now,
+                        () -> hasNewEntries(cursors),
+                        () -> requestHandler.runWhenWritable(
+                            () -> readMessagesInternal(
+                                fetch, cursors, deadline, bytesRead, responseValues, resultFuture, responseData),
+                            () -> dropFetch(fetch, responseValues, resultFuture)),
+                        requestHandler.getPulsarService().getExecutor());
+                    List<Object> delayedFetchKeys = Lists.newArrayListWithExpectedSize(cursors.size());
+                    cursors.keySet().forEach(topicPartition -> delayedFetchKeys.add(
+                        DelayedFetch.keyFor(pulsarTopicName(topicPartition, requestHandler.getNamespace()))));
+                    requestHandler.getFetchPurgatory().tryCompleteElseWatch(delayedFetch, delayedFetchKeys);
                 }
             });
     }
 
-    private Map<TopicPartition, CompletableFuture<Entry>> readAllCursorOnce(
-        Map<TopicPartition, Pair<ManagedCursor, Long>> cursors) {
-        Map<TopicPartition, CompletableFuture<Entry>> readFutures = new ConcurrentHashMap<>();
+    // the connection is closed before another round of read, so the entries read are released and the fetch
+    // fails. the cursors taken from TCM are deleted when TCM is closed with the connection.
+    private void dropFetch(KafkaHeaderAndRequest fetch,
+                           Map<TopicPartition, List<Entry>> responseValues,
+                           CompletableFuture<AbstractResponse> resultFuture) {
+        responseValues.values().forEach(entries -> entries.forEach(Entry::release));
+        responseValues.clear();
+        resultFuture.complete(
+            fetch.getRequest().getErrorResponse(new LeaderNotAvailableException("Channel is closing!")));
+        this.recycle();
+    }
+
+    // whether any of the partitions has new entries to read, checked by the delayed fetch.
+    private boolean hasNewEntries(Map<TopicPartition, Pair<ManagedCursor, Long>> cursors) {
+        for (Map.Entry<TopicPartition, Pair<ManagedCursor, Long>> entry : cursors.entrySet()) {
+            Pair<ManagedCursor, Long> pair = entry.getValue();
+            if (readWithoutCursor) {
+                KafkaTopicConsumerManager tcm = consumerManagers.get(entry.getKey());
+                if (tcm != null && tcm.hasEntriesFrom(pair.getRight())) {
+                    return true;
+                }
+            } else if (pair.getLeft().hasMoreEntries()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        cursors.entrySet().forEach(cursorOffsetPair -> {
-            ManagedCursor cursor;
-            CompletableFuture<Entry> readFuture = new CompletableFuture<>();
+    private Map<TopicPartition, CompletableFuture<List<Entry>>> readAllCursorOnce(
+        Map<TopicPartition, Pair<ManagedCursor, Long>> cursors,
+        Map<TopicPartition, Integer> readPlan) {
+        Map<TopicPartition, CompletableFuture<List<Entry>>> readFutures = new ConcurrentHashMap<>();
+
+        readPlan.forEach((topicPartition, entriesToRead) -> {
+            Pair<ManagedCursor, Long> cursorOffsetPair = cursors.get(topicPartition);
+            if (cursorOffsetPair == null) {
+                return;
+            }
+            if (readWithoutCursor) {
+                readFutures.putIfAbsent(topicPartition,
+                    readWithoutCursorOnce(topicPartition, cursorOffsetPair.getRight(), entriesToRead, cursors));
+                return;
+            }
+            CompletableFuture<List<Entry>> readFuture = new CompletableFuture<>();
 
-            cursor = cursorOffsetPair.getValue().getLeft();
-            long currentOffset = cursorOffsetPair.getValue().getRight();
+            ManagedCursor cursor = cursorOffsetPair.getLeft();
+            long currentOffset = cursorOffsetPair.getRight();
 
-            // only read 1 entry currently.
-            cursor.asyncReadEntries(1,
+            // read as many entries as planned for this partition in one call.
+            cursor.asyncReadEntries(entriesToRead,
                 new ReadEntriesCallback() {
                     @Override
                     public void readEntriesComplete(List<Entry> list, Object o) {
                         TopicName topicName = pulsarTopicName(
-                            cursorOffsetPair.getKey(),
+                            topicPartition,
                             requestHandler.getNamespace());
 
-                        Entry entry = null;
                         if (!list.isEmpty()) {
-                            entry = list.get(0);
-                            long offset = MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId());
-                            PositionImpl currentPosition = PositionImpl
-                                .get(entry.getLedgerId(), entry.getEntryId());
+                            Entry lastEntry = list.get(list.size() - 1);
+                            PositionImpl lastPosition = PositionImpl
+                                .get(lastEntry.getLedgerId(), lastEntry.getEntryId());
 
                             // commit the offset, so backlog not affect by this cursor.
-                            commitOffset((NonDurableCursorImpl) cursor, currentPosition);
+                            commitOffset((NonDurableCursorImpl) cursor, lastPosition);
 
                             // get next offset
                             PositionImpl nextPosition = ((NonDurableCursorImpl) cursor)
-                                .getNextAvailablePosition(currentPosition);
+                                .getNextAvailablePosition(lastPosition);
 
                             long nextOffset = MessageIdUtils
                                 .getOffset(nextPosition.getLedgerId(), nextPosition.getEntryId());
 
                             // put next offset in to passed in cursors map. and add back to TCM when all read complete.
-                            cursors.put(cursorOffsetPair.getKey(), Pair.of(cursor, nextOffset));
+                            cursors.put(topicPartition, Pair.of(cursor, nextOffset));
 
                             if (log.isDebugEnabled()) {
-                                log.debug("Topic {} success read entry: ledgerId: {}, entryId: {}, size: {},"
-                                        + " ConsumerManager original offset: {}, entryOffset: {} - {}, "
-                                        + "nextOffset: {} - {}",
-                                    topicName.toString(), entry.getLedgerId(), entry.getEntryId(),
-                                    entry.getLength(), currentOffset, offset, currentPosition,
-                                    nextOffset, nextPosition);
+                                log.debug("Topic {} success read {} entries of {} planned, last entry: {}, "
+                                        + " ConsumerManager original offset: {}, nextOffset: {} - {}",
+                                    topicName.toString(), list.size(), entriesToRead, lastPosition,
+                                    currentOffset, nextOffset, nextPosition);
                             }
                         }
 
-                        readFuture.complete(entry);
+                        readFuture.complete(list);
                     }
 
                     @Override
                     public void readEntriesFailed(ManagedLedgerException e, Object o) {
                         log.error("Error read entry for topic: {}",
-                            pulsarTopicName(cursorOffsetPair.getKey(), requestHandler.getNamespace()));
+                            pulsarTopicName(topicPartition, requestHandler.getNamespace()));
 
                         readFuture.completeExceptionally(e);
                     }
                 }, null);
 
-            readFutures.putIfAbsent(cursorOffsetPair.getKey(), readFuture);
+            readFutures.putIfAbsent(topicPartition, readFuture);
         });
 
         return readFutures;
     }
 
+    // read entries of a partition by position, and put the offset after the last read entry into cursors map.
+    private CompletableFuture<List<Entry>> readWithoutCursorOnce(
+        TopicPartition topicPartition,
+        long currentOffset,
+        int entriesToRead,
+        Map<TopicPartition, Pair<ManagedCursor, Long>> cursors) {
+        return consumerManagers.get(topicPartition)
+            .asyncReadEntries(currentOffset, entriesToRead)
+            .whenComplete((list, e) -> {
+                if (e != null) {
+                    log.error("Error read entry for topic: {}",
+                        pulsarTopicName(topicPartition, requestHandler.getNamespace()));
+                    return;
+                }
+                if (!list.isEmpty()) {
+                    Entry lastEntry = list.get(list.size() - 1);
+                    // the next position may not exist yet, and is moved to the next valid one in the next read.
+                    PositionImpl nextPosition = PositionImpl
+                        .get(lastEntry.getLedgerId(), lastEntry.getEntryId()).getNext();
+                    long nextOffset = MessageIdUtils
+                        .getOffset(nextPosition.getLedgerId(), nextPosition.getEntryId());
+                    cursors.put(topicPartition, Pair.of(null, nextOffset));
+
+                    if (log.isDebugEnabled()) {
+                        log.debug("Topic {} success read {} entries of {} planned without cursor, "
+                                + "original offset: {}, nextOffset: {} - {}",
+                            topicPartition, list.size(), entriesToRead, currentOffset, nextOffset, nextPosition);
+                    }
+                }
+            });
+    }
+
     // commit the offset, so backlog not affect by this cursor.
     private static void commitOffset(NonDurableCursorImpl cursor, PositionImpl currentPosition) {
         cursor.asyncMarkDelete(currentPosition, new MarkDeleteCallback() {
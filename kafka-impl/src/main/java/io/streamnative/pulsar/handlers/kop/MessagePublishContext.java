@@ -16,20 +16,23 @@ package io.streamnative.pulsar.handlers.kop;
 import static io.streamnative.pulsar.handlers.kop.utils.MessageRecordUtils.messageToByteBuf;
 import static io.streamnative.pulsar.handlers.kop.utils.MessageRecordUtils.recordToEntry;
 import static io.streamnative.pulsar.handlers.kop.utils.MessageRecordUtils.recordsToByteBuf;
+import static io.streamnative.pulsar.handlers.kop.utils.MessageRecordUtils.recordsToKafkaEntry;
 
 import com.google.common.collect.Lists;
 import io.netty.buffer.ByteBuf;
 import io.netty.util.Recycler;
 import io.netty.util.Recycler.Handle;
+import io.streamnative.pulsar.handlers.kop.utils.EntryFormat;
 import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
+import io.streamnative.pulsar.handlers.kop.utils.delayed.DelayedOperationPurgatory;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse;
 import org.apache.pulsar.broker.service.Topic;
 import org.apache.pulsar.broker.service.Topic.PublishContext;
@@ -43,6 +46,10 @@ public final class MessagePublishContext implements PublishContext {
     private CompletableFuture<Long> offsetFuture;
     private Topic topic;
     private long startTimeNs;
+    private DelayedOperationPurgatory<DelayedFetch> fetchPurgatory;
+    private LogOffsetTracker logOffsetTracker;
+    // taken before the publish time is set into the entry, so not after the publish time.
+    private long minPublishTime;
     public static final boolean MESSAGE_BATCHED = true;
 
     /**
@@ -64,7 +71,15 @@ public final class MessagePublishContext implements PublishContext {
 
             topic.recordAddLatency(System.nanoTime() - startTimeNs, TimeUnit.MICROSECONDS);
 
+            if (logOffsetTracker != null) {
+                logOffsetTracker.onEntryPublished(ledgerId, entryId, minPublishTime, System.currentTimeMillis());
+            }
             offsetFuture.complete(Long.valueOf(MessageIdUtils.getOffset(ledgerId, entryId)));
+
+            // wake up the fetches that are waiting for new entries of this partition.
+            if (fetchPurgatory != null) {
+                fetchPurgatory.checkAndComplete(DelayedFetch.keyFor(topic.getName()));
+            }
         }
 
         recycle();
@@ -73,11 +88,17 @@ public final class MessagePublishContext implements PublishContext {
     // recycler
     public static MessagePublishContext get(CompletableFuture<Long> offsetFuture,
                                             Topic topic,
-                                            long startTimeNs) {
+                                            long startTimeNs,
+                                            DelayedOperationPurgatory<DelayedFetch> fetchPurgatory,
+                                            LogOffsetTracker logOffsetTracker,
+                                            long minPublishTime) {
         MessagePublishContext callback = RECYCLER.get();
         callback.offsetFuture = offsetFuture;
         callback.topic = topic;
         callback.startTimeNs = startTimeNs;
+        callback.fetchPurgatory = fetchPurgatory;
+        callback.logOffsetTracker = logOffsetTracker;
+        callback.minPublishTime = minPublishTime;
         return callback;
     }
 
@@ -97,61 +118,89 @@ public final class MessagePublishContext implements PublishContext {
         offsetFuture = null;
         topic = null;
         startTimeNs = -1;
+        fetchPurgatory = null;
+        logOffsetTracker = null;
+        minPublishTime = -1;
         recyclerHandle.recycle(this);
     }
 
 
+    // topic closed on this broker, e.g. by bundle unload, then the client should find the new owner and retry.
+    private static Errors publishError(Throwable throwable) {
+        return KafkaTopicService.isTopicClosedError(throwable)
+            ? Errors.NOT_LEADER_FOR_PARTITION
+            : Errors.KAFKA_STORAGE_ERROR;
+    }
+
     // publish Kafka records to pulsar topic, handle callback in MessagePublishContext.
     public static void publishMessages(MemoryRecords records,
                                        Topic topic,
-                                       CompletableFuture<PartitionResponse> future) {
-
-        // get records size.
-        AtomicInteger size = new AtomicInteger(0);
-        records.records().forEach(record -> size.incrementAndGet());
-        int rec = size.get();
+                                       LogOffsetTracker logOffsetTracker,
+                                       CompletableFuture<PartitionResponse> future,
+                                       DelayedOperationPurgatory<DelayedFetch> fetchPurgatory,
+                                       EntryFormat entryFormat) {
+
+        // get records size from the offsets of the batches, without decompressing the records.
+        int rec = 0;
+        for (RecordBatch batch : records.batches()) {
+            rec += (int) (batch.lastOffset() - batch.baseOffset() + 1);
+        }
 
         if (log.isDebugEnabled()) {
-            log.debug("publishMessages for topic partition: {} , records size is {} ", topic.getName(), size.get());
+            log.debug("publishMessages for topic partition: {} , records size is {} ", topic.getName(), rec);
         }
 
-        if (MESSAGE_BATCHED) {
+        if (entryFormat == EntryFormat.KAFKA || MESSAGE_BATCHED) {
+            // all the records are stored in one entry, and the offset of a record only takes BATCH_BITS bits
+            // for its index in the entry. Kafka producers split the batch and retry on MESSAGE_TOO_LARGE.
+            if (rec > 1 << MessageIdUtils.BATCH_BITS) {
+                log.warn("publishMessages for topic partition: {} rejected, {} records exceed the max {} records"
+                    + " of an entry.", topic.getName(), rec, 1 << MessageIdUtils.BATCH_BITS);
+                future.complete(new PartitionResponse(Errors.MESSAGE_TOO_LARGE));
+                return;
+            }
             CompletableFuture<Long> offsetFuture = new CompletableFuture<>();
+            long minPublishTime = System.currentTimeMillis();
 
-            ByteBuf headerAndPayload = recordsToByteBuf(records, rec);
+            // in kafka entry format, records are written as-is without converting into pulsar messages.
+            ByteBuf headerAndPayload = entryFormat == EntryFormat.KAFKA
+                ? recordsToKafkaEntry(records, rec)
+                : recordsToByteBuf(records, rec);
             topic.publishMessage(
                 headerAndPayload,
                 MessagePublishContext.get(
-                    offsetFuture, topic, System.nanoTime()));
+                    offsetFuture, topic, System.nanoTime(), fetchPurgatory, logOffsetTracker, minPublishTime));
 
             offsetFuture.whenComplete((offset, ex) -> {
                 if (ex != null) {
                     log.error("publishMessages for topic partition: {} failed when write.",
                         topic.getName(), ex);
-                    future.complete(new PartitionResponse(Errors.KAFKA_STORAGE_ERROR));
+                    future.complete(new PartitionResponse(publishError(ex)));
                 } else {
                     future.complete(new PartitionResponse(Errors.NONE));
                 }
             });
         } else {
             List<CompletableFuture<Long>> futures = Collections
-                .synchronizedList(Lists.newArrayListWithExpectedSize(size.get()));
+                .synchronizedList(Lists.newArrayListWithExpectedSize(rec));
 
             records.records().forEach(record -> {
                 CompletableFuture<Long> offsetFuture = new CompletableFuture<>();
                 futures.add(offsetFuture);
+                long minPublishTime = System.currentTimeMillis();
                 ByteBuf headerAndPayload = messageToByteBuf(recordToEntry(record));
                 topic.publishMessage(
                     headerAndPayload,
                     MessagePublishContext.get(
-                        offsetFuture, topic, System.nanoTime()));
+                        offsetFuture, topic, System.nanoTime(), fetchPurgatory, logOffsetTracker,
+                        minPublishTime));
             });
 
             CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[rec])).whenComplete((ignore, ex) -> {
                 if (ex != null) {
                     log.error("publishMessages for topic partition: {} failed when write.",
                         topic.getName(), ex);
-                    future.complete(new PartitionResponse(Errors.KAFKA_STORAGE_ERROR));
+                    future.complete(new PartitionResponse(publishError(ex)));
                 } else {
                     future.complete(new PartitionResponse(Errors.NONE));
                 }
@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import io.prometheus.client.Gauge;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * RequestMemoryPool is the budget of bytes of requests queued in all the Kafka connections of this broker,
+ * like queued.max.request.bytes of Kafka.
+ *
+ * <p>The bytes of a request are acquired once it is read, and released once its response is written.
+ * Once the budget is exceeded, the connection that reads a request pauses its reads, and all the paused
+ * connections resume once enough responses complete.
+ */
+@Slf4j
+public class RequestMemoryPool {
+
+    static final String PAUSE_REASON = "broker-queued-request-bytes";
+
+    private static final Gauge QUEUED_BYTES = Gauge.build()
+        .name("kop_queued_request_bytes")
+        .help("Bytes of requests queued in the Kafka connections of this broker")
+        .register();
+    private static final Gauge PAUSED_CONNECTIONS = Gauge.build()
+        .name("kop_queued_request_bytes_paused_connections")
+        .help("Number of Kafka connections paused because the queued request bytes of this broker exceeds limit")
+        .register();
+
+    // 0 or negative for no limit.
+    private final long maxBytes;
+    private final AtomicLong usedBytes;
+    private final Set<KafkaCommandDecoder> pausedConnections;
+
+    RequestMemoryPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.usedBytes = new AtomicLong(0);
+        this.pausedConnections = ConcurrentHashMap.newKeySet();
+    }
+
+    // a request of bytes is read by connection.
+    void acquire(KafkaCommandDecoder connection, long bytes) {
+        long used = usedBytes.addAndGet(bytes);
+        QUEUED_BYTES.inc(bytes);
+        if (maxBytes <= 0 || used <= maxBytes) {
+            return;
+        }
+
+        if (pausedConnections.add(connection)) {
+            PAUSED_CONNECTIONS.inc();
+            if (log.isDebugEnabled()) {
+                log.debug("[{}] Pause reads, queued request bytes {} exceeds {}",
+                    connection.getRemoteAddress(), used, maxBytes);
+            }
+            connection.pauseRead(PAUSE_REASON);
+        }
+        // bytes may be released before the connection is added.
+        if (usedBytes.get() <= maxBytes) {
+            resumeAll();
+        }
+    }
+
+    // the response of a request of bytes is written.
+    void release(long bytes) {
+        long used = usedBytes.addAndGet(-bytes);
+        QUEUED_BYTES.dec(bytes);
+        if (used <= maxBytes && !pausedConnections.isEmpty()) {
+            resumeAll();
+        }
+    }
+
+    private void resumeAll() {
+        for (KafkaCommandDecoder connection : pausedConnections) {
+            // only the one that removes it resumes it.
+            if (pausedConnections.remove(connection)) {
+                PAUSED_CONNECTIONS.dec();
+                connection.resumeRead(PAUSE_REASON);
+            }
+        }
+    }
+
+    long getUsedBytes() {
+        return usedBytes.get();
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.prometheus.client.Counter;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pulsar.broker.namespace.NamespaceBundleOwnershipListener;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.util.FutureUtil;
+
+/**
+ * TopicLookupCache caches the owner broker of each topic looked up by this broker.
+ *
+ * <p>It is bounded in size, evicting the least recently used topics, and each lookup expires after a TTL.
+ * The topics of a bundle are invalidated once the bundle is loaded or unloaded by this broker, so that a moved
+ * topic is looked up again. Failed lookups, which complete with null, are not cached.
+ */
+@Slf4j
+public class TopicLookupCache implements NamespaceBundleOwnershipListener {
+
+    private static final Counter HITS = Counter.build()
+        .name("kop_lookup_cache_hits_total")
+        .help("Number of topic lookups served from the lookup cache")
+        .register();
+    private static final Counter MISSES = Counter.build()
+        .name("kop_lookup_cache_misses_total")
+        .help("Number of topic lookups not in the lookup cache")
+        .register();
+    private static final Counter EVICTIONS = Counter.build()
+        .name("kop_lookup_cache_evictions_total")
+        .help("Number of topics evicted from the lookup cache, by size or expiration")
+        .labelNames("cause")
+        .register();
+
+    // <topicName, owner broker address>
+    private final Cache<String, CompletableFuture<InetSocketAddress>> cache;
+
+    TopicLookupCache(long maxSize, long ttlMs) {
+        this.cache = CacheBuilder.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(ttlMs, TimeUnit.MILLISECONDS)
+            .<String, CompletableFuture<InetSocketAddress>>removalListener(notification -> {
+                if (notification.wasEvicted()) {
+                    EVICTIONS.labels(notification.getCause().name().toLowerCase()).inc();
+                }
+            })
+            .build();
+    }
+
+    // get the cached lookup of topic, or start one by lookup. concurrent gets of a topic share one lookup.
+    public CompletableFuture<InetSocketAddress> get(String topicName,
+                                                   Function<String, CompletableFuture<InetSocketAddress>> lookup) {
+        CompletableFuture<InetSocketAddress> cached = cache.getIfPresent(topicName);
+        if (cached != null) {
+            HITS.inc();
+            return cached;
+        }
+
+        try {
+            CompletableFuture<InetSocketAddress> future = cache.get(topicName, () -> {
+                MISSES.inc();
+                if (log.isDebugEnabled()) {
+                    log.debug("topic {} not in lookup cache, call lookupBroker", topicName);
+                }
+                return lookup.apply(topicName);
+            });
+            future.thenAccept(address -> {
+                if (address == null) {
+                    cache.asMap().remove(topicName, future);
+                }
+            });
+            return future;
+        } catch (ExecutionException e) {
+            return FutureUtil.failedFuture(e.getCause());
+        }
+    }
+
+    public void invalidate(String topicName) {
+        cache.invalidate(topicName);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    // the owner of the topics in bundle is changed.
+    private void invalidate(NamespaceBundle bundle) {
+        cache.asMap().keySet().removeIf(topicName -> bundle.includes(TopicName.get(topicName)));
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidated lookups of bundle {}", bundle);
+        }
+    }
+
+    @Override
+    public void onLoad(NamespaceBundle bundle) {
+        invalidate(bundle);
+    }
+
+    @Override
+    public void unLoad(NamespaceBundle bundle) {
+        invalidate(bundle);
+    }
+
+    // topics of any namespace could be looked up by Kafka clients.
+    @Override
+    public boolean test(NamespaceBundle namespaceBundle) {
+        return true;
+    }
+}
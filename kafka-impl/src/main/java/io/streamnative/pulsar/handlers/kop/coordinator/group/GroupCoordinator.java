@@ -45,7 +45,6 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiConsumer;
 import java.util.function.Supplier;
@@ -84,16 +83,18 @@ public class GroupCoordinator {
         GroupConfig groupConfig,
         OffsetConfig offsetConfig,
         Timer timer,
-        Time time
+        Time time,
+        OffsetAcker offsetAcker
     ) {
-        ScheduledExecutorService coordinatorExecutor = OrderedScheduler.newSchedulerBuilder()
+        OrderedScheduler coordinatorExecutor = OrderedScheduler.newSchedulerBuilder()
             .name("group-coordinator-executor")
             .build();
 
         // __offset partitions producers and readers builder.
         ProducerBuilder<ByteBuffer> producer = pulsarClient
             .newProducer(Schema.BYTEBUFFER)
-            .maxPendingMessages(100000);
+            .maxPendingMessages(100000)
+            .enableBatching(true);
         ReaderBuilder<ByteBuffer> reader = new ReaderBuilderImpl<>(pulsarClient, Schema.BYTEBUFFER);
 
         reader.startMessageId(MessageId.earliest);
@@ -116,7 +117,6 @@ public class GroupCoordinator {
                 .timeoutTimer(timer)
                 .build();
 
-        OffsetAcker offsetAcker = new OffsetAcker(pulsarClient);
         return new GroupCoordinator(
             groupConfig,
             metadataManager,
@@ -169,6 +169,8 @@ public class GroupCoordinator {
         this.joinPurgatory = joinPurgatory;
         this.time = time;
         this.offsetAcker = offsetAcker;
+        // the subscriptions follow the stored offsets of the groups, also the offsets loaded after a failover.
+        groupManager.setOffsetsRemovedListener(offsetAcker::removeOffsets);
     }
 
     /**
@@ -453,11 +455,6 @@ public class GroupCoordinator {
                 new KeyValue<>(errors, assignment))
         );
 
-        resultFuture.whenCompleteAsync((kv, throwable) -> {
-            if (throwable == null && kv.getKey() == Errors.NONE) {
-                offsetAcker.addOffsetsTracker(groupId, kv.getValue());
-            }
-        });
         return resultFuture;
     }
 
@@ -647,6 +644,10 @@ public class GroupCoordinator {
         });
 
         if (!groupsEligibleForDeletion.isEmpty()) {
+            // stop acknowledging the offsets of the groups, before their subscriptions are deleted.
+            offsetAcker.close(groupsEligibleForDeletion.stream()
+                .map(GroupMetadata::groupId)
+                .collect(Collectors.toSet()));
             groupManager.cleanGroupMetadata(
                 groupsEligibleForDeletion.stream(),
                 g -> g.removeAllOffsets()
@@ -667,7 +668,6 @@ public class GroupCoordinator {
             );
         }
 
-        offsetAcker.close(groupIds);
         return groupErrors;
     }
 
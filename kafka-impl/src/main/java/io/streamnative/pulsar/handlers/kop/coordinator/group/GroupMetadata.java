@@ -36,6 +36,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -181,15 +182,13 @@ public class GroupMetadata {
     @Getter
     private boolean newMemberAdded = false;
 
-    // state management
-    private final Map<String, MemberMetadata> members =
-        Collections.synchronizedMap(new HashMap<>());
-    private final Map<TopicPartition, CommitRecordMetadataAndOffset> offsets =
-        Collections.synchronizedMap(new HashMap<>());
-    private final Map<TopicPartition, OffsetAndMetadata> pendingOffsetCommits =
-        Collections.synchronizedMap(new HashMap<>());
+    // state management, written under the group lock, mostly by the thread of the offsets topic partition of the
+    // group, and read without the lock, e.g. when listing or describing groups.
+    private final Map<String, MemberMetadata> members = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, CommitRecordMetadataAndOffset> offsets = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, OffsetAndMetadata> pendingOffsetCommits = new ConcurrentHashMap<>();
     private final Map<Long, Map<TopicPartition, CommitRecordMetadataAndOffset>> pendingTransactionalOffsetCommits =
-        Collections.synchronizedMap(new HashMap<>());
+        new ConcurrentHashMap<>();
     private boolean receivedTransactionalOffsetCommits = false;
     private boolean receivedConsumerOffsetCommits = false;
 
@@ -15,6 +15,7 @@ package io.streamnative.pulsar.handlers.kop.coordinator.group;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupMetadata.CommitRecordMetadataAndOffset;
 import io.streamnative.pulsar.handlers.kop.offset.OffsetAndMetadata;
 import io.streamnative.pulsar.handlers.kop.utils.CoreUtils;
@@ -24,6 +25,9 @@ import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.common.concurrent.FutureUtils;
 import org.apache.bookkeeper.common.util.MathUtils;
+import org.apache.bookkeeper.common.util.OrderedScheduler;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.commons.lang3.tuple.Triple;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.protocol.Errors;
@@ -62,6 +66,9 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -177,6 +184,8 @@ public class GroupMetadataManager {
     private final Set<Integer> ownedPartitions = new HashSet<>();
     /* shutting down flag */
     private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
+    /* set while the owned partitions are being snapshotted */
+    private final AtomicBoolean snapshotting = new AtomicBoolean(false);
     private final int groupMetadataTopicPartitionCount;
 
     // Map of <PartitionId, Producer>
@@ -184,9 +193,22 @@ public class GroupMetadataManager {
         new ConcurrentHashMap<>();
     private final ConcurrentMap<Integer, CompletableFuture<Reader<ByteBuffer>>> offsetsReaders =
         new ConcurrentHashMap<>();
+    // Map of <PartitionId, OffsetCommitAccumulator>, used once offsetCommitLingerMs is positive
+    private final ConcurrentMap<Integer, OffsetCommitAccumulator> offsetCommitAccumulators =
+        new ConcurrentHashMap<>();
 
-    /* single-thread scheduler to handle offset/group metadata cache loading and unloading */
-    private final ScheduledExecutorService scheduler;
+    /**
+     * scheduler to handle offset/group metadata storing, cache loading and unloading. The work on the groups of an
+     * offsets topic partition runs on the thread chosen for the partition, so it is serialized, while the work on
+     * the other partitions proceeds on the other threads.
+     */
+    private final OrderedScheduler scheduler;
+    /* executor to decode the partitions loaded from their managed ledgers, several partitions in parallel */
+    private final ExecutorService loadExecutor;
+    /* provider of the managed ledger of an offsets topic partition, if it is served by this broker */
+    private volatile Function<String, CompletableFuture<Optional<ManagedLedger>>> offsetsTopicLedgerProvider = null;
+    /* listener of the offsets removed from a group, because they expired or the group or the partitions are deleted */
+    private volatile BiConsumer<String, Set<TopicPartition>> offsetsRemovedListener = (groupId, partitions) -> { };
     /**
      * The groups with open transactional offsets commits per producer. We need this because when the commit or abort
      * marker comes in for a transaction, it is for a particular partition on the offsets topic and a particular
@@ -203,7 +225,7 @@ public class GroupMetadataManager {
     public GroupMetadataManager(OffsetConfig offsetConfig,
                                 ProducerBuilder<ByteBuffer> metadataTopicProducerBuilder,
                                 ReaderBuilder<ByteBuffer> metadataTopicReaderBuilder,
-                                ScheduledExecutorService scheduler,
+                                OrderedScheduler scheduler,
                                 Time time) {
         this(
             offsetConfig,
@@ -223,7 +245,7 @@ public class GroupMetadataManager {
     GroupMetadataManager(OffsetConfig offsetConfig,
                          ProducerBuilder<ByteBuffer> metadataTopicProducerBuilder,
                          ReaderBuilder<ByteBuffer> metadataTopicConsumerBuilder,
-                         ScheduledExecutorService scheduler,
+                         OrderedScheduler scheduler,
                          Time time,
                          Function<String, Integer> partitioner) {
         this.offsetConfig = offsetConfig;
@@ -235,6 +257,17 @@ public class GroupMetadataManager {
         this.scheduler = scheduler;
         this.time = time;
         this.partitioner = partitioner;
+        this.loadExecutor = Executors.newFixedThreadPool(offsetConfig.offsetsLoadThreads(),
+            new ThreadFactoryBuilder().setNameFormat("group-metadata-loader-%d").setDaemon(true).build());
+    }
+
+    public void setOffsetsTopicLedgerProvider(
+        Function<String, CompletableFuture<Optional<ManagedLedger>>> offsetsTopicLedgerProvider) {
+        this.offsetsTopicLedgerProvider = offsetsTopicLedgerProvider;
+    }
+
+    public void setOffsetsRemovedListener(BiConsumer<String, Set<TopicPartition>> offsetsRemovedListener) {
+        this.offsetsRemovedListener = offsetsRemovedListener;
     }
 
     public void startup(boolean enableMetadataExpiration) {
@@ -246,11 +279,23 @@ public class GroupMetadataManager {
                 TimeUnit.MILLISECONDS
             );
         }
+        if (offsetConfig.offsetsSnapshotIntervalMs() > 0) {
+            scheduler.scheduleAtFixedRate(
+                this::snapshotGroupsAndOffsets,
+                offsetConfig.offsetsSnapshotIntervalMs(),
+                offsetConfig.offsetsSnapshotIntervalMs(),
+                TimeUnit.MILLISECONDS
+            );
+        }
     }
 
     public void shutdown() {
         shuttingDown.set(true);
+        // store the offset commits still in the linger window.
+        offsetCommitAccumulators.values().forEach(OffsetCommitAccumulator::flush);
+        offsetCommitAccumulators.clear();
         scheduler.shutdown();
+        loadExecutor.shutdown();
         List<CompletableFuture<Void>> producerCloses = offsetsProducers.entrySet().stream()
             .map(v -> v.getValue()
                 .thenComposeAsync(producer -> producer.closeAsync(), scheduler))
@@ -399,12 +444,13 @@ public class GroupMetadataManager {
         recordsBuilder.append(timestamp, key, value);
         MemoryRecords records = recordsBuilder.build();
 
+        ScheduledExecutorService executor = groupExecutor(group.groupId());
         return getOffsetsTopicProducer(group.groupId())
             .thenComposeAsync(f -> f.newMessage()
                     .keyBytes(key)
                     .value(records.buffer())
                     .eventTime(timestamp).sendAsync()
-                , scheduler)
+                , executor)
             .thenApplyAsync(msgId -> {
                 if (!isGroupLocal(group.groupId())) {
                     if (log.isDebugEnabled()) {
@@ -414,7 +460,7 @@ public class GroupMetadataManager {
                     addPartitionOwnership(partitionFor(group.groupId()));
                 }
                 return Errors.NONE;
-            }, scheduler)
+            }, executor)
             .exceptionally(cause -> Errors.COORDINATOR_NOT_AVAILABLE);
     }
 
@@ -428,7 +474,7 @@ public class GroupMetadataManager {
                     .keyBytes(key)
                     .value(buffer)
                     .eventTime(timestamp).sendAsync()
-                , scheduler);
+                , groupExecutor(groupId));
     }
 
     public CompletableFuture<Map<TopicPartition, Errors>> storeOffsets(
@@ -494,25 +540,6 @@ public class GroupMetadataManager {
             })
             .collect(Collectors.toList());
 
-        ByteBuffer buffer = ByteBuffer.allocate(
-            AbstractRecords.estimateSizeInBytes(
-                magicValue, compressionType, records
-            )
-        );
-
-        MemoryRecordsBuilder builder = MemoryRecords.builder(
-            buffer, magicValue, compressionType,
-            timestampType, 0L, timestamp,
-            producerId,
-            producerEpoch,
-            0,
-            isTxnOffsetCommit,
-            RecordBatch.NO_PARTITION_LEADER_EPOCH
-        );
-        records.forEach(builder::append);
-
-        MemoryRecords entries = builder.build();
-
         if (isTxnOffsetCommit) {
             group.inLock(() -> {
                 addProducerGroup(producerId, group.groupId());
@@ -528,7 +555,33 @@ public class GroupMetadataManager {
 
         // dummy offset commit key
         byte[] key = offsetCommitKey(group.groupId(), new TopicPartition("", -1));
-        return storeOffsetMessage(group.groupId(), key, entries.buffer(), timestamp)
+        CompletableFuture<MessageId> storeFuture;
+        if (!isTxnOffsetCommit && offsetConfig.offsetCommitLingerMs() > 0) {
+            // transactional commits are not merged, so that they are stored before their markers.
+            storeFuture = getOffsetCommitAccumulator(partitionFor(group.groupId())).append(key, records);
+        } else {
+            ByteBuffer buffer = ByteBuffer.allocate(
+                AbstractRecords.estimateSizeInBytes(
+                    magicValue, compressionType, records
+                )
+            );
+
+            MemoryRecordsBuilder builder = MemoryRecords.builder(
+                buffer, magicValue, compressionType,
+                timestampType, 0L, timestamp,
+                producerId,
+                producerEpoch,
+                0,
+                isTxnOffsetCommit,
+                RecordBatch.NO_PARTITION_LEADER_EPOCH
+            );
+            records.forEach(builder::append);
+
+            MemoryRecords entries = builder.build();
+            storeFuture = storeOffsetMessage(group.groupId(), key, entries.buffer(), timestamp);
+        }
+        ScheduledExecutorService executor = groupExecutor(group.groupId());
+        return storeFuture
             .thenApplyAsync(messageId -> {
                 if (!group.is(GroupState.Dead)) {
                     MessageIdImpl lastMessageId = (MessageIdImpl) messageId;
@@ -550,7 +603,7 @@ public class GroupMetadataManager {
                     });
                 }
                 return Errors.NONE;
-            }, scheduler)
+            }, executor)
             .exceptionally(cause -> {
                 if (!group.is(GroupState.Dead)) {
                     if (!group.hasPendingOffsetCommitsFromProducer(producerId)) {
@@ -584,7 +637,7 @@ public class GroupMetadataManager {
                             return Errors.OFFSET_METADATA_TOO_LARGE;
                         }
                     }
-                )), scheduler);
+                )), executor);
     }
 
     /**
@@ -721,19 +774,27 @@ public class GroupMetadataManager {
         if (addLoadingPartition(offsetsPartition)) {
             log.info("Scheduling loading of offsets and group metadata from {}", topicPartition);
             long startMs = time.milliseconds();
-            return getOffsetsTopicProducer(offsetsPartition)
-                .thenComposeAsync(f -> f.newMessage()
-                        .value(ByteBuffer.allocate(0))
-                        .eventTime(time.milliseconds()).sendAsync()
-                    , scheduler)
-                .thenComposeAsync(lastMessageId -> {
-                    if (log.isTraceEnabled()) {
-                        log.trace("Successfully write a placeholder record into {} @ {}",
-                            topicPartition, lastMessageId);
+            ScheduledExecutorService executor = partitionExecutor(offsetsPartition);
+            return getOffsetsTopicLedger(topicPartition)
+                .thenComposeAsync(ledger -> {
+                    if (ledger.isPresent()) {
+                        return doLoadGroupsAndOffsets(topicPartition, ledger.get(), executor, onGroupLoaded);
                     }
-                    return doLoadGroupsAndOffsets(getOffsetsTopicReader(offsetsPartition),
-                        lastMessageId, onGroupLoaded);
-                }, scheduler)
+                    // the partition is not served by this broker, read it through a reader.
+                    return getOffsetsTopicProducer(offsetsPartition)
+                        .thenComposeAsync(f -> f.newMessage()
+                                .value(ByteBuffer.allocate(0))
+                                .eventTime(time.milliseconds()).sendAsync()
+                            , executor)
+                        .thenComposeAsync(lastMessageId -> {
+                            if (log.isTraceEnabled()) {
+                                log.trace("Successfully write a placeholder record into {} @ {}",
+                                    topicPartition, lastMessageId);
+                            }
+                            return doLoadGroupsAndOffsets(getOffsetsTopicReader(offsetsPartition),
+                                lastMessageId, executor, onGroupLoaded);
+                        }, executor);
+                }, executor)
                 .whenCompleteAsync((ignored, cause) -> {
                     if (null != cause) {
                         log.error("Error loading offsets from {}", topicPartition, cause);
@@ -747,56 +808,117 @@ public class GroupMetadataManager {
                         loadingPartitions.remove(offsetsPartition);
                         return null;
                     });
-                }, scheduler);
+                }, executor);
         } else {
             log.info("Already loading offsets and group metadata from {}", topicPartition);
             return CompletableFuture.completedFuture(null);
         }
     }
 
+    private CompletableFuture<Optional<ManagedLedger>> getOffsetsTopicLedger(String topicPartition) {
+        Function<String, CompletableFuture<Optional<ManagedLedger>>> provider = offsetsTopicLedgerProvider;
+        if (provider == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        return provider.apply(topicPartition);
+    }
+
+    // load the partition from its managed ledger in batches, decoded in the load executor, from its latest snapshot.
+    // the snapshot cursor is opened first, so that the entries loaded are kept until a snapshot covers them.
+    private CompletableFuture<Void> doLoadGroupsAndOffsets(
+        String topicPartition,
+        ManagedLedger ledger,
+        Executor executor,
+        Consumer<GroupMetadata> onGroupLoaded
+    ) {
+        final Map<GroupTopicPartition, CommitRecordMetadataAndOffset> loadedOffsets = new HashMap<>();
+        final Map<Long, Map<GroupTopicPartition, CommitRecordMetadataAndOffset>> pendingOffsets = new HashMap<>();
+        final Map<String, GroupMetadata> loadedGroups = new HashMap<>();
+        final Set<String> removedGroups = new HashSet<>();
+        final CompletableFuture<Void> resultFuture = new CompletableFuture<>();
+
+        OffsetsTopicSnapshot.openCursor(ledger).thenCompose(ignored -> OffsetsTopicSnapshot.replay(
+            topicPartition,
+            ledger,
+            OffsetsTopicSnapshot.latest(ledger),
+            null,
+            offsetConfig.offsetsLoadBatchSize(),
+            loadExecutor,
+            buffer -> {
+                if (shuttingDown.get()) {
+                    throw new IllegalStateException("Group metadata manager is shutting down");
+                }
+                applyMetadataRecords(buffer, loadedOffsets, pendingOffsets, loadedGroups, removedGroups);
+            }
+        )).whenCompleteAsync((ignored, cause) -> {
+            if (cause != null) {
+                resultFuture.completeExceptionally(cause);
+                return;
+            }
+            processLoadedAndRemovedGroups(
+                resultFuture,
+                onGroupLoaded,
+                loadedOffsets,
+                pendingOffsets,
+                loadedGroups,
+                removedGroups
+            );
+        }, executor);
+
+        return resultFuture;
+    }
+
     private CompletableFuture<Void> doLoadGroupsAndOffsets(
         CompletableFuture<Reader<ByteBuffer>> metadataConsumer,
         MessageId endMessageId,
+        Executor executor,
         Consumer<GroupMetadata> onGroupLoaded
     ) {
         final Map<GroupTopicPartition, CommitRecordMetadataAndOffset> loadedOffsets = new HashMap<>();
         final Map<Long, Map<GroupTopicPartition, CommitRecordMetadataAndOffset>> pendingOffsets = new HashMap<>();
         final Map<String, GroupMetadata> loadedGroups = new HashMap<>();
         final Set<String> removedGroups = new HashSet<>();
+        final OffsetsTopicSnapshot.SnapshotMessages snapshotMessages = new OffsetsTopicSnapshot.SnapshotMessages();
         final CompletableFuture<Void> resultFuture = new CompletableFuture<>();
 
         loadNextMetadataMessage(
             metadataConsumer,
             endMessageId,
+            executor,
             resultFuture,
             onGroupLoaded,
             loadedOffsets,
             pendingOffsets,
             loadedGroups,
-            removedGroups);
+            removedGroups,
+            snapshotMessages);
 
         return resultFuture;
     }
 
     private void loadNextMetadataMessage(CompletableFuture<Reader<ByteBuffer>> metadataConsumer,
                                          MessageId endMessageId,
+                                         Executor executor,
                                          CompletableFuture<Void> resultFuture,
                                          Consumer<GroupMetadata> onGroupLoaded,
                                          Map<GroupTopicPartition, CommitRecordMetadataAndOffset> loadedOffsets,
                                          Map<Long, Map<GroupTopicPartition, CommitRecordMetadataAndOffset>>
                                              pendingOffsets,
                                          Map<String, GroupMetadata> loadedGroups,
-                                         Set<String> removedGroups) {
+                                         Set<String> removedGroups,
+                                         OffsetsTopicSnapshot.SnapshotMessages snapshotMessages) {
         try {
             unsafeLoadNextMetadataMessage(
                 metadataConsumer,
                 endMessageId,
+                executor,
                 resultFuture,
                 onGroupLoaded,
                 loadedOffsets,
                 pendingOffsets,
                 loadedGroups,
-                removedGroups
+                removedGroups,
+                snapshotMessages
             );
         } catch (Throwable cause) {
             log.error("Unknown exception caught when loading group and offsets from topic",
@@ -807,13 +929,15 @@ public class GroupMetadataManager {
 
     private void unsafeLoadNextMetadataMessage(CompletableFuture<Reader<ByteBuffer>> metadataConsumer,
                                                MessageId endMessageId,
+                                               Executor executor,
                                                CompletableFuture<Void> resultFuture,
                                                Consumer<GroupMetadata> onGroupLoaded,
                                                Map<GroupTopicPartition, CommitRecordMetadataAndOffset> loadedOffsets,
                                                Map<Long, Map<GroupTopicPartition, CommitRecordMetadataAndOffset>>
                                                    pendingOffsets,
                                                Map<String, GroupMetadata> loadedGroups,
-                                               Set<String> removedGroups) {
+                                               Set<String> removedGroups,
+                                               OffsetsTopicSnapshot.SnapshotMessages snapshotMessages) {
         if (shuttingDown.get()) {
             resultFuture.completeExceptionally(
                 new Exception("Group metadata manager is shutting down"));
@@ -849,122 +973,60 @@ public class GroupMetadataManager {
                 return;
             }
 
-            if (!message.hasKey()) {
-                // the messages without key are placeholders
-                loadNextMetadataMessage(
-                    metadataConsumer,
-                    endMessageId,
-                    resultFuture,
-                    onGroupLoaded,
+            // the messages without key are placeholders, and a snapshot is applied once all its messages are read.
+            if (message.hasKey() && message.hasProperty(OffsetsTopicSnapshot.SNAPSHOT_PROPERTY)) {
+                if (snapshotMessages.add(message.getProperties(), message.getValue())) {
+                    // the entries before the covered entry may be trimmed, so the snapshot is applied. the messages
+                    // after the covered entry, read before the snapshot, are newer and applied again after it.
+                    snapshotMessages.getValues().forEach(value ->
+                        applyMetadataRecords(value, loadedOffsets, pendingOffsets, loadedGroups, removedGroups));
+                    loadMessagesAfter(
+                        metadataConsumer.join().getTopic(),
+                        snapshotMessages.getCovered(),
+                        message.getMessageId(),
+                        executor,
+                        value -> applyMetadataRecords(value, loadedOffsets, pendingOffsets, loadedGroups, removedGroups)
+                    ).whenComplete((ignored, loadCause) -> {
+                        if (loadCause != null) {
+                            resultFuture.completeExceptionally(loadCause);
+                            return;
+                        }
+                        loadNextMetadataMessage(
+                            metadataConsumer,
+                            endMessageId,
+                            executor,
+                            resultFuture,
+                            onGroupLoaded,
+                            loadedOffsets,
+                            pendingOffsets,
+                            loadedGroups,
+                            removedGroups,
+                            snapshotMessages
+                        );
+                    });
+                    return;
+                }
+            } else if (message.hasKey()) {
+                applyMetadataRecords(
+                    message.getValue(),
                     loadedOffsets,
                     pendingOffsets,
                     loadedGroups,
                     removedGroups
                 );
-                return;
             }
 
-            ByteBuffer buffer = message.getValue();
-            MemoryRecords memRecords = MemoryRecords.readableRecords(buffer);
-
-            memRecords.batches().forEach(batch -> {
-                boolean isTxnOffsetCommit = batch.isTransactional();
-                if (batch.isControlBatch()) {
-                    Iterator<Record> recordIterator = batch.iterator();
-                    if (recordIterator.hasNext()) {
-                        Record record = recordIterator.next();
-                        ControlRecordType controlRecord = ControlRecordType.parse(record.key());
-                        if (controlRecord == ControlRecordType.COMMIT) {
-                            pendingOffsets.getOrDefault(batch.producerId(), Collections.emptyMap())
-                                .forEach((groupTopicPartition, commitRecordMetadataAndOffset) -> {
-                                    if (!loadedOffsets.containsKey(groupTopicPartition)
-                                        || loadedOffsets.get(groupTopicPartition)
-                                        .olderThan(commitRecordMetadataAndOffset)) {
-                                        loadedOffsets.put(groupTopicPartition, commitRecordMetadataAndOffset);
-                                    }
-                                });
-                        }
-                        pendingOffsets.remove(batch.producerId());
-                    }
-                } else {
-                    Optional<Long> batchBaseOffset = Optional.empty();
-                    for (Record record : batch) {
-                        checkArgument(record.hasKey(), "Group metadata/offset entry key should not be null");
-                        if (!batchBaseOffset.isPresent()) {
-                            batchBaseOffset = Optional.of(record.offset());
-                        }
-                        BaseKey bk = readMessageKey(record.key());
-
-                        if (log.isTraceEnabled()) {
-                            log.trace("Applying metadata record {} received from {}",
-                                bk, metadataConsumer.join().getTopic());
-                        }
-
-                        if (bk instanceof OffsetKey) {
-                            OffsetKey offsetKey = (OffsetKey) bk;
-                            if (isTxnOffsetCommit && !pendingOffsets.containsKey(batch.producerId())) {
-                                pendingOffsets.put(
-                                    batch.producerId(),
-                                    new HashMap<>()
-                                );
-                            }
-                            // load offset
-                            GroupTopicPartition groupTopicPartition = offsetKey.key();
-                            if (!record.hasValue()) {
-                                if (isTxnOffsetCommit) {
-                                    pendingOffsets.get(batch.producerId()).remove(groupTopicPartition);
-                                } else {
-                                    loadedOffsets.remove(groupTopicPartition);
-                                }
-                            } else {
-                                OffsetAndMetadata offsetAndMetadata = readOffsetMessageValue(record.value());
-                                CommitRecordMetadataAndOffset commitRecordMetadataAndOffset =
-                                    new CommitRecordMetadataAndOffset(
-                                        batchBaseOffset,
-                                        offsetAndMetadata
-                                    );
-                                if (isTxnOffsetCommit) {
-                                    pendingOffsets.get(batch.producerId()).put(
-                                        groupTopicPartition,
-                                        commitRecordMetadataAndOffset);
-                                } else {
-                                    loadedOffsets.put(
-                                        groupTopicPartition,
-                                        commitRecordMetadataAndOffset
-                                    );
-                                }
-                            }
-                        } else if (bk instanceof GroupMetadataKey) {
-                            GroupMetadataKey groupMetadataKey = (GroupMetadataKey) bk;
-                            String gid = groupMetadataKey.key();
-                            GroupMetadata gm = readGroupMessageValue(gid, record.value());
-                            if (gm != null) {
-                                removedGroups.remove(gid);
-                                loadedGroups.put(gid, gm);
-                            } else {
-                                loadedGroups.remove(gid);
-                                removedGroups.add(gid);
-                            }
-                        } else {
-                            resultFuture.completeExceptionally(
-                                new IllegalStateException(
-                                    "Unexpected message key " + bk + " while loading offsets and group metadata"));
-                            return;
-                        }
-                    }
-                }
-
-            });
-
             loadNextMetadataMessage(
                 metadataConsumer,
                 endMessageId,
+                executor,
                 resultFuture,
                 onGroupLoaded,
                 loadedOffsets,
                 pendingOffsets,
                 loadedGroups,
-                removedGroups
+                removedGroups,
+                snapshotMessages
             );
         };
 
@@ -976,7 +1038,197 @@ public class GroupMetadataManager {
                     metadataConsumer.join().getTopic(), completeCause);
                 resultFuture.completeExceptionally(completeCause);
             }
-        }, scheduler);
+        }, executor);
+    }
+
+    // load the values of the messages after the start entry, up to the end message, which are not snapshot messages.
+    private CompletableFuture<Void> loadMessagesAfter(String topic,
+                                                      PositionImpl start,
+                                                      MessageId endMessageId,
+                                                      Executor executor,
+                                                      Consumer<ByteBuffer> valueConsumer) {
+        return metadataTopicReaderBuilder.clone()
+            .topic(topic)
+            .startMessageId(new MessageIdImpl(start.getLedgerId(), start.getEntryId(), -1))
+            .createAsync()
+            .thenComposeAsync(reader -> {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                loadNextMessageUntil(reader, endMessageId, executor, valueConsumer, future);
+                return future.whenComplete((ignored, cause) -> reader.closeAsync());
+            }, executor);
+    }
+
+    private void loadNextMessageUntil(Reader<ByteBuffer> reader,
+                                      MessageId endMessageId,
+                                      Executor executor,
+                                      Consumer<ByteBuffer> valueConsumer,
+                                      CompletableFuture<Void> future) {
+        reader.readNextAsync().whenCompleteAsync((message, cause) -> {
+            if (cause != null) {
+                future.completeExceptionally(cause);
+                return;
+            }
+            try {
+                if (message.getMessageId().compareTo(endMessageId) >= 0) {
+                    future.complete(null);
+                    return;
+                }
+                if (message.hasKey() && !message.hasProperty(OffsetsTopicSnapshot.SNAPSHOT_PROPERTY)) {
+                    valueConsumer.accept(message.getValue());
+                }
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+                return;
+            }
+            loadNextMessageUntil(reader, endMessageId, executor, valueConsumer, future);
+        }, executor);
+    }
+
+    // snapshot the owned partitions one by one, unless the previous round is still running.
+    private void snapshotGroupsAndOffsets() {
+        if (shuttingDown.get() || !snapshotting.compareAndSet(false, true)) {
+            return;
+        }
+        List<Integer> partitions = inLock(partitionLock, () -> new ArrayList<>(ownedPartitions));
+        CompletableFuture<Void> round = CompletableFuture.completedFuture(null);
+        for (int partition : partitions) {
+            round = round.thenCompose(ignored -> snapshotGroupsAndOffsets(partition));
+        }
+        round.whenComplete((ignored, cause) -> snapshotting.set(false));
+    }
+
+    private CompletableFuture<Void> snapshotGroupsAndOffsets(int offsetsPartition) {
+        String topicPartition = offsetConfig.offsetsTopicName() + PARTITIONED_TOPIC_SUFFIX + offsetsPartition;
+        if (shuttingDown.get() || !isPartitionOwned(offsetsPartition)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // dummy offset commit key
+        byte[] key = offsetCommitKey("", new TopicPartition("", -1));
+        long startMs = time.milliseconds();
+        return getOffsetsTopicLedger(topicPartition)
+            .thenCompose(ledger -> {
+                if (!ledger.isPresent()) {
+                    return CompletableFuture.completedFuture(Optional.<OffsetsTopicSnapshot>empty());
+                }
+                return OffsetsTopicSnapshot.take(
+                    topicPartition,
+                    ledger.get(),
+                    offsetConfig.offsetsLoadBatchSize(),
+                    loadExecutor,
+                    compressionType,
+                    time,
+                    (buffer, properties) -> getOffsetsTopicProducer(offsetsPartition)
+                        .thenComposeAsync(f -> f.newMessage()
+                                .keyBytes(key)
+                                .value(buffer)
+                                .properties(properties)
+                                .eventTime(time.milliseconds()).sendAsync()
+                            , partitionExecutor(offsetsPartition)));
+            })
+            .handle((snapshot, cause) -> {
+                if (cause != null) {
+                    log.warn("Failed to snapshot offsets and group metadata of {}", topicPartition, cause);
+                } else if (snapshot.isPresent()) {
+                    log.info("Finished snapshot {} of offsets and group metadata of {} in {} milliseconds",
+                        snapshot.get(), topicPartition, time.milliseconds() - startMs);
+                }
+                return null;
+            });
+    }
+
+    // apply the records of a message of the offsets topic to the loaded metadata.
+    private void applyMetadataRecords(ByteBuffer buffer,
+                                      Map<GroupTopicPartition, CommitRecordMetadataAndOffset> loadedOffsets,
+                                      Map<Long, Map<GroupTopicPartition, CommitRecordMetadataAndOffset>>
+                                          pendingOffsets,
+                                      Map<String, GroupMetadata> loadedGroups,
+                                      Set<String> removedGroups) {
+        MemoryRecords memRecords = MemoryRecords.readableRecords(buffer);
+
+        memRecords.batches().forEach(batch -> {
+            boolean isTxnOffsetCommit = batch.isTransactional();
+            if (batch.isControlBatch()) {
+                Iterator<Record> recordIterator = batch.iterator();
+                if (recordIterator.hasNext()) {
+                    Record record = recordIterator.next();
+                    ControlRecordType controlRecord = ControlRecordType.parse(record.key());
+                    if (controlRecord == ControlRecordType.COMMIT) {
+                        pendingOffsets.getOrDefault(batch.producerId(), Collections.emptyMap())
+                            .forEach((groupTopicPartition, commitRecordMetadataAndOffset) -> {
+                                if (!loadedOffsets.containsKey(groupTopicPartition)
+                                    || loadedOffsets.get(groupTopicPartition)
+                                    .olderThan(commitRecordMetadataAndOffset)) {
+                                    loadedOffsets.put(groupTopicPartition, commitRecordMetadataAndOffset);
+                                }
+                            });
+                    }
+                    pendingOffsets.remove(batch.producerId());
+                }
+            } else {
+                Optional<Long> batchBaseOffset = Optional.empty();
+                for (Record record : batch) {
+                    checkArgument(record.hasKey(), "Group metadata/offset entry key should not be null");
+                    if (!batchBaseOffset.isPresent()) {
+                        batchBaseOffset = Optional.of(record.offset());
+                    }
+                    BaseKey bk = readMessageKey(record.key());
+
+                    if (log.isTraceEnabled()) {
+                        log.trace("Applying metadata record {}", bk);
+                    }
+
+                    if (bk instanceof OffsetKey) {
+                        OffsetKey offsetKey = (OffsetKey) bk;
+                        if (isTxnOffsetCommit && !pendingOffsets.containsKey(batch.producerId())) {
+                            pendingOffsets.put(
+                                batch.producerId(),
+                                new HashMap<>()
+                            );
+                        }
+                        // load offset
+                        GroupTopicPartition groupTopicPartition = offsetKey.key();
+                        if (!record.hasValue()) {
+                            if (isTxnOffsetCommit) {
+                                pendingOffsets.get(batch.producerId()).remove(groupTopicPartition);
+                            } else {
+                                loadedOffsets.remove(groupTopicPartition);
+                            }
+                        } else {
+                            OffsetAndMetadata offsetAndMetadata = readOffsetMessageValue(record.value());
+                            CommitRecordMetadataAndOffset commitRecordMetadataAndOffset =
+                                new CommitRecordMetadataAndOffset(
+                                    batchBaseOffset,
+                                    offsetAndMetadata
+                                );
+                            if (isTxnOffsetCommit) {
+                                pendingOffsets.get(batch.producerId()).put(
+                                    groupTopicPartition,
+                                    commitRecordMetadataAndOffset);
+                            } else {
+                                loadedOffsets.put(
+                                    groupTopicPartition,
+                                    commitRecordMetadataAndOffset
+                                );
+                            }
+                        }
+                    } else if (bk instanceof GroupMetadataKey) {
+                        GroupMetadataKey groupMetadataKey = (GroupMetadataKey) bk;
+                        String gid = groupMetadataKey.key();
+                        GroupMetadata gm = readGroupMessageValue(gid, record.value());
+                        if (gm != null) {
+                            removedGroups.remove(gid);
+                            loadedGroups.put(gid, gm);
+                        } else {
+                            loadedGroups.remove(gid);
+                            removedGroups.add(gid);
+                        }
+                    } else {
+                        throw new IllegalStateException(
+                            "Unexpected message key " + bk + " while loading offsets and group metadata");
+                    }
+                }
+            }
+        });
     }
 
     private void processLoadedAndRemovedGroups(CompletableFuture<Void> resultFuture,
@@ -1151,7 +1403,8 @@ public class GroupMetadataManager {
             GROUP_METADATA_TOPIC_NAME, offsetsPartition
         );
         log.info("Scheduling unloading of offsets and group metadata from {}", topicPartition);
-        scheduler.submit(() -> {
+        ScheduledExecutorService executor = partitionExecutor(offsetsPartition);
+        executor.submit(() -> {
             AtomicInteger numOffsetsRemoved = new AtomicInteger();
             AtomicInteger numGroupsRemoved = new AtomicInteger();
             inLock(partitionLock, () -> {
@@ -1178,7 +1431,7 @@ public class GroupMetadataManager {
                             log.error("Failed to close producer when remove partition {}.",
                                 producer.join().getTopic());
                         }
-                    }, scheduler);
+                    }, executor);
                 }
                 if (reader != null) {
                     reader.thenApplyAsync(p -> p.closeAsync()).whenCompleteAsync((ignore, t) -> {
@@ -1186,7 +1439,7 @@ public class GroupMetadataManager {
                             log.error("Failed to close reader when remove partition {}.",
                                 reader.join().getTopic());
                         }
-                    }, scheduler);
+                    }, executor);
                 }
 
                 return null;
@@ -1230,6 +1483,9 @@ public class GroupMetadataManager {
             Map<TopicPartition, OffsetAndMetadata> removedOffsets = result.getLeft();
             boolean groupIsDead = result.getMiddle();
             int generation = result.getRight();
+            if (!removedOffsets.isEmpty()) {
+                offsetsRemovedListener.accept(groupId, new HashSet<>(removedOffsets.keySet()));
+            }
 
             TimestampType timestampType = TimestampType.CREATE_TIME;
             long timestamp = time.milliseconds();
@@ -1260,12 +1516,13 @@ public class GroupMetadataManager {
                 byte[] groupKey = groupMetadataKey(
                     group.groupId()
                 );
+                ScheduledExecutorService executor = groupExecutor(group.groupId());
                 return getOffsetsTopicProducer(group.groupId())
                     .thenComposeAsync(f -> f.newMessage()
                         .keyBytes(groupKey)
                         .value(records.buffer())
-                        .eventTime(timestamp).sendAsync(), scheduler)
-                    .thenApplyAsync(ignored -> removedOffsets.size(), scheduler)
+                        .eventTime(timestamp).sendAsync(), executor)
+                    .thenApplyAsync(ignored -> removedOffsets.size(), executor)
                     .exceptionally(cause -> {
                         log.error("Failed to append {} tombstones to topic {} for expired/deleted "
                                 + "offsets and/or metadata for group {}",
@@ -1289,12 +1546,17 @@ public class GroupMetadataManager {
      * to the log. It may be invoked when a group lock is held by the caller, for instance when delayed
      * operations are completed while appending offsets for a group. Since we need to acquire one or
      * more group metadata locks to handle transaction completion, this operation is scheduled on
-     * the scheduler thread to avoid deadlocks.
+     * the threads of the completed partitions to avoid deadlocks.
      */
     public Future<?> scheduleHandleTxnCompletion(long producerId,
                                                  Set<Integer> completedPartitions,
                                                  boolean isCommit) {
-        return scheduler.submit(() -> handleTxnCompletion(producerId, completedPartitions, isCommit));
+        List<CompletableFuture<Void>> futures = completedPartitions.stream()
+            .map(partition -> CompletableFuture.runAsync(
+                () -> handleTxnCompletion(producerId, Collections.singleton(partition), isCommit),
+                partitionExecutor(partition)))
+            .collect(Collectors.toList());
+        return FutureUtil.waitForAll(futures);
     }
 
     void handleTxnCompletion(long producerId, Set<Integer> completedPartitions, boolean isCommit) {
@@ -1376,6 +1638,31 @@ public class GroupMetadataManager {
             });
     }
 
+    // the thread on which the work on the groups of the offsets topic partition is serialized.
+    ScheduledExecutorService partitionExecutor(int partitionId) {
+        return scheduler.chooseThread(partitionId);
+    }
+
+    private ScheduledExecutorService groupExecutor(String groupId) {
+        return partitionExecutor(partitionFor(groupId));
+    }
+
+    OffsetCommitAccumulator getOffsetCommitAccumulator(int partitionId) {
+        return offsetCommitAccumulators.computeIfAbsent(partitionId,
+            id -> new OffsetCommitAccumulator(
+                id,
+                offsetConfig.offsetCommitLingerMs(),
+                compressionType,
+                partitionExecutor(id),
+                time,
+                (key, buffer, timestamp) -> getOffsetsTopicProducer(id)
+                    .thenComposeAsync(f -> f.newMessage()
+                            .keyBytes(key)
+                            .value(buffer)
+                            .eventTime(timestamp).sendAsync()
+                        , partitionExecutor(id))));
+    }
+
     CompletableFuture<Reader<ByteBuffer>> getOffsetsTopicReader(int partitionId) {
         return offsetsReaders.computeIfAbsent(partitionId,
             id -> {
@@ -13,53 +13,79 @@
  */
 package io.streamnative.pulsar.handlers.kop.coordinator.group;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.streamnative.pulsar.handlers.kop.offset.OffsetAndMetadata;
 import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
 import io.streamnative.pulsar.handlers.kop.utils.TopicNameUtils;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.kafka.clients.consumer.ConsumerPartitionAssignor;
-import org.apache.kafka.clients.consumer.internals.ConsumerProtocol;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.kafka.common.TopicPartition;
-import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.broker.PulsarServerException;
+import org.apache.pulsar.broker.namespace.NamespaceService;
+import org.apache.pulsar.broker.service.BrokerService;
+import org.apache.pulsar.broker.service.Subscription;
+import org.apache.pulsar.broker.service.persistent.PersistentSubscription;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.client.admin.PulsarAdmin;
+import org.apache.pulsar.client.admin.PulsarAdminException;
 import org.apache.pulsar.client.api.MessageId;
-import org.apache.pulsar.client.api.ReaderBuilder;
-import org.apache.pulsar.client.api.Schema;
-import org.apache.pulsar.client.impl.PulsarClientImpl;
-import org.apache.pulsar.client.impl.ReaderBuilderImpl;
-import org.apache.pulsar.client.impl.ReaderImpl;
+import org.apache.pulsar.common.api.proto.PulsarApi.CommandSubscribe.InitialPosition;
 import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.util.FutureUtil;
 
 import java.io.Closeable;
-import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class used to track all the partition offset commit position.
+ *
+ * <p>The committed offset of a group on a partition is reflected in the durable subscription named after the
+ * group on the Pulsar topic, so that the backlog of the group is visible and retained. Commits are coalesced:
+ * only the latest offset of each partition is acknowledged, at most once per interval. The subscription cursor
+ * of a topic served by this broker is moved directly, while the subscription of a remote topic is reset through
+ * the admin client shared by all the groups. The subscription is deleted once the stored offset of the group on the
+ * partition is removed, because the offset expired or the group is deleted.
  */
 @Slf4j
 public class OffsetAcker implements Closeable {
 
-    private final ReaderBuilder<byte[]> readerBuilder;
+    private final BrokerService brokerService;
+    // null if the commits are acknowledged one by one.
+    private final ScheduledExecutorService ackExecutor;
+    private PulsarAdmin admin = null;
 
-    public OffsetAcker(PulsarClientImpl pulsarClient) {
-        this.readerBuilder = new ReaderBuilderImpl<>(pulsarClient, Schema.BYTES)
-            .receiverQueueSize(0)
-            .startMessageId(MessageId.earliest);
-    }
+    // acknowledgement state of each partition of each group: <groupId, <partition, state>>
+    final Map<String, Map<TopicPartition, PartitionAck>> partitionAcks = new ConcurrentHashMap<>();
 
-    // map off consumser: <groupId, consumers>
-    Map<String, Map<TopicPartition, CompletableFuture<Consumer<byte[]>>>> consumers = new ConcurrentHashMap<>();
+    // the acknowledgement state of a group on a partition. at most one acknowledgement is in flight, so that the
+    // subscription is moved in the order of the commits, and only forward.
+    static class PartitionAck {
+        // latest offset committed, not acknowledged yet.
+        long pendingOffset = -1L;
+        // latest offset acknowledged, or in flight.
+        long ackedOffset = -1L;
+        boolean inFlight = false;
+    }
 
-    public void addOffsetsTracker(String groupId, byte[] assignment) {
-        ByteBuffer assignBuffer = ByteBuffer.wrap(assignment);
-        ConsumerPartitionAssignor.Assignment assign = ConsumerProtocol.deserializeAssignment(assignBuffer);
-        if (log.isDebugEnabled()) {
-            log.debug(" Add offsets after sync group: {}", assign.toString());
+    public OffsetAcker(BrokerService brokerService, long ackIntervalMs) {
+        this.brokerService = brokerService;
+        if (ackIntervalMs > 0) {
+            this.ackExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("kop-offset-acker").setDaemon(true).build());
+            this.ackExecutor.scheduleWithFixedDelay(this::flush, ackIntervalMs, ackIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            this.ackExecutor = null;
         }
-        assign.partitions().forEach(topicPartition -> getConsumer(groupId, topicPartition));
     }
 
     public void ackOffsets(String groupId, Map<TopicPartition, OffsetAndMetadata> offsetMetadata) {
@@ -69,59 +95,209 @@ public class OffsetAcker implements Closeable {
                 log.debug("\t partition: {}, offset: {}",
                     partition, MessageIdUtils.getPosition(metadata.offset())));
         }
-        offsetMetadata.forEach(((topicPartition, offsetAndMetadata) -> {
-            // 1. get consumer, then do ackCumulative
-            CompletableFuture<Consumer<byte[]>> consumerFuture = getConsumer(groupId, topicPartition);
-
-            consumerFuture.whenComplete((consumer, throwable) -> {
-                if (throwable != null) {
-                    log.warn("Error when get consumer for offset ack:", throwable);
-                    return;
+        Map<TopicPartition, PartitionAck> groupAcks =
+            partitionAcks.computeIfAbsent(groupId, gid -> new ConcurrentHashMap<>());
+        offsetMetadata.forEach((topicPartition, offsetAndMetadata) -> {
+            PartitionAck partitionAck = groupAcks.computeIfAbsent(topicPartition, tp -> new PartitionAck());
+            synchronized (partitionAck) {
+                // an offset not newer than the latest one is dropped.
+                long offset = offsetAndMetadata.offset();
+                if (offset > partitionAck.pendingOffset && offset > partitionAck.ackedOffset) {
+                    partitionAck.pendingOffset = offset;
                 }
-                MessageId messageId = MessageIdUtils.getMessageId(offsetAndMetadata.offset());
-                consumer.acknowledgeCumulativeAsync(messageId);
+            }
+            if (ackExecutor == null) {
+                ackPending(groupId, topicPartition, partitionAck);
+            }
+        });
+    }
+
+    // acknowledge the latest pending offset of each partition.
+    void flush() {
+        partitionAcks.forEach((groupId, groupAcks) ->
+            groupAcks.forEach((topicPartition, partitionAck) -> ackPending(groupId, topicPartition, partitionAck)));
+    }
+
+    // acknowledge the pending offset of the partition, unless an acknowledgement is in flight. an offset committed
+    // meanwhile is acknowledged by the next flush, or once the acknowledgement completes if there is no interval.
+    private void ackPending(String groupId, TopicPartition topicPartition, PartitionAck partitionAck) {
+        long offset;
+        synchronized (partitionAck) {
+            if (partitionAck.inFlight || partitionAck.pendingOffset <= partitionAck.ackedOffset) {
+                return;
+            }
+            offset = partitionAck.pendingOffset;
+            partitionAck.ackedOffset = offset;
+            partitionAck.inFlight = true;
+        }
+        ackOffset(groupId, topicPartition, offset).whenComplete((ignored, cause) -> {
+            synchronized (partitionAck) {
+                partitionAck.inFlight = false;
+            }
+            if (ackExecutor == null) {
+                ackPending(groupId, topicPartition, partitionAck);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> ackOffset(String groupId, TopicPartition topicPartition, long offset) {
+        if (offset <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        TopicName topicName = TopicNameUtils.pulsarTopicName(topicPartition);
+        String topic = topicName.toString();
+        return isTopicOwned(topicName).thenCompose(owned -> {
+            if (!owned) {
+                return resetRemoteCursor(topic, groupId, offset);
+            }
+            return brokerService.getTopicIfExists(topic).thenCompose(optionalTopic -> {
+                if (optionalTopic.isPresent() && optionalTopic.get() instanceof PersistentTopic) {
+                    return markDelete((PersistentTopic) optionalTopic.get(), groupId, offset);
+                }
+                // the topic is loaded by the admin request, as its bundle is owned by this broker.
+                return resetRemoteCursor(topic, groupId, offset);
             });
-        }));
+        }).exceptionally(cause -> {
+            log.warn("Failed to acknowledge offset {} of group {} on {}", offset, groupId, topic, cause);
+            return null;
+        });
     }
 
-    public void close(Set<String> groupIds) {
-        groupIds.forEach(groupId -> consumers.get(groupId).values().forEach(consumerFuture -> {
-            consumerFuture.whenComplete((consumer, throwable) -> {
-                if (throwable != null) {
-                    log.warn("Error when get consumer for consumer group close:", throwable);
-                    return;
+    // whether the bundle of the topic is owned by this broker, so that its subscriptions are moved directly.
+    private CompletableFuture<Boolean> isTopicOwned(TopicName topicName) {
+        NamespaceService namespaceService = brokerService.pulsar().getNamespaceService();
+        return namespaceService.getBundleAsync(topicName).thenCompose(bundle -> {
+            try {
+                return CompletableFuture.completedFuture(namespaceService.isServiceUnitOwned(bundle));
+            } catch (Exception e) {
+                return FutureUtil.<Boolean>failedFuture(e);
+            }
+        });
+    }
+
+    // mark-delete the entries before the committed offset, which is the next message the group consumes.
+    private CompletableFuture<Void> markDelete(PersistentTopic topic, String groupId, long offset) {
+        PositionImpl committed = MessageIdUtils.getPosition(offset);
+        PositionImpl lastConfirmed = (PositionImpl) topic.getManagedLedger().getLastConfirmedEntry();
+        PositionImpl position = PositionImpl.get(committed.getLedgerId(), committed.getEntryId() - 1);
+        if (position.compareTo(lastConfirmed) > 0) {
+            position = lastConfirmed;
+        }
+        PositionImpl markDeletePosition = position;
+
+        Subscription subscription = topic.getSubscription(groupId);
+        CompletableFuture<Subscription> subscriptionFuture = subscription != null
+            ? CompletableFuture.completedFuture(subscription)
+            : topic.createSubscription(groupId, InitialPosition.Earliest, false);
+        return subscriptionFuture.thenCompose(sub -> {
+            ManagedCursor cursor = ((PersistentSubscription) sub).getCursor();
+            // the cursor is not moved backward, as the cumulative acknowledgement.
+            if (markDeletePosition.compareTo((PositionImpl) cursor.getMarkDeletedPosition()) <= 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            cursor.asyncMarkDelete(markDeletePosition, new MarkDeleteCallback() {
+                @Override
+                public void markDeleteComplete(Object ctx) {
+                    future.complete(null);
                 }
-                try {
-                    consumer.close();
-                } catch (Exception e) {
-                    log.warn("Error when close consumer topic: {}, sub: {}.",
-                        consumer.getTopic(), consumer.getSubscription(), e);
+
+                @Override
+                public void markDeleteFailed(ManagedLedgerException exception, Object ctx) {
+                    future.completeExceptionally(exception);
                 }
-            });
-        }));
+            }, null);
+            return future;
+        });
     }
 
-    @Override
-    public void close() {
-        log.info("close OffsetAcker with {} groupIds", consumers.size());
-        close(consumers.keySet());
+    // reset the subscription to the committed offset, creating it if needed.
+    private CompletableFuture<Void> resetRemoteCursor(String topic, String groupId, long offset) {
+        MessageId messageId = MessageIdUtils.getMessageId(offset);
+        PulsarAdmin pulsarAdmin;
+        try {
+            pulsarAdmin = getAdmin();
+        } catch (PulsarServerException e) {
+            return FutureUtil.failedFuture(e);
+        }
+        return pulsarAdmin.topics().resetCursorAsync(topic, groupId, messageId)
+            .handle((ignored, cause) -> {
+                if (cause == null) {
+                    return CompletableFuture.<Void>completedFuture(null);
+                }
+                if (unwrap(cause) instanceof PulsarAdminException.NotFoundException) {
+                    return pulsarAdmin.topics().createSubscriptionAsync(topic, groupId, messageId);
+                }
+                return FutureUtil.<Void>failedFuture(cause);
+            })
+            .thenCompose(future -> future);
+    }
+
+    private CompletableFuture<Void> deleteRemoteSubscription(String topic, String groupId) {
+        try {
+            return getAdmin().topics().deleteSubscriptionAsync(topic, groupId);
+        } catch (PulsarServerException e) {
+            return FutureUtil.failedFuture(e);
+        }
+    }
+
+    private synchronized PulsarAdmin getAdmin() throws PulsarServerException {
+        if (admin == null) {
+            admin = brokerService.pulsar().getAdminClient();
+        }
+        return admin;
+    }
+
+    private static Throwable unwrap(Throwable cause) {
+        return cause instanceof CompletionException && cause.getCause() != null ? cause.getCause() : cause;
     }
 
-    private CompletableFuture<Consumer<byte[]>> getConsumer(String groupId, TopicPartition topicPartition) {
-        Map<TopicPartition, CompletableFuture<Consumer<byte[]>>> group = consumers
-            .computeIfAbsent(groupId, gid -> new ConcurrentHashMap<>());
-        return group.computeIfAbsent(
-            topicPartition,
-            partition -> createConsumer(groupId, partition));
+    // stop tracking the deleted groups, their subscriptions are deleted with their stored offsets.
+    public void close(Set<String> groupIds) {
+        groupIds.forEach(partitionAcks::remove);
     }
 
-    private CompletableFuture<Consumer<byte[]>> createConsumer(String groupId, TopicPartition topicPartition) {
-        TopicName pulsarTopicName = TopicNameUtils.pulsarTopicName(topicPartition);
-        return readerBuilder.clone()
-            .topic(pulsarTopicName.toString())
-            .subscriptionRolePrefix(groupId)
-            .createAsync()
-            .thenApply(reader -> ((ReaderImpl<byte[]>) reader).getConsumer());
+    // delete the subscriptions of the partitions whose offsets are removed from the group, e.g. expired.
+    public void removeOffsets(String groupId, Set<TopicPartition> partitions) {
+        Map<TopicPartition, PartitionAck> groupAcks = partitionAcks.get(groupId);
+        partitions.forEach(topicPartition -> {
+            if (groupAcks != null) {
+                groupAcks.remove(topicPartition);
+            }
+            deleteSubscription(groupId, topicPartition);
+        });
+    }
+
+    private void deleteSubscription(String groupId, TopicPartition topicPartition) {
+        TopicName topicName = TopicNameUtils.pulsarTopicName(topicPartition);
+        String topic = topicName.toString();
+        isTopicOwned(topicName).thenCompose(owned -> {
+            if (!owned) {
+                return deleteRemoteSubscription(topic, groupId);
+            }
+            return brokerService.getTopicIfExists(topic).thenCompose(optionalTopic -> {
+                if (optionalTopic.isPresent()) {
+                    Subscription subscription = optionalTopic.get().getSubscription(groupId);
+                    return subscription == null
+                        ? CompletableFuture.<Void>completedFuture(null) : subscription.delete();
+                }
+                return deleteRemoteSubscription(topic, groupId);
+            });
+        }).exceptionally(cause -> {
+            if (!(unwrap(cause) instanceof PulsarAdminException.NotFoundException)) {
+                log.warn("Error when delete subscription {} of topic {}.", groupId, topic, cause);
+            }
+            return null;
+        });
     }
 
+    // acknowledge the pending offsets, the subscriptions are kept.
+    @Override
+    public void close() {
+        log.info("close OffsetAcker with {} groupIds", partitionAcks.size());
+        if (ackExecutor != null) {
+            ackExecutor.shutdown();
+            flush();
+        }
+    }
 }
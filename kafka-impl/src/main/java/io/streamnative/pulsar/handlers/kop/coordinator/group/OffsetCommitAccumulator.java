@@ -0,0 +1,177 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.coordinator.group;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.record.AbstractRecords;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.Time;
+import org.apache.pulsar.client.api.MessageId;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulator of the offset commits to a partition of the offsets topic.
+ *
+ * <p>The commits that arrive within a linger window are merged into one record batch, which is stored as one
+ * message, so one entry of the ledger, instead of one message per commit. Each commit completes once the
+ * merged message is persisted.
+ */
+@Slf4j
+class OffsetCommitAccumulator {
+
+    // flush before the linger window ends, once the pending records reach this size.
+    static final int MAX_BATCH_BYTES = 1024 * 1024;
+
+    /**
+     * Store of a message to the offsets topic partition.
+     */
+    interface OffsetMessageStore {
+        CompletableFuture<MessageId> store(byte[] key, ByteBuffer buffer, long timestamp);
+    }
+
+    private final byte magicValue = RecordBatch.CURRENT_MAGIC_VALUE;
+    private final int partitionId;
+    private final long lingerMs;
+    private final CompressionType compressionType;
+    private final ScheduledExecutorService scheduler;
+    private final Time time;
+    private final OffsetMessageStore store;
+
+    // the pending batch, guarded by this.
+    private byte[] pendingKey = null;
+    private List<SimpleRecord> pendingRecords = new ArrayList<>();
+    private List<CompletableFuture<MessageId>> pendingFutures = new ArrayList<>();
+    private int pendingBytes = 0;
+    // increased once a batch is flushed, so the scheduled flush of a flushed batch does nothing.
+    private long batchId = 0;
+
+    OffsetCommitAccumulator(int partitionId,
+                            long lingerMs,
+                            CompressionType compressionType,
+                            ScheduledExecutorService scheduler,
+                            Time time,
+                            OffsetMessageStore store) {
+        this.partitionId = partitionId;
+        this.lingerMs = lingerMs;
+        this.compressionType = compressionType;
+        this.scheduler = scheduler;
+        this.time = time;
+        this.store = store;
+    }
+
+    // add the records of an offset commit. key is the message key of the batch, if it is the first commit of it.
+    CompletableFuture<MessageId> append(byte[] key, List<SimpleRecord> records) {
+        CompletableFuture<MessageId> future = new CompletableFuture<>();
+        boolean flushNow = false;
+        synchronized (this) {
+            if (pendingFutures.isEmpty()) {
+                pendingKey = key;
+                long currentBatchId = batchId;
+                try {
+                    scheduler.schedule(() -> flush(currentBatchId), lingerMs, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // shutting down, not linger.
+                    flushNow = true;
+                }
+            }
+            pendingRecords.addAll(records);
+            pendingFutures.add(future);
+            for (SimpleRecord record : records) {
+                pendingBytes += record.key().remaining() + (record.value() == null ? 0 : record.value().remaining());
+            }
+            if (pendingBytes >= MAX_BATCH_BYTES) {
+                flushNow = true;
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+        return future;
+    }
+
+    private void flush(long expectedBatchId) {
+        synchronized (this) {
+            if (batchId != expectedBatchId) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    // store the pending batch as one message.
+    void flush() {
+        byte[] key;
+        List<SimpleRecord> records;
+        List<CompletableFuture<MessageId>> futures;
+        synchronized (this) {
+            if (pendingFutures.isEmpty()) {
+                return;
+            }
+            key = pendingKey;
+            records = pendingRecords;
+            futures = pendingFutures;
+            pendingKey = null;
+            pendingRecords = new ArrayList<>();
+            pendingFutures = new ArrayList<>();
+            pendingBytes = 0;
+            batchId++;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Flush {} offset commits with {} records to offsets partition {}",
+                futures.size(), records.size(), partitionId);
+        }
+
+        CompletableFuture<MessageId> storeFuture;
+        long timestamp = time.milliseconds();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(
+                AbstractRecords.estimateSizeInBytes(magicValue, compressionType, records));
+            MemoryRecordsBuilder builder = MemoryRecords.builder(
+                buffer, magicValue, compressionType,
+                TimestampType.CREATE_TIME, 0L, timestamp,
+                RecordBatch.NO_PRODUCER_ID,
+                RecordBatch.NO_PRODUCER_EPOCH,
+                0,
+                false,
+                RecordBatch.NO_PARTITION_LEADER_EPOCH
+            );
+            records.forEach(builder::append);
+            storeFuture = store.store(key, builder.build().buffer(), timestamp);
+        } catch (Exception e) {
+            storeFuture = new CompletableFuture<>();
+            storeFuture.completeExceptionally(e);
+        }
+
+        storeFuture.whenComplete((messageId, cause) -> futures.forEach(future -> {
+            if (cause != null) {
+                future.completeExceptionally(cause);
+            } else {
+                future.complete(messageId);
+            }
+        }));
+    }
+}
@@ -33,6 +33,10 @@ public class OffsetConfig {
     public static final long DefaultOffsetsRetentionCheckIntervalMs = 600000L;
     public static final String DefaultOffsetsTopicName = "public/default/__consumer_offsets";
     public static final int DefaultOffsetsNumPartitions = KafkaServiceConfiguration.DefaultOffsetsTopicNumPartitions;
+    public static final long DefaultOffsetCommitLingerMs = 0L;
+    public static final int DefaultOffsetsLoadThreads = 4;
+    public static final int DefaultOffsetsLoadBatchSize = 100;
+    public static final long DefaultOffsetsSnapshotIntervalMs = 0L;
 
     @Default
     private String offsetsTopicName = DefaultOffsetsTopicName;
@@ -46,4 +50,12 @@ public class OffsetConfig {
     private long offsetsRetentionCheckIntervalMs = DefaultOffsetsRetentionCheckIntervalMs;
     @Default
     private int offsetsTopicNumPartitions = DefaultOffsetsNumPartitions;
+    @Default
+    private long offsetCommitLingerMs = DefaultOffsetCommitLingerMs;
+    @Default
+    private int offsetsLoadThreads = DefaultOffsetsLoadThreads;
+    @Default
+    private int offsetsLoadBatchSize = DefaultOffsetsLoadBatchSize;
+    @Default
+    private long offsetsSnapshotIntervalMs = DefaultOffsetsSnapshotIntervalMs;
 }
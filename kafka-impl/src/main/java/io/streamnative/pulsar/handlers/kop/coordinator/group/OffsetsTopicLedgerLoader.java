@@ -0,0 +1,272 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.coordinator.group;
+
+import io.netty.buffer.ByteBuf;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.streamnative.pulsar.handlers.kop.utils.MessageRecordUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCursorCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.common.api.proto.PulsarApi.KeyValue;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Loader of a partition of the offsets topic, which reads the managed ledger of the partition in this broker
+ * directly, instead of reading the messages one by one through a Reader.
+ *
+ * <p>Entries are read in batches by a non-durable cursor, from the entry after a start position up to an end
+ * position, by default the last entry confirmed when the load starts. Each batch is decoded in the executor, while
+ * the next batch is being read. Batches of a partition are decoded in order, so the values are passed to the
+ * consumer in order.
+ */
+@Slf4j
+class OffsetsTopicLedgerLoader {
+
+    private static final Gauge LOADING_PARTITIONS = Gauge.build()
+        .name("kop_group_metadata_loading_partitions")
+        .help("Number of offsets topic partitions being loaded from their managed ledger")
+        .register();
+    private static final Gauge REMAINING_ENTRIES = Gauge.build()
+        .name("kop_group_metadata_load_remaining_entries")
+        .help("Estimated number of entries left to load of the offsets topic partitions being loaded")
+        .register();
+    private static final Counter LOADED_ENTRIES = Counter.build()
+        .name("kop_group_metadata_loaded_entries_total")
+        .help("Number of entries loaded from the offsets topic partitions")
+        .register();
+    private static final Counter LOADED_BYTES = Counter.build()
+        .name("kop_group_metadata_loaded_bytes_total")
+        .help("Bytes of entries loaded from the offsets topic partitions")
+        .register();
+
+    /**
+     * Consumer of the value of each message with a key, in order. Messages without key are placeholders.
+     */
+    interface MessageValueConsumer {
+        // snapshotId is the id of the snapshot that the message belongs to, or null if it is not a snapshot.
+        void accept(ByteBuffer value, String snapshotId);
+    }
+
+    private final String topicPartition;
+    private final ManagedLedger ledger;
+    private final PositionImpl startAfter;
+    private final int batchSize;
+    private final Executor decodeExecutor;
+    private final MessageValueConsumer valueConsumer;
+
+    private final CompletableFuture<Void> loadFuture = new CompletableFuture<>();
+    private PositionImpl endPosition;
+    private ManagedCursor cursor;
+    private long remainingEntries;
+
+    OffsetsTopicLedgerLoader(String topicPartition,
+                             ManagedLedger ledger,
+                             int batchSize,
+                             Executor decodeExecutor,
+                             MessageValueConsumer valueConsumer) {
+        this(topicPartition, ledger, PositionImpl.earliest, null, batchSize, decodeExecutor, valueConsumer);
+    }
+
+    // load the entries after startAfter, up to endPosition, or the last confirmed entry if it is null.
+    OffsetsTopicLedgerLoader(String topicPartition,
+                             ManagedLedger ledger,
+                             PositionImpl startAfter,
+                             PositionImpl endPosition,
+                             int batchSize,
+                             Executor decodeExecutor,
+                             MessageValueConsumer valueConsumer) {
+        this.topicPartition = topicPartition;
+        this.ledger = ledger;
+        this.startAfter = startAfter;
+        this.endPosition = endPosition;
+        this.batchSize = batchSize;
+        this.decodeExecutor = decodeExecutor;
+        this.valueConsumer = valueConsumer;
+    }
+
+    CompletableFuture<Void> load() {
+        if (endPosition == null) {
+            endPosition = (PositionImpl) ledger.getLastConfirmedEntry();
+        }
+        try {
+            cursor = ledger.newNonDurableCursor(startAfter,
+                "kop-group-metadata-loader-" + UUID.randomUUID().toString());
+        } catch (ManagedLedgerException e) {
+            loadFuture.completeExceptionally(e);
+            return loadFuture;
+        }
+
+        // exact if the range is in one ledger, otherwise the entries of the whole managed ledger.
+        remainingEntries = startAfter.getLedgerId() == endPosition.getLedgerId()
+            ? Math.max(0, endPosition.getEntryId() - startAfter.getEntryId())
+            : ledger.getNumberOfEntries();
+        LOADING_PARTITIONS.inc();
+        REMAINING_ENTRIES.inc(remainingEntries);
+        if (log.isDebugEnabled()) {
+            log.debug("Start loading about {} entries of {} up to {}", remainingEntries, topicPartition, endPosition);
+        }
+
+        readNext(CompletableFuture.completedFuture(null));
+        return loadFuture.whenComplete((ignored, cause) -> {
+            LOADING_PARTITIONS.dec();
+            synchronized (this) {
+                REMAINING_ENTRIES.dec(remainingEntries);
+                remainingEntries = 0;
+            }
+            deleteCursor();
+        });
+    }
+
+    // read the next batch once the batch before the previous one is decoded, so at most 2 batches are held.
+    private void readNext(CompletableFuture<Void> previousDecode) {
+        if (previousDecode.isCompletedExceptionally()) {
+            previousDecode.whenComplete((ignored, cause) -> loadFuture.completeExceptionally(cause));
+            return;
+        }
+        if (!cursor.hasMoreEntries() || ((PositionImpl) cursor.getReadPosition()).compareTo(endPosition) > 0) {
+            previousDecode.whenComplete((ignored, cause) -> {
+                if (cause != null) {
+                    loadFuture.completeExceptionally(cause);
+                } else {
+                    loadFuture.complete(null);
+                }
+            });
+            return;
+        }
+
+        cursor.asyncReadEntries(batchSize, new ReadEntriesCallback() {
+            @Override
+            public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                CompletableFuture<Void> decode = previousDecode.handleAsync((ignored, cause) -> {
+                    try {
+                        if (cause != null) {
+                            throw cause instanceof CompletionException
+                                ? (CompletionException) cause : new CompletionException(cause);
+                        }
+                        decodeEntries(entries);
+                        return null;
+                    } finally {
+                        entries.forEach(Entry::release);
+                    }
+                }, decodeExecutor);
+                previousDecode.whenComplete((ignored, cause) -> readNext(decode));
+            }
+
+            @Override
+            public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                log.error("Failed to read entries of {} from {}", topicPartition, cursor.getReadPosition(), exception);
+                loadFuture.completeExceptionally(exception);
+            }
+        }, null);
+    }
+
+    private void decodeEntries(List<Entry> entries) {
+        long decoded = 0;
+        for (Entry entry : entries) {
+            // entries written after the load started are not loaded.
+            if (((PositionImpl) entry.getPosition()).compareTo(endPosition) > 0) {
+                continue;
+            }
+            LOADED_BYTES.inc(entry.getLength());
+            decodeEntry(entry);
+            decoded++;
+        }
+        LOADED_ENTRIES.inc(decoded);
+        synchronized (this) {
+            long dec = Math.min(decoded, remainingEntries);
+            REMAINING_ENTRIES.dec(dec);
+            remainingEntries -= dec;
+        }
+    }
+
+    private void decodeEntry(Entry entry) {
+        ByteBuf metadataAndPayload = entry.getDataBuffer();
+        MessageMetadata msgMetadata = Commands.parseMessageMetadata(metadataAndPayload);
+        ByteBuf payload = null;
+        try {
+            payload = MessageRecordUtils.uncompressPayload(msgMetadata, metadataAndPayload);
+            if (!msgMetadata.hasNumMessagesInBatch()) {
+                if (msgMetadata.hasPartitionKey()) {
+                    valueConsumer.accept(payload.nioBuffer(), snapshotIdOf(msgMetadata.getPropertiesList()));
+                }
+                return;
+            }
+
+            int numMessages = msgMetadata.getNumMessagesInBatch();
+            for (int i = 0; i < numMessages; i++) {
+                SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata.newBuilder();
+                ByteBuf singleMessagePayload = Commands.deSerializeSingleMessageInBatch(payload,
+                    singleMessageMetadataBuilder, i, numMessages);
+                try {
+                    if (singleMessageMetadataBuilder.hasPartitionKey()) {
+                        valueConsumer.accept(singleMessagePayload.nioBuffer(),
+                            snapshotIdOf(singleMessageMetadataBuilder.getPropertiesList()));
+                    }
+                } finally {
+                    singleMessagePayload.release();
+                    singleMessageMetadataBuilder.recycle();
+                }
+            }
+        } catch (Exception e) {
+            throw new CompletionException(new IllegalStateException(
+                "Failed to decode entry " + entry.getPosition() + " of " + topicPartition, e));
+        } finally {
+            if (payload != null) {
+                payload.release();
+            }
+            msgMetadata.recycle();
+        }
+    }
+
+    private static String snapshotIdOf(List<KeyValue> properties) {
+        for (KeyValue property : properties) {
+            if (OffsetsTopicSnapshot.SNAPSHOT_PROPERTY.equals(property.getKey())) {
+                return property.getValue();
+            }
+        }
+        return null;
+    }
+
+    private void deleteCursor() {
+        ledger.asyncDeleteCursor(cursor.getName(), new DeleteCursorCallback() {
+            @Override
+            public void deleteCursorComplete(Object ctx) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Deleted cursor {} of {} after loading", cursor.getName(), topicPartition);
+                }
+            }
+
+            @Override
+            public void deleteCursorFailed(ManagedLedgerException exception, Object ctx) {
+                log.warn("Failed to delete cursor {} of {} after loading", cursor.getName(), topicPartition, exception);
+            }
+        }, null);
+    }
+}
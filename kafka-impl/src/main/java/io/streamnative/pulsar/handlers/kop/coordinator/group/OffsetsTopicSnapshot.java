@@ -0,0 +1,417 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.coordinator.group;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.OpenCursorCallback;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.kafka.common.record.AbstractRecords;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.ControlRecordType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.common.api.proto.PulsarApi.CommandSubscribe.InitialPosition;
+import org.apache.pulsar.common.util.FutureUtil;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Snapshot of the groups and offsets of a partition of the offsets topic.
+ *
+ * <p>A snapshot is the compaction of the partition up to a covered entry: the latest record of each key,
+ * without the deleted keys and the aborted transactions. It is stored in the partition itself, as messages with
+ * the {@link #SNAPSHOT_PROPERTY} property, after the covered entry. The latest snapshot is recorded by the durable
+ * cursor {@link #SNAPSHOT_CURSOR_NAME}: its mark-delete position is the covered entry, and its properties are the
+ * id and the first and last entries of the snapshot messages.
+ *
+ * <p>The partition is replayed by reading the snapshot messages, then the entries after the covered entry which
+ * are not snapshot messages. The entries before the covered entry are not needed anymore: the cursor is opened
+ * once the partition is loaded, so it keeps the entries not covered yet, and the retention of the offsets topic
+ * trims the rest. A reader of the partition, which has no access to the cursor, finds the snapshots by the
+ * {@link #COVERED_PROPERTY} and {@link #SIZE_PROPERTY} properties of their messages.
+ */
+@Slf4j
+@Getter
+class OffsetsTopicSnapshot {
+
+    static final String SNAPSHOT_CURSOR_NAME = "kop-group-metadata-snapshot";
+    static final String SNAPSHOT_PROPERTY = "kop-group-metadata-snapshot";
+    // the covered entry of the snapshot, and the number of its messages.
+    static final String COVERED_PROPERTY = "kop-group-metadata-snapshot-covered";
+    static final String SIZE_PROPERTY = "kop-group-metadata-snapshot-size";
+
+    private static final String ID_PROPERTY = "snapshotId";
+    private static final String FIRST_LEDGER_PROPERTY = "firstLedgerId";
+    private static final String FIRST_ENTRY_PROPERTY = "firstEntryId";
+    private static final String LAST_LEDGER_PROPERTY = "lastLedgerId";
+    private static final String LAST_ENTRY_PROPERTY = "lastEntryId";
+
+    /**
+     * Store of a snapshot message to the offsets topic partition.
+     */
+    interface SnapshotMessageStore {
+        CompletableFuture<MessageId> store(ByteBuffer buffer, Map<String, String> properties);
+    }
+
+    private final long id;
+    // the first and last entries of the snapshot messages.
+    private final PositionImpl first;
+    private final PositionImpl last;
+    // the last entry compacted in the snapshot.
+    private final PositionImpl covered;
+
+    OffsetsTopicSnapshot(long id, PositionImpl first, PositionImpl last, PositionImpl covered) {
+        this.id = id;
+        this.first = first;
+        this.last = last;
+        this.covered = covered;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[id=%d, first=%s, last=%s, covered=%s]", id, first, last, covered);
+    }
+
+    /**
+     * The latest snapshot of the partition, recorded by the snapshot cursor, if any.
+     */
+    static Optional<OffsetsTopicSnapshot> latest(ManagedLedger ledger) {
+        for (ManagedCursor cursor : ledger.getCursors()) {
+            if (!SNAPSHOT_CURSOR_NAME.equals(cursor.getName())) {
+                continue;
+            }
+            Map<String, Long> properties = cursor.getProperties();
+            if (properties == null || !properties.containsKey(ID_PROPERTY)
+                || !properties.containsKey(FIRST_LEDGER_PROPERTY) || !properties.containsKey(FIRST_ENTRY_PROPERTY)
+                || !properties.containsKey(LAST_LEDGER_PROPERTY) || !properties.containsKey(LAST_ENTRY_PROPERTY)) {
+                return Optional.empty();
+            }
+            return Optional.of(new OffsetsTopicSnapshot(
+                properties.get(ID_PROPERTY),
+                PositionImpl.get(properties.get(FIRST_LEDGER_PROPERTY), properties.get(FIRST_ENTRY_PROPERTY)),
+                PositionImpl.get(properties.get(LAST_LEDGER_PROPERTY), properties.get(LAST_ENTRY_PROPERTY)),
+                (PositionImpl) cursor.getMarkDeletedPosition()));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Replay the values of the messages of the partition up to the end position, or the last confirmed entry if
+     * it is null, starting from the snapshot if present.
+     */
+    static CompletableFuture<Void> replay(String topicPartition,
+                                          ManagedLedger ledger,
+                                          Optional<OffsetsTopicSnapshot> snapshot,
+                                          PositionImpl endPosition,
+                                          int batchSize,
+                                          Executor decodeExecutor,
+                                          Consumer<ByteBuffer> valueConsumer) {
+        if (!snapshot.isPresent()) {
+            return new OffsetsTopicLedgerLoader(topicPartition, ledger, PositionImpl.earliest, endPosition,
+                batchSize, decodeExecutor, (buffer, snapshotId) -> {
+                    if (snapshotId == null) {
+                        valueConsumer.accept(buffer);
+                    }
+                }).load();
+        }
+
+        OffsetsTopicSnapshot latest = snapshot.get();
+        String latestId = Long.toString(latest.id);
+        PositionImpl beforeFirst = PositionImpl.get(latest.first.getLedgerId(), latest.first.getEntryId() - 1);
+        if (log.isDebugEnabled()) {
+            log.debug("Replay {} from snapshot {}", topicPartition, latest);
+        }
+        return new OffsetsTopicLedgerLoader(topicPartition, ledger, beforeFirst, latest.last,
+            batchSize, decodeExecutor, (buffer, snapshotId) -> {
+                if (latestId.equals(snapshotId)) {
+                    valueConsumer.accept(buffer);
+                }
+            }).load()
+            .thenCompose(ignored -> new OffsetsTopicLedgerLoader(topicPartition, ledger, latest.covered,
+                endPosition, batchSize, decodeExecutor, (buffer, snapshotId) -> {
+                    if (snapshotId == null) {
+                        valueConsumer.accept(buffer);
+                    }
+                }).load());
+    }
+
+    /**
+     * Take a snapshot of the partition up to its last confirmed entry, and record it in the snapshot cursor.
+     *
+     * @return the snapshot, or empty if nothing was written since the latest snapshot
+     */
+    static CompletableFuture<Optional<OffsetsTopicSnapshot>> take(String topicPartition,
+                                                                  ManagedLedger ledger,
+                                                                  int batchSize,
+                                                                  Executor decodeExecutor,
+                                                                  CompressionType compressionType,
+                                                                  Time time,
+                                                                  SnapshotMessageStore store) {
+        Optional<OffsetsTopicSnapshot> previous = latest(ledger);
+        PositionImpl covered = (PositionImpl) ledger.getLastConfirmedEntry();
+        if (covered.getEntryId() < 0 || previous.map(s -> s.last.equals(covered)).orElse(false)) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        long id = Math.max(time.milliseconds(), previous.map(s -> s.id + 1).orElse(0L));
+
+        Compactor compactor = new Compactor();
+        return replay(topicPartition, ledger, previous, covered, batchSize, decodeExecutor, compactor)
+            .thenCompose(ignored -> {
+                List<ByteBuffer> buffers = compactor.build(compressionType, time.milliseconds());
+                Map<String, String> properties = new HashMap<>();
+                properties.put(SNAPSHOT_PROPERTY, Long.toString(id));
+                properties.put(COVERED_PROPERTY, covered.toString());
+                properties.put(SIZE_PROPERTY, Integer.toString(buffers.size()));
+                List<CompletableFuture<MessageId>> stores = buffers.stream()
+                    .map(buffer -> store.store(buffer, properties))
+                    .collect(Collectors.toList());
+                return FutureUtil.waitForAll(stores).thenApply(ignored2 -> {
+                    MessageIdImpl firstId = (MessageIdImpl) stores.get(0).join();
+                    MessageIdImpl lastId = (MessageIdImpl) stores.get(stores.size() - 1).join();
+                    return new OffsetsTopicSnapshot(id,
+                        PositionImpl.get(firstId.getLedgerId(), firstId.getEntryId()),
+                        PositionImpl.get(lastId.getLedgerId(), lastId.getEntryId()),
+                        covered);
+                });
+            })
+            .thenCompose(snapshot -> snapshot.record(ledger).thenApply(ignored -> Optional.of(snapshot)));
+    }
+
+    // move the snapshot cursor to the covered entry, with the snapshot in its properties.
+    private CompletableFuture<Void> record(ManagedLedger ledger) {
+        Map<String, Long> properties = new HashMap<>();
+        properties.put(ID_PROPERTY, id);
+        properties.put(FIRST_LEDGER_PROPERTY, first.getLedgerId());
+        properties.put(FIRST_ENTRY_PROPERTY, first.getEntryId());
+        properties.put(LAST_LEDGER_PROPERTY, last.getLedgerId());
+        properties.put(LAST_ENTRY_PROPERTY, last.getEntryId());
+
+        return openCursor(ledger).thenCompose(cursor -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            cursor.asyncMarkDelete(covered, properties, new MarkDeleteCallback() {
+                @Override
+                public void markDeleteComplete(Object ctx) {
+                    future.complete(null);
+                }
+
+                @Override
+                public void markDeleteFailed(ManagedLedgerException exception, Object ctx) {
+                    future.completeExceptionally(exception);
+                }
+            }, null);
+            return future;
+        });
+    }
+
+    /**
+     * Open the snapshot cursor, from the earliest entry if it does not exist yet, so that the entries not covered by
+     * a snapshot are not trimmed.
+     */
+    static CompletableFuture<ManagedCursor> openCursor(ManagedLedger ledger) {
+        CompletableFuture<ManagedCursor> future = new CompletableFuture<>();
+        ledger.asyncOpenCursor(SNAPSHOT_CURSOR_NAME, InitialPosition.Earliest, new OpenCursorCallback() {
+            @Override
+            public void openCursorComplete(ManagedCursor cursor, Object ctx) {
+                future.complete(cursor);
+            }
+
+            @Override
+            public void openCursorFailed(ManagedLedgerException exception, Object ctx) {
+                future.completeExceptionally(exception);
+            }
+        }, null);
+        return future;
+    }
+
+    /**
+     * Collector of the snapshot messages read in order by a reader of the partition.
+     *
+     * <p>A snapshot is complete once all its messages are read. The snapshot messages of a writer that failed in
+     * the middle are dropped once the next snapshot starts.
+     */
+    static class SnapshotMessages {
+
+        private String id = null;
+        private int size = 0;
+        // the covered entry of the snapshot, and the values of its messages read so far.
+        @Getter
+        private PositionImpl covered = null;
+        @Getter
+        private List<ByteBuffer> values = new ArrayList<>();
+
+        /**
+         * Add a snapshot message.
+         *
+         * @return true if all the messages of the snapshot are added
+         */
+        boolean add(Map<String, String> properties, ByteBuffer value) {
+            String messageId = properties.get(SNAPSHOT_PROPERTY);
+            String messageCovered = properties.get(COVERED_PROPERTY);
+            String messageSize = properties.get(SIZE_PROPERTY);
+            if (messageCovered == null || messageSize == null) {
+                return false;
+            }
+            if (!messageId.equals(id)) {
+                String[] position = messageCovered.split(":");
+                id = messageId;
+                size = Integer.parseInt(messageSize);
+                covered = PositionImpl.get(Long.parseLong(position[0]), Long.parseLong(position[1]));
+                values = new ArrayList<>();
+            }
+            values.add(value);
+            if (values.size() < size) {
+                return false;
+            }
+            // the next message starts another snapshot.
+            id = null;
+            return true;
+        }
+    }
+
+    /**
+     * Compactor of the values of the messages of a partition, in order.
+     */
+    static class Compactor implements Consumer<ByteBuffer> {
+
+        // the latest record of each key, without the deleted keys.
+        private final Map<ByteBuffer, SimpleRecord> records = new HashMap<>();
+        // the records of the open transaction of each producer.
+        private final Map<Long, Map<ByteBuffer, SimpleRecord>> pendingRecords = new HashMap<>();
+        private final Map<Long, Short> producerEpochs = new HashMap<>();
+
+        @Override
+        public void accept(ByteBuffer buffer) {
+            MemoryRecords.readableRecords(buffer).batches().forEach(batch -> {
+                if (batch.isControlBatch()) {
+                    Iterator<Record> recordIterator = batch.iterator();
+                    if (recordIterator.hasNext()) {
+                        Record record = recordIterator.next();
+                        Map<ByteBuffer, SimpleRecord> txnRecords = pendingRecords.remove(batch.producerId());
+                        producerEpochs.remove(batch.producerId());
+                        if (ControlRecordType.parse(record.key()) == ControlRecordType.COMMIT && txnRecords != null) {
+                            txnRecords.forEach(this::put);
+                        }
+                    }
+                    return;
+                }
+
+                for (Record record : batch) {
+                    checkArgument(record.hasKey(), "Group metadata/offset entry key should not be null");
+                    // the buffer is released once consumed, so the record is copied.
+                    byte[] key = Utils.toArray(record.key());
+                    byte[] value = record.hasValue() ? Utils.toArray(record.value()) : null;
+                    SimpleRecord copy = new SimpleRecord(record.timestamp(), key, value);
+                    if (batch.isTransactional()) {
+                        Map<ByteBuffer, SimpleRecord> txnRecords =
+                            pendingRecords.computeIfAbsent(batch.producerId(), producerId -> new HashMap<>());
+                        producerEpochs.put(batch.producerId(), batch.producerEpoch());
+                        if (value == null) {
+                            txnRecords.remove(ByteBuffer.wrap(key));
+                        } else {
+                            txnRecords.put(ByteBuffer.wrap(key), copy);
+                        }
+                    } else {
+                        put(ByteBuffer.wrap(key), copy);
+                    }
+                }
+            });
+        }
+
+        private void put(ByteBuffer key, SimpleRecord record) {
+            if (record.value() == null) {
+                records.remove(key);
+            } else {
+                records.put(key, record);
+            }
+        }
+
+        /**
+         * Build the compacted records, in batches of at most about {@link OffsetCommitAccumulator#MAX_BATCH_BYTES}
+         * bytes, and one transactional batch per open transaction. There is at least one, maybe empty, batch.
+         */
+        List<ByteBuffer> build(CompressionType compressionType, long timestamp) {
+            List<ByteBuffer> buffers = new ArrayList<>();
+            List<SimpleRecord> batchRecords = new ArrayList<>();
+            int batchBytes = 0;
+            for (SimpleRecord record : records.values()) {
+                batchRecords.add(record);
+                batchBytes += record.key().remaining() + record.value().remaining();
+                if (batchBytes >= OffsetCommitAccumulator.MAX_BATCH_BYTES) {
+                    buffers.add(buildBatch(batchRecords, compressionType, timestamp,
+                        RecordBatch.NO_PRODUCER_ID, RecordBatch.NO_PRODUCER_EPOCH));
+                    batchRecords = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+            if (!batchRecords.isEmpty() || buffers.isEmpty()) {
+                buffers.add(buildBatch(batchRecords, compressionType, timestamp,
+                    RecordBatch.NO_PRODUCER_ID, RecordBatch.NO_PRODUCER_EPOCH));
+            }
+
+            pendingRecords.forEach((producerId, txnRecords) -> {
+                if (!txnRecords.isEmpty()) {
+                    buffers.add(buildBatch(new ArrayList<>(txnRecords.values()), compressionType, timestamp,
+                        producerId, producerEpochs.get(producerId)));
+                }
+            });
+            return buffers;
+        }
+
+        private static ByteBuffer buildBatch(List<SimpleRecord> batchRecords,
+                                             CompressionType compressionType,
+                                             long timestamp,
+                                             long producerId,
+                                             short producerEpoch) {
+            byte magicValue = RecordBatch.CURRENT_MAGIC_VALUE;
+            ByteBuffer buffer = ByteBuffer.allocate(
+                AbstractRecords.estimateSizeInBytes(magicValue, compressionType, batchRecords));
+            MemoryRecordsBuilder builder = MemoryRecords.builder(
+                buffer, magicValue, compressionType,
+                TimestampType.CREATE_TIME, 0L, timestamp,
+                producerId,
+                producerEpoch,
+                0,
+                producerId != RecordBatch.NO_PRODUCER_ID,
+                RecordBatch.NO_PARTITION_LEADER_EPOCH
+            );
+            batchRecords.forEach(builder::append);
+            return builder.build().buffer();
+        }
+    }
+}
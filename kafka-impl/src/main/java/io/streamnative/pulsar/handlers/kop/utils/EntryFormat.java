@@ -0,0 +1,43 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.utils;
+
+import java.util.Arrays;
+
+/**
+ * The format of the entries that KoP writes into a topic.
+ */
+public enum EntryFormat {
+
+    /**
+     * Each Kafka record is converted into a Pulsar message, and records of a produce request are
+     * written as a Pulsar batched message. Topics could be consumed by both Kafka and Pulsar clients.
+     */
+    PULSAR,
+
+    /**
+     * The produced Kafka records batch is written as-is, behind a Pulsar metadata header.
+     * Topics could only be consumed by Kafka clients.
+     */
+    KAFKA;
+
+    public static EntryFormat of(String entryFormat) {
+        try {
+            return EntryFormat.valueOf(entryFormat.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid entryFormat '" + entryFormat + "', it should be one of "
+                + Arrays.toString(EntryFormat.values()), e);
+        }
+    }
+}
@@ -15,12 +15,15 @@ package io.streamnative.pulsar.handlers.kop.utils;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.Lists;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.time.Clock;
 import java.util.Base64;
 import java.util.Iterator;
@@ -32,6 +35,7 @@ import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.internals.RecordHeader;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.MutableRecordBatch;
 import org.apache.kafka.common.record.Record;
 import org.apache.kafka.common.record.RecordBatch;
 import org.apache.kafka.common.record.TimestampType;
@@ -49,6 +53,8 @@ import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
 import org.apache.pulsar.common.compression.CompressionCodecProvider;
 import org.apache.pulsar.common.protocol.Commands;
 import org.apache.pulsar.common.protocol.Commands.ChecksumType;
+import org.apache.pulsar.common.util.protobuf.ByteBufCodedOutputStream;
+import org.apache.pulsar.shaded.com.google.protobuf.v241.ByteString;
 
 /**
  * Pulsar Message and Kafka Record utils.
@@ -59,6 +65,9 @@ public final class MessageRecordUtils {
     private static final int DEFAULT_FETCH_BUFFER_SIZE = 1024 * 1024;
     private static final int MAX_RECORDS_BUFFER_SIZE = 100 * 1024 * 1024;
     private static final String FAKE_KOP_PRODUCER_NAME = "fake_kop_producer_name";
+    // property in the metadata of an entry which is written in kafka entry format.
+    private static final String ENTRY_FORMAT_PROPERTY = "kop.entry.format";
+    private static final String KAFKA_ENTRY_FORMAT = "kafka";
 
     private static final Clock clock = Clock.systemDefaultZone();
 
@@ -144,45 +153,44 @@ public final class MessageRecordUtils {
     protected static final int MAX_MESSAGE_BATCH_SIZE_BYTES = 128 * 1024;
 
     // If records stored in a batched way, turn MemoryRecords into a pulsar batched message.
+    // Records are serialized from the request buffer into a pooled buffer directly, without creating messages.
     public static ByteBuf recordsToByteBuf(MemoryRecords records, int size) {
-        long currentBatchSizeBytes = 0;
         int numMessagesInBatch = 0;
-
         long sequenceId = -1;
-        // TODO: handle different compression type
-        PulsarApi.CompressionType compressionType = PulsarApi.CompressionType.NONE;
+        // keep the payload compressed in storage with the codec the producer used.
+        PulsarApi.CompressionType compressionType = toPulsarCompressionType(getCompressionType(records));
 
         ByteBuf batchedMessageMetadataAndPayload = PulsarByteBufAllocator.DEFAULT
-            .buffer(Math.min(INITIAL_BATCH_BUFFER_SIZE, MAX_MESSAGE_BATCH_SIZE_BYTES));
-        List<MessageImpl<byte[]>> messages = Lists.newArrayListWithExpectedSize(size);
-        MessageMetadata.Builder messageMetaBuilder = MessageMetadata.newBuilder();
+            .buffer(Math.min(Math.max(records.sizeInBytes(), INITIAL_BATCH_BUFFER_SIZE),
+                MAX_MESSAGE_BATCH_SIZE_BYTES));
 
-        Iterator<Record> iterator = records.records().iterator();
-        while (iterator.hasNext()) {
-            MessageImpl<byte[]> message = recordToEntry(iterator.next());
-            if (++numMessagesInBatch == 1) {
-                sequenceId = Commands.initBatchMessageMetadata(messageMetaBuilder, message.getMessageBuilder());
-            }
-            messages.add(message);
-            currentBatchSizeBytes += message.getDataBuffer().readableBytes();
-
-            if (log.isDebugEnabled()) {
-                log.debug("recordsToByteBuf , sequenceId: {}, numMessagesInBatch: {}, currentBatchSizeBytes: {} ",
-                    sequenceId, numMessagesInBatch, currentBatchSizeBytes);
+        for (Record record : records.records()) {
+            if (++numMessagesInBatch == 1 && record.sequence() >= 0) {
+                sequenceId = record.sequence();
             }
+            serializeRecordInBatch(record, batchedMessageMetadataAndPayload);
         }
 
-        for (MessageImpl<byte[]> msg : messages) {
-            PulsarApi.MessageMetadata.Builder msgBuilder = msg.getMessageBuilder();
-            batchedMessageMetadataAndPayload = Commands.serializeSingleMessageInBatchWithPayload(msgBuilder,
-                msg.getDataBuffer(), batchedMessageMetadataAndPayload);
-            msgBuilder.recycle();
+        if (log.isDebugEnabled()) {
+            log.debug("recordsToByteBuf , sequenceId: {}, numMessagesInBatch: {}, currentBatchSizeBytes: {} ",
+                sequenceId, numMessagesInBatch, batchedMessageMetadataAndPayload.readableBytes());
         }
+
+        MessageMetadata.Builder messageMetaBuilder = MessageMetadata.newBuilder();
+        messageMetaBuilder.setProducerName(FAKE_KOP_PRODUCER_NAME);
+        messageMetaBuilder.setSequenceId(sequenceId);
+        messageMetaBuilder.setPublishTime(clock.millis());
+
         int uncompressedSize = batchedMessageMetadataAndPayload.readableBytes();
 
         if (PulsarApi.CompressionType.NONE != compressionType) {
             messageMetaBuilder.setCompression(compressionType);
             messageMetaBuilder.setUncompressedSize(uncompressedSize);
+
+            ByteBuf compressedPayload = CompressionCodecProvider.getCompressionCodec(compressionType)
+                .encode(batchedMessageMetadataAndPayload);
+            batchedMessageMetadataAndPayload.release();
+            batchedMessageMetadataAndPayload = compressedPayload;
         }
 
         messageMetaBuilder.setNumMessagesInBatch(numMessagesInBatch);
@@ -200,7 +208,152 @@ public final class MessageRecordUtils {
         return buf;
     }
 
+    // Serialize a kafka record as a single message of a pulsar batch into batchBuffer.
+    // The value is written from the record buffer directly, and the metadata builder is recycled.
+    private static void serializeRecordInBatch(Record record, ByteBuf batchBuffer) {
+        SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata.newBuilder();
+
+        // key
+        if (record.hasKey()) {
+            // record.key() returns a new view of the key each time, so both read from the record buffer.
+            ByteString key = ByteString.copyFrom(record.key());
+            ByteBuffer encodedKey = Base64.getEncoder().encode(record.key());
+            singleMessageMetadataBuilder.setPartitionKey(
+                new String(encodedKey.array(), encodedKey.arrayOffset(), encodedKey.remaining(), US_ASCII));
+            singleMessageMetadataBuilder.setPartitionKeyB64Encoded(true);
+            // reuse ordering key to avoid converting string < > bytes
+            singleMessageMetadataBuilder.setOrderingKey(key);
+        }
+
+        // sequence
+        if (record.sequence() >= 0) {
+            singleMessageMetadataBuilder.setSequenceId(record.sequence());
+        }
+
+        // timestamp
+        if (record.timestamp() >= 0) {
+            singleMessageMetadataBuilder.setEventTime(record.timestamp());
+        }
+
+        // header
+        for (Header h : record.headers()) {
+            singleMessageMetadataBuilder.addProperties(KeyValue.newBuilder()
+                .setKey(h.key())
+                .setValue(new String(h.value(), UTF_8))
+                .build());
+        }
+
+        SingleMessageMetadata singleMessageMetadata = singleMessageMetadataBuilder
+            .setPayloadSize(record.valueSize() > 0 ? record.valueSize() : 0)
+            .build();
+
+        // serialize meta-data size, meta-data and payload for single message in batch
+        batchBuffer.writeInt(singleMessageMetadata.getSerializedSize());
+        ByteBufCodedOutputStream outStream = ByteBufCodedOutputStream.get(batchBuffer);
+        try {
+            singleMessageMetadata.writeTo(outStream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            outStream.recycle();
+            singleMessageMetadata.recycle();
+            singleMessageMetadataBuilder.recycle();
+        }
+        if (record.hasValue()) {
+            batchBuffer.writeBytes(record.value());
+        }
+    }
+
+    // Turn MemoryRecords into an entry in kafka entry format.
+    // The records batch is kept as-is, with a pulsar metadata header in front of it.
+    public static ByteBuf recordsToKafkaEntry(MemoryRecords records, int numMessages) {
+        MessageMetadata.Builder messageMetaBuilder = MessageMetadata.newBuilder();
+        messageMetaBuilder.setProducerName(FAKE_KOP_PRODUCER_NAME);
+        messageMetaBuilder.setSequenceId(-1);
+        messageMetaBuilder.setPublishTime(clock.millis());
+        messageMetaBuilder.setNumMessagesInBatch(numMessages);
+        messageMetaBuilder.addProperties(KeyValue.newBuilder()
+            .setKey(ENTRY_FORMAT_PROPERTY)
+            .setValue(KAFKA_ENTRY_FORMAT)
+            .build());
+        MessageMetadata msgMetadata = messageMetaBuilder.build();
+
+        ByteBuf payload = Unpooled.wrappedBuffer(records.buffer());
+        ByteBuf buf = Commands.serializeMetadataAndPayload(ChecksumType.Crc32c, msgMetadata, payload);
+
+        messageMetaBuilder.recycle();
+        msgMetadata.recycle();
+        payload.release();
+
+        return buf;
+    }
+
+    // the compression type of records, producer uses the same compression type for all the batches of a request.
+    private static org.apache.kafka.common.record.CompressionType getCompressionType(MemoryRecords records) {
+        Iterator<MutableRecordBatch> iterator = records.batches().iterator();
+        if (iterator.hasNext()) {
+            return iterator.next().compressionType();
+        }
+        return org.apache.kafka.common.record.CompressionType.NONE;
+    }
+
+    private static PulsarApi.CompressionType toPulsarCompressionType(
+            org.apache.kafka.common.record.CompressionType compressionType) {
+        switch (compressionType) {
+            case GZIP:
+                return PulsarApi.CompressionType.ZLIB;
+            case SNAPPY:
+                return PulsarApi.CompressionType.SNAPPY;
+            case LZ4:
+                return PulsarApi.CompressionType.LZ4;
+            case ZSTD:
+                return PulsarApi.CompressionType.ZSTD;
+            default:
+                return PulsarApi.CompressionType.NONE;
+        }
+    }
+
+    private static org.apache.kafka.common.record.CompressionType toKafkaCompressionType(
+            PulsarApi.CompressionType compressionType) {
+        switch (compressionType) {
+            case ZLIB:
+                return org.apache.kafka.common.record.CompressionType.GZIP;
+            case SNAPPY:
+                return org.apache.kafka.common.record.CompressionType.SNAPPY;
+            case LZ4:
+                return org.apache.kafka.common.record.CompressionType.LZ4;
+            case ZSTD:
+                return org.apache.kafka.common.record.CompressionType.ZSTD;
+            default:
+                return org.apache.kafka.common.record.CompressionType.NONE;
+        }
+    }
+
+    // the compression type of the first entry, which is used to compress the fetched records.
+    private static org.apache.kafka.common.record.CompressionType getCompressionType(List<Entry> entries) {
+        // not move the reader index of the entry buffer.
+        MessageMetadata msgMetadata = Commands.parseMessageMetadata(entries.get(0).getDataBuffer().duplicate());
+        org.apache.kafka.common.record.CompressionType compressionType = isKafkaEntryFormat(msgMetadata)
+            ? org.apache.kafka.common.record.CompressionType.NONE
+            : toKafkaCompressionType(msgMetadata.getCompression());
+        msgMetadata.recycle();
+        return compressionType;
+    }
+
+    private static boolean isKafkaEntryFormat(MessageMetadata msgMetadata) {
+        for (KeyValue kv : msgMetadata.getPropertiesList()) {
+            if (ENTRY_FORMAT_PROPERTY.equals(kv.getKey())) {
+                return KAFKA_ENTRY_FORMAT.equals(kv.getValue());
+            }
+        }
+        return false;
+    }
+
     private static Header[] getHeadersFromMetadata(List<KeyValue> properties) {
+        if (properties.isEmpty()) {
+            return Record.EMPTY_HEADERS;
+        }
+
         Header[] headers = new Header[properties.size()];
 
         if (log.isDebugEnabled()) {
@@ -225,9 +378,15 @@ public final class MessageRecordUtils {
     // Convert entries read from BookKeeper into Kafka Records
     // Entries can be batched messages, may need un-batch.
     public static MemoryRecords entriesToRecords(List<org.apache.bookkeeper.mledger.Entry> entries) {
+        MemoryRecords kafkaRecords = kafkaEntriesToRecords(entries);
+        if (kafkaRecords != null) {
+            entries.forEach(Entry::release);
+            return kafkaRecords;
+        }
+
         try (ByteBufferOutputStream outputStream = new ByteBufferOutputStream(DEFAULT_FETCH_BUFFER_SIZE)) {
             MemoryRecordsBuilder builder = new MemoryRecordsBuilder(outputStream, RecordBatch.CURRENT_MAGIC_VALUE,
-                org.apache.kafka.common.record.CompressionType.NONE,
+                getCompressionType(entries),
                 TimestampType.CREATE_TIME,
                 MessageIdUtils.getOffset(entries.get(0).getLedgerId(), 0),
                 RecordBatch.NO_TIMESTAMP,
@@ -244,7 +403,7 @@ public final class MessageRecordUtils {
                 MessageMetadata msgMetadata = Commands.parseMessageMetadata(metadataAndPayload);
                 int numMessages = msgMetadata.getNumMessagesInBatch();
                 boolean notBatchMessage = (numMessages == 1 && !msgMetadata.hasNumMessagesInBatch());
-                ByteBuf payload = metadataAndPayload.retain();
+                ByteBuf payload = uncompressPayload(msgMetadata, metadataAndPayload);
 
                 if (log.isDebugEnabled()) {
                     log.debug("entriesToRecords.  NumMessagesInBatch: {}, isBatchMessage: {}, entries in list: {}."
@@ -256,7 +415,17 @@ public final class MessageRecordUtils {
                 // need handle encryption
                 checkState(msgMetadata.getEncryptionKeysCount() == 0);
 
-                if (!notBatchMessage) {
+                if (isKafkaEntryFormat(msgMetadata)) {
+                    // a kafka format entry in a mix of formats, e.g. after entryFormat changed.
+                    long offset = MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId());
+                    for (Record record : MemoryRecords.readableRecords(payload.nioBuffer()).records()) {
+                        builder.appendWithOffset(offset++,
+                            record.timestamp(),
+                            record.key(),
+                            record.value(),
+                            record.headers());
+                    }
+                } else if (!notBatchMessage) {
                     for (int i = 0; i < numMessages; ++i) {
                         if (log.isDebugEnabled()) {
                             log.debug(" processing message num - {} in batch", i);
@@ -264,37 +433,34 @@ public final class MessageRecordUtils {
 
                         SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata
                             .newBuilder();
-                        ByteBuf singleMessagePayload = Commands.deSerializeSingleMessageInBatch(metadataAndPayload,
+                        ByteBuf singleMessagePayload = Commands.deSerializeSingleMessageInBatch(payload,
                             singleMessageMetadataBuilder, i, numMessages);
 
                         SingleMessageMetadata singleMessageMetadata = singleMessageMetadataBuilder.build();
+                        long timestamp = singleMessageMetadata.hasEventTime()
+                            ? singleMessageMetadata.getEventTime()
+                            : (msgMetadata.getEventTime() > 0
+                                ? msgMetadata.getEventTime() : msgMetadata.getPublishTime());
 
-                        // TODO: optimize this to avoid memory copy
-                        byte[] data = new byte[singleMessagePayload.readableBytes()];
-                        singleMessagePayload.readBytes(data);
-                        singleMessagePayload.release();
-                        Header[] headers = getHeadersFromMetadata(singleMessageMetadata.getPropertiesList());
-
+                        // value is appended from a slice of the entry payload, without copying into an array.
                         builder.appendWithOffset(
                             MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId(), i),
-                            msgMetadata.getEventTime() > 0 ? msgMetadata.getEventTime() : msgMetadata.getPublishTime(),
-                            getKeyBytes(singleMessageMetadata),
-                            data,
-                            headers);
+                            timestamp,
+                            getKey(singleMessageMetadata),
+                            singleMessagePayload.nioBuffer(),
+                            getHeadersFromMetadata(singleMessageMetadata.getPropertiesList()));
+
+                        singleMessagePayload.release();
+                        singleMessageMetadata.recycle();
                         singleMessageMetadataBuilder.recycle();
                     }
                 } else {
-                    // TODO: optimize this to avoid memory copy
-                    byte[] data = new byte[payload.readableBytes()];
-                    payload.readBytes(data);
-                    Header[] headers = getHeadersFromMetadata(msgMetadata.getPropertiesList());
-
                     builder.appendWithOffset(
                         MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId()),
                         msgMetadata.getEventTime() > 0 ? msgMetadata.getEventTime() : msgMetadata.getPublishTime(),
-                        getKeyBytes(msgMetadata),
-                        data,
-                        headers);
+                        getKey(msgMetadata),
+                        payload.nioBuffer(),
+                        getHeadersFromMetadata(msgMetadata.getPropertiesList()));
                 }
 
                 payload.release();
@@ -310,31 +476,83 @@ public final class MessageRecordUtils {
         }
     }
 
-    private static byte[] getKeyBytes(MessageMetadata messageMetadata) {
+    // Returns the uncompressed payload of an entry, which should be released by the caller.
+    public static ByteBuf uncompressPayload(MessageMetadata msgMetadata, ByteBuf metadataAndPayload)
+            throws IOException {
+        if (!msgMetadata.hasCompression() || msgMetadata.getCompression() == PulsarApi.CompressionType.NONE) {
+            return metadataAndPayload.retain();
+        }
+        return CompressionCodecProvider.getCompressionCodec(msgMetadata.getCompression())
+            .decode(metadataAndPayload, msgMetadata.getUncompressedSize());
+    }
+
+    // Concatenate the records batches of entries in kafka entry format, without converting any record.
+    // Only the base offset of each batch is patched, to the offset of the entry it is stored in.
+    // Returns null if any of the entries is not in kafka entry format.
+    private static MemoryRecords kafkaEntriesToRecords(List<Entry> entries) {
+        List<ByteBuf> payloads = Lists.newArrayListWithExpectedSize(entries.size());
+        int totalSize = 0;
+        for (Entry entry : entries) {
+            // not move the reader index of the entry buffer, which is still needed if this returns null.
+            ByteBuf payload = entry.getDataBuffer().duplicate();
+            MessageMetadata msgMetadata = Commands.parseMessageMetadata(payload);
+            boolean kafkaEntryFormat = isKafkaEntryFormat(msgMetadata);
+            msgMetadata.recycle();
+            if (!kafkaEntryFormat) {
+                return null;
+            }
+            payloads.add(payload);
+            totalSize += payload.readableBytes();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(totalSize);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            ByteBuf payload = payloads.get(i);
+
+            ByteBuffer entryBuffer = buffer.slice();
+            entryBuffer.limit(payload.readableBytes());
+            payload.readBytes(entryBuffer);
+            entryBuffer.flip();
+
+            long offset = MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId());
+            for (MutableRecordBatch batch : MemoryRecords.readableRecords(entryBuffer).batches()) {
+                // crc of a batch not covers the base offset, so there is no need to re-compute it.
+                long lastOffset = offset + batch.lastOffset() - batch.baseOffset();
+                batch.setLastOffset(lastOffset);
+                offset = lastOffset + 1;
+            }
+            buffer.position(buffer.position() + entryBuffer.limit());
+        }
+        buffer.flip();
+        return MemoryRecords.readableRecords(buffer);
+    }
+
+    private static ByteBuffer getKey(MessageMetadata messageMetadata) {
         if (messageMetadata.hasOrderingKey()) {
-            return messageMetadata.getOrderingKey().toByteArray();
+            return messageMetadata.getOrderingKey().asReadOnlyByteBuffer();
         }
 
         String key = messageMetadata.getPartitionKey();
         if (messageMetadata.hasPartitionKeyB64Encoded()) {
-            return Base64.getDecoder().decode(key);
+            return ByteBuffer.wrap(Base64.getDecoder().decode(key));
         } else {
             // for Base64 not encoded string, convert to UTF_8 chars
-            return key.getBytes(UTF_8);
+            return ByteBuffer.wrap(key.getBytes(UTF_8));
         }
     }
 
-    private static byte[] getKeyBytes(SingleMessageMetadata messageMetadata) {
+    private static ByteBuffer getKey(SingleMessageMetadata messageMetadata) {
         if (messageMetadata.hasOrderingKey()) {
-            return messageMetadata.getOrderingKey().toByteArray();
+            return messageMetadata.getOrderingKey().asReadOnlyByteBuffer();
         }
 
         String key = messageMetadata.getPartitionKey();
         if (messageMetadata.hasPartitionKeyB64Encoded()) {
-            return Base64.getDecoder().decode(key);
+            return ByteBuffer.wrap(Base64.getDecoder().decode(key));
         } else {
             // for Base64 not encoded string, convert to UTF_8 chars
-            return key.getBytes(UTF_8);
+            return ByteBuffer.wrap(key.getBytes(UTF_8));
         }
     }
 
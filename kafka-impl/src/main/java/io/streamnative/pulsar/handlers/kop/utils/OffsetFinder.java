@@ -17,6 +17,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.Range;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import lombok.extern.slf4j.Slf4j;
@@ -38,6 +39,8 @@ import org.apache.pulsar.client.impl.MessageImpl;
 @Slf4j
 public class OffsetFinder implements AsyncCallbacks.FindEntryCallback {
     private final ManagedLedgerImpl managedLedger;
+    // used to narrow the entries to search, could be null.
+    private final TimestampIndex timestampIndex;
     private long timestamp = 0;
 
     private static final int FALSE = 0;
@@ -48,7 +51,12 @@ public class OffsetFinder implements AsyncCallbacks.FindEntryCallback {
         AtomicIntegerFieldUpdater.newUpdater(OffsetFinder.class, "messageFindInProgress");
 
     public OffsetFinder(ManagedLedgerImpl managedLedger) {
+        this(managedLedger, null);
+    }
+
+    public OffsetFinder(ManagedLedgerImpl managedLedger, TimestampIndex timestampIndex) {
         this.managedLedger = managedLedger;
+        this.timestampIndex = timestampIndex;
     }
 
     public void findMessages(final long timestamp, AsyncCallbacks.FindEntryCallback callback) {
@@ -116,6 +124,17 @@ public class OffsetFinder implements AsyncCallbacks.FindEntryCallback {
                                         FindEntryCallback callback, Object ctx) {
         checkState(constraint == FindPositionConstraint.SearchAllAvailableEntries);
 
+        if (timestampIndex != null) {
+            Range<PositionImpl> range = timestampIndex.searchRange(timestamp);
+            if (range != null) {
+                long max = managedLedger.getNumberOfEntries(range) - 1;
+                OpFindNewestEntry op = new OpFindNewestEntry(
+                    managedLedger, range.lowerEndpoint(), condition, max, callback, ctx);
+                op.find();
+                return;
+            }
+        }
+
         // return PositionImpl(firstLedgerId, -1)
         PositionImpl startPosition = managedLedger.getFirstPosition();
         long max = managedLedger.getNumberOfEntries() - 1;
@@ -0,0 +1,158 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Range;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+
+/**
+ * A sparse in-memory index from publish time to position of a managed ledger.
+ *
+ * <p>It is used to narrow the range that OffsetFinder binary searches by reading entries.
+ * Two sources of bounds are used, assuming the publish time of entries is increasing:
+ * <ul>
+ *     <li>the close timestamp of each closed ledger, which is not before the publish time of any of its entries.
+ *     It needs no read, so older ledgers are covered without rebuilding anything.</li>
+ *     <li>samples added when entries are published, one every {@link #INDEX_INTERVAL_ENTRIES} entries or
+ *     {@link #INDEX_INTERVAL_MS} ms. Each sample keeps a time not after and a time not before the publish time
+ *     of the sampled entry.</li>
+ * </ul>
+ */
+@Slf4j
+public class TimestampIndex {
+
+    static final int INDEX_INTERVAL_ENTRIES = 100;
+    static final long INDEX_INTERVAL_MS = 1000;
+    // samples of the oldest ledgers are dropped once exceeded.
+    static final int MAX_SAMPLES = 10000;
+
+    private final ManagedLedgerImpl managedLedger;
+
+    // samples in position order, their publish time bounds are not decreasing.
+    private final List<Sample> samples;
+    private long entriesSinceLastSample;
+
+    public TimestampIndex(ManagedLedgerImpl managedLedger) {
+        this.managedLedger = managedLedger;
+        this.samples = Lists.newArrayList();
+        this.entriesSinceLastSample = 0;
+    }
+
+    // called when an entry is persisted. publish time of the entry is in [minPublishTime, maxPublishTime].
+    public synchronized void add(long ledgerId, long entryId, long minPublishTime, long maxPublishTime) {
+        entriesSinceLastSample++;
+        Sample last = samples.isEmpty() ? null : samples.get(samples.size() - 1);
+        if (last != null) {
+            if (last.position.getLedgerId() == ledgerId
+                && entriesSinceLastSample < INDEX_INTERVAL_ENTRIES
+                && minPublishTime - last.minPublishTime < INDEX_INTERVAL_MS) {
+                return;
+            }
+            // out of order completion or clock going back, the sample could not be used as a bound.
+            if (last.position.compareTo(PositionImpl.get(ledgerId, entryId)) >= 0
+                || minPublishTime < last.minPublishTime
+                || maxPublishTime < last.maxPublishTime) {
+                return;
+            }
+        }
+        if (samples.size() >= MAX_SAMPLES) {
+            samples.subList(0, MAX_SAMPLES / 2).clear();
+        }
+        samples.add(new Sample(PositionImpl.get(ledgerId, entryId), minPublishTime, maxPublishTime));
+        entriesSinceLastSample = 0;
+    }
+
+    /**
+     * Get the range of positions that contains the newest entry published at or before timestamp.
+     * The start of the range is published at or before timestamp, unless it is the first valid position.
+     *
+     * @return the closed range, or null if there is no valid position
+     */
+    public Range<PositionImpl> searchRange(long timestamp) {
+        PositionImpl first = OffsetFinder.getFirstValidPosition(managedLedger);
+        PositionImpl last = (PositionImpl) managedLedger.getLastConfirmedEntry();
+        if (first == null || first.compareTo(last) > 0) {
+            return null;
+        }
+        PositionImpl start = first;
+        PositionImpl end = last;
+
+        // closed ledgers that are closed at or before timestamp have all entries published before timestamp.
+        for (LedgerInfo ledgerInfo : managedLedger.getLedgersInfo().values()) {
+            if (ledgerInfo.getEntries() == 0) {
+                continue;
+            }
+            PositionImpl lastOfLedger = PositionImpl.get(ledgerInfo.getLedgerId(), ledgerInfo.getEntries() - 1);
+            if (ledgerInfo.hasTimestamp() && ledgerInfo.getTimestamp() > 0) {
+                if (ledgerInfo.getTimestamp() <= timestamp) {
+                    start = max(start, lastOfLedger);
+                    continue;
+                }
+                end = min(end, lastOfLedger);
+            }
+            break;
+        }
+
+        synchronized (this) {
+            for (Sample sample : samples) {
+                if (sample.position.compareTo(start) <= 0) {
+                    continue;
+                }
+                if (sample.position.compareTo(end) > 0) {
+                    break;
+                }
+                if (sample.maxPublishTime <= timestamp) {
+                    start = sample.position;
+                } else if (sample.minPublishTime > timestamp) {
+                    // this sample is after the wanted entry.
+                    end = min(end, managedLedger.getPreviousPosition(sample.position));
+                    break;
+                }
+            }
+        }
+
+        if (start.compareTo(end) > 0) {
+            end = start;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] Search range for timestamp {}: [{}, {}]", managedLedger.getName(), timestamp, start, end);
+        }
+        return Range.closed(start, end);
+    }
+
+    private static PositionImpl max(PositionImpl a, PositionImpl b) {
+        return a.compareTo(b) >= 0 ? a : b;
+    }
+
+    private static PositionImpl min(PositionImpl a, PositionImpl b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    private static final class Sample {
+        private final PositionImpl position;
+        private final long minPublishTime;
+        private final long maxPublishTime;
+
+        Sample(PositionImpl position, long minPublishTime, long maxPublishTime) {
+            this.position = position;
+            this.minPublishTime = minPublishTime;
+            this.maxPublishTime = maxPublishTime;
+        }
+    }
+}
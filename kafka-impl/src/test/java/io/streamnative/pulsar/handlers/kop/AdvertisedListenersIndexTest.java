@@ -0,0 +1,62 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.apache.pulsar.policies.data.loadbalancer.ServiceLookupData;
+import org.testng.annotations.Test;
+
+/**
+ * Validate AdvertisedListenersIndex.
+ */
+public class AdvertisedListenersIndexTest {
+
+    private static ServiceLookupData lookupData(String host, Optional<String> listeners) {
+        ServiceLookupData data = mock(ServiceLookupData.class);
+        when(data.getPulsarServiceUrl()).thenReturn("pulsar://" + host + ":6650");
+        when(data.getPulsarServiceUrlTls()).thenReturn(null);
+        when(data.getWebServiceUrl()).thenReturn("http://" + host + ":8080");
+        when(data.getWebServiceUrlTls()).thenReturn("");
+        when(data.getProtocol(KafkaProtocolHandler.PROTOCOL_NAME)).thenReturn(listeners);
+        return data;
+    }
+
+    @Test(timeOut = 20000)
+    public void testAddToIndex() {
+        Map<String, String> index = new HashMap<>();
+        AdvertisedListenersIndex.addToIndex(index,
+            lookupData("broker1", Optional.of("PLAINTEXT://broker1:9092")));
+        AdvertisedListenersIndex.addToIndex(index,
+            lookupData("broker2", Optional.of("PLAINTEXT://broker2:9092")));
+
+        assertEquals(index.size(), 4);
+        assertEquals(index.get("broker1:6650"), "PLAINTEXT://broker1:9092");
+        assertEquals(index.get("broker1:8080"), "PLAINTEXT://broker1:9092");
+        assertEquals(index.get("broker2:6650"), "PLAINTEXT://broker2:9092");
+    }
+
+    @Test(timeOut = 20000)
+    public void testBrokerWithoutKop() {
+        Map<String, String> index = new HashMap<>();
+        AdvertisedListenersIndex.addToIndex(index, lookupData("broker1", Optional.empty()));
+        assertTrue(index.isEmpty());
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.kafka.common.TopicPartition;
+import org.testng.annotations.Test;
+
+/**
+ * Validate FetchReadPlanner.
+ */
+public class FetchReadPlannerTest {
+
+    @Test
+    public void testEntriesForBudget() {
+        assertEquals(FetchReadPlanner.entriesForBudget(10 * 1024, 1024), 10);
+        // always read at least one entry.
+        assertEquals(FetchReadPlanner.entriesForBudget(100, 1024), 1);
+        // unknown entry size uses the default size.
+        assertEquals(FetchReadPlanner.entriesForBudget(10 * FetchReadPlanner.DEFAULT_AVERAGE_ENTRY_SIZE, 0), 10);
+        // bounded by max entries per read.
+        assertEquals(FetchReadPlanner.entriesForBudget(Long.MAX_VALUE, 1),
+            FetchReadPlanner.MAX_ENTRIES_PER_READ);
+    }
+
+    @Test
+    public void testPlanSplitsRequestBytes() {
+        TopicPartition tp0 = new TopicPartition("topic", 0);
+        TopicPartition tp1 = new TopicPartition("topic", 1);
+        TopicPartition tp2 = new TopicPartition("topic", 2);
+
+        Map<TopicPartition, Integer> partitionBytesLeft = new HashMap<>();
+        partitionBytesLeft.put(tp0, 1024 * 1024);
+        partitionBytesLeft.put(tp1, 4 * 1024);
+        // tp2 already reached its own maxBytes.
+        partitionBytesLeft.put(tp2, 0);
+
+        Map<TopicPartition, Integer> plan = FetchReadPlanner.plan(partitionBytesLeft, 64 * 1024, tp -> 1024);
+
+        assertFalse(plan.containsKey(tp2));
+        // request bytes are shared between tp0 and tp1
+        assertEquals(plan.get(tp0).intValue(), 32);
+        // tp1 is bounded by its own maxBytes
+        assertEquals(plan.get(tp1).intValue(), 4);
+    }
+
+    @Test
+    public void testPlanWithoutBytesLeft() {
+        Map<TopicPartition, Integer> partitionBytesLeft = new HashMap<>();
+        partitionBytesLeft.put(new TopicPartition("topic", 0), 1024);
+
+        assertTrue(FetchReadPlanner.plan(partitionBytesLeft, 0, tp -> 1024).isEmpty());
+
+        partitionBytesLeft.put(new TopicPartition("topic", 0), 0);
+        assertTrue(FetchReadPlanner.plan(partitionBytesLeft, 1024, tp -> 1024).isEmpty());
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.ApiVersionsRequest;
+import org.apache.kafka.common.requests.ApiVersionsResponse;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.requests.ResponseHeader;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Validate the request queue of KafkaCommandDecoder.
+ */
+public class KafkaCommandDecoderTest {
+
+    private static final short API_VERSION = ApiKeys.API_VERSIONS.latestVersion();
+
+    private RequestMemoryPool requestMemoryPool;
+    private ChannelHandlerContext ctx;
+    private Channel channel;
+    private TestDecoder decoder;
+    private final List<ByteBuf> written = new ArrayList<>();
+
+    // a decoder that leaves the responses of the requests to the test.
+    private static class TestDecoder extends KafkaCommandDecoder {
+
+        // response futures of the handled requests, in order.
+        private final List<CompletableFuture<AbstractResponse>> responses = new ArrayList<>();
+
+        TestDecoder(RequestMemoryPool requestMemoryPool) {
+            super(requestMemoryPool, 0);
+        }
+
+        private void handle(KafkaHeaderAndRequest request, CompletableFuture<AbstractResponse> response) {
+            responses.add(response);
+        }
+
+        @Override
+        protected void handleError(KafkaHeaderAndRequest request, CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleInactive(KafkaHeaderAndRequest request, CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleApiVersionsRequest(KafkaHeaderAndRequest request,
+                                                CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleTopicMetadataRequest(KafkaHeaderAndRequest request,
+                                                  CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleProduceRequest(KafkaHeaderAndRequest request,
+                                            CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleFindCoordinatorRequest(KafkaHeaderAndRequest request,
+                                                    CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleListOffsetRequest(KafkaHeaderAndRequest request,
+                                               CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleOffsetFetchRequest(KafkaHeaderAndRequest request,
+                                                CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleOffsetCommitRequest(KafkaHeaderAndRequest request,
+                                                 CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleFetchRequest(KafkaHeaderAndRequest request,
+                                          CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleJoinGroupRequest(KafkaHeaderAndRequest request,
+                                              CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleSyncGroupRequest(KafkaHeaderAndRequest request,
+                                              CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleHeartbeatRequest(KafkaHeaderAndRequest request,
+                                              CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleLeaveGroupRequest(KafkaHeaderAndRequest request,
+                                               CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleDescribeGroupRequest(KafkaHeaderAndRequest request,
+                                                  CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleListGroupsRequest(KafkaHeaderAndRequest request,
+                                               CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleDeleteGroupsRequest(KafkaHeaderAndRequest request,
+                                                 CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleSaslAuthenticate(KafkaHeaderAndRequest request,
+                                              CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+
+        @Override
+        protected void handleSaslHandshake(KafkaHeaderAndRequest request,
+                                           CompletableFuture<AbstractResponse> response) {
+            handle(request, response);
+        }
+    }
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        requestMemoryPool = new RequestMemoryPool(0);
+        ctx = mock(ChannelHandlerContext.class);
+        channel = mock(Channel.class);
+        EventLoop eventLoop = mock(EventLoop.class);
+        when(eventLoop.inEventLoop()).thenReturn(true);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(eventLoop).execute(any(Runnable.class));
+        when(ctx.channel()).thenReturn(channel);
+        when(channel.eventLoop()).thenReturn(eventLoop);
+        when(channel.config()).thenReturn(mock(ChannelConfig.class));
+        when(channel.isActive()).thenReturn(true);
+        when(channel.isWritable()).thenReturn(true);
+        doAnswer(invocation -> {
+            written.add(invocation.getArgument(0));
+            return null;
+        }).when(channel).write(any());
+
+        decoder = new TestDecoder(requestMemoryPool);
+        decoder.channelActive(ctx);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        written.forEach(ByteBuf::release);
+        written.clear();
+    }
+
+    private static ByteBuf apiVersionsRequest(int correlationId) {
+        RequestHeader header = new RequestHeader(ApiKeys.API_VERSIONS, API_VERSION, "client", correlationId);
+        return Unpooled.wrappedBuffer(new ApiVersionsRequest.Builder().build(API_VERSION).serialize(header));
+    }
+
+    private static int correlationId(ByteBuf response) {
+        return ResponseHeader.parse(response.nioBuffer()).correlationId();
+    }
+
+    private static ApiVersionsResponse apiVersionsResponse(ByteBuf response) {
+        ByteBuffer buffer = response.nioBuffer();
+        ResponseHeader.parse(buffer);
+        return ApiVersionsResponse.parse(buffer, API_VERSION);
+    }
+
+    @Test(timeOut = 20000)
+    public void testFailedRequestGetsErrorResponse() throws Exception {
+        decoder.channelRead(ctx, apiVersionsRequest(1));
+        decoder.channelRead(ctx, apiVersionsRequest(2));
+        assertTrue(requestMemoryPool.getUsedBytes() > 0);
+
+        // the failed request is answered with an error, and the requests behind it are not blocked.
+        decoder.responses.get(0).completeExceptionally(new IllegalStateException("failed to handle"));
+        decoder.responses.get(1).complete(ApiVersionsResponse.DEFAULT_API_VERSIONS_RESPONSE);
+        assertEquals(written.size(), 2);
+        assertEquals(correlationId(written.get(0)), 1);
+        assertTrue(apiVersionsResponse(written.get(0)).errorCounts().containsKey(Errors.UNKNOWN_SERVER_ERROR));
+        assertEquals(correlationId(written.get(1)), 2);
+        assertEquals(apiVersionsResponse(written.get(1)).errorCounts().get(Errors.NONE), Integer.valueOf(1));
+
+        // the bytes of both requests are released, so reads are not paused for them.
+        assertEquals(requestMemoryPool.getUsedBytes(), 0);
+        verify(channel, times(2)).flush();
+    }
+
+    @Test(timeOut = 20000)
+    public void testInactiveRequestHoldsNoBytes() throws Exception {
+        decoder.channelRead(ctx, apiVersionsRequest(1));
+        assertTrue(requestMemoryPool.getUsedBytes() > 0);
+
+        // a request read after close is not queued, so it holds no bytes that a drain would have to release.
+        decoder.isActive.set(false);
+        decoder.channelRead(ctx, apiVersionsRequest(2));
+        assertEquals(decoder.responses.size(), 2);
+        decoder.writeAndFlushWhenInactiveChannel(channel);
+        assertEquals(written.size(), 1);
+        assertEquals(correlationId(written.get(0)), 1);
+        assertEquals(requestMemoryPool.getUsedBytes(), 0);
+    }
+
+    @Test(timeOut = 20000)
+    public void testDeferTasksUntilWritable() throws Exception {
+        List<Integer> ran = new ArrayList<>();
+        List<Integer> dropped = new ArrayList<>();
+        when(channel.isWritable()).thenReturn(false);
+        decoder.runWhenWritable(() -> ran.add(1), () -> dropped.add(1));
+        decoder.runWhenWritable(() -> ran.add(2), () -> dropped.add(2));
+        assertTrue(ran.isEmpty());
+
+        when(channel.isWritable()).thenReturn(true);
+        decoder.channelWritabilityChanged(ctx);
+        assertEquals(ran, Arrays.asList(1, 2));
+
+        // a task is not run ahead of the deferred ones, even if the channel is writable again.
+        when(channel.isWritable()).thenReturn(false);
+        decoder.runWhenWritable(() -> ran.add(3), () -> dropped.add(3));
+        when(channel.isWritable()).thenReturn(true);
+        decoder.runWhenWritable(() -> ran.add(4), () -> dropped.add(4));
+        assertEquals(ran, Arrays.asList(1, 2, 3, 4));
+        assertTrue(dropped.isEmpty());
+    }
+
+    @Test(timeOut = 20000)
+    public void testDropDeferredTasksWhenInactive() throws Exception {
+        List<Integer> ran = new ArrayList<>();
+        List<Integer> dropped = new ArrayList<>();
+        when(channel.isWritable()).thenReturn(false);
+        decoder.runWhenWritable(() -> ran.add(1), () -> dropped.add(1));
+        decoder.runWhenWritable(() -> ran.add(2), () -> dropped.add(2));
+        assertTrue(ran.isEmpty());
+
+        // the deferred tasks are dropped instead of run for a dead connection, even though it is not closed yet.
+        when(channel.isActive()).thenReturn(false);
+        decoder.channelInactive(ctx);
+        assertTrue(decoder.isActive.get());
+        assertTrue(ran.isEmpty());
+        assertEquals(dropped, Arrays.asList(1, 2));
+
+        // neither deferred nor run once the channel is inactive.
+        decoder.runWhenWritable(() -> ran.add(3), () -> dropped.add(3));
+        assertTrue(ran.isEmpty());
+        assertEquals(dropped, Arrays.asList(1, 2, 3));
+    }
+
+    @Test(timeOut = 20000)
+    public void testResponsesInRequestOrder() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            decoder.channelRead(ctx, apiVersionsRequest(i));
+        }
+
+        // a later response waits for the ones before it.
+        decoder.responses.get(2).complete(ApiVersionsResponse.DEFAULT_API_VERSIONS_RESPONSE);
+        decoder.responses.get(1).complete(ApiVersionsResponse.DEFAULT_API_VERSIONS_RESPONSE);
+        assertTrue(written.isEmpty());
+        verify(channel, never()).flush();
+
+        // the completed responses are written in order, and flushed once.
+        decoder.responses.get(0).complete(ApiVersionsResponse.DEFAULT_API_VERSIONS_RESPONSE);
+        assertEquals(written.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(correlationId(written.get(i)), i);
+        }
+        verify(channel, times(1)).flush();
+        assertEquals(requestMemoryPool.getUsedBytes(), 0);
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.testng.annotations.Test;
+
+/**
+ * Validate KafkaMetadataCache.
+ */
+public class KafkaMetadataCacheTest {
+
+    private static final String TOPIC = "persistent://public/default/topic-partition-0";
+
+    @Test(timeOut = 20000)
+    public void testPartitionCountCached() {
+        KafkaMetadataCache cache = new KafkaMetadataCache(1000, 60000);
+        AtomicInteger loads = new AtomicInteger(0);
+        CompletableFuture<Integer> pending = new CompletableFuture<>();
+
+        // concurrent gets share one load.
+        CompletableFuture<Integer> first = cache.getPartitionCount(TOPIC, name -> {
+            loads.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<Integer> second = cache.getPartitionCount(TOPIC, name -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture(2);
+        });
+        pending.complete(3);
+        assertEquals(first.join().intValue(), 3);
+        assertEquals(second.join().intValue(), 3);
+        assertEquals(loads.get(), 1);
+
+        cache.invalidatePartitionCount(TOPIC);
+        assertEquals(cache.getPartitionCount(TOPIC, name -> CompletableFuture.completedFuture(4)).join().intValue(), 4);
+    }
+
+    @Test(timeOut = 20000)
+    public void testFailureNotCached() {
+        KafkaMetadataCache cache = new KafkaMetadataCache(1000, 60000);
+        CompletableFuture<Integer> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new Exception("lookup failed"));
+
+        assertTrue(cache.getPartitionCount(TOPIC, name -> failed).isCompletedExceptionally());
+        assertEquals(cache.getPartitionCount(TOPIC, name -> CompletableFuture.completedFuture(1)).join().intValue(), 1);
+
+        // owner not found is not cached either.
+        assertEquals(cache.getOwnerListeners(TOPIC, name -> CompletableFuture.completedFuture(Optional.empty()))
+            .join(), Optional.empty());
+        assertEquals(cache.getOwnerListeners(TOPIC, name -> CompletableFuture.completedFuture(Optional.of("a")))
+            .join(), Optional.of("a"));
+    }
+
+    @Test(timeOut = 20000)
+    public void testOwnerInvalidatedByBundleOwnership() {
+        KafkaMetadataCache cache = new KafkaMetadataCache(1000, 60000);
+        cache.getOwnerListeners(TOPIC, name -> CompletableFuture.completedFuture(Optional.of("a"))).join();
+        assertEquals(cache.getOwnerListeners(TOPIC, name -> CompletableFuture.completedFuture(Optional.of("b")))
+            .join(), Optional.of("a"));
+
+        NamespaceBundle otherBundle = mock(NamespaceBundle.class);
+        when(otherBundle.includes(any(TopicName.class))).thenReturn(false);
+        cache.unLoad(otherBundle);
+        assertEquals(cache.getOwnerListeners(TOPIC, name -> CompletableFuture.completedFuture(Optional.of("b")))
+            .join(), Optional.of("a"));
+
+        NamespaceBundle bundle = mock(NamespaceBundle.class);
+        when(bundle.includes(any(TopicName.class))).thenReturn(true);
+        cache.unLoad(bundle);
+        assertEquals(cache.getOwnerListeners(TOPIC, name -> CompletableFuture.completedFuture(Optional.of("b")))
+            .join(), Optional.of("b"));
+    }
+
+    @Test(timeOut = 20000)
+    public void testBoundedSize() {
+        KafkaMetadataCache cache = new KafkaMetadataCache(2, 60000);
+        int numTopics = 10;
+        for (int i = 0; i < numTopics; i++) {
+            cache.getPartitionCount(TOPIC + i, name -> CompletableFuture.completedFuture(1)).join();
+        }
+
+        // at most 2 of the topics are still cached, the others are loaded again.
+        AtomicInteger loads = new AtomicInteger(0);
+        for (int i = 0; i < numTopics; i++) {
+            cache.getPartitionCount(TOPIC + i, name -> {
+                loads.incrementAndGet();
+                return CompletableFuture.completedFuture(1);
+            }).join();
+        }
+        assertTrue(loads.get() >= numTopics - 2, "loads: " + loads.get());
+    }
+
+    @Test(timeOut = 20000)
+    public void testDisabled() {
+        KafkaMetadataCache cache = new KafkaMetadataCache(1000, 0);
+        cache.getPartitionCount(TOPIC, name -> CompletableFuture.completedFuture(1)).join();
+        assertEquals(cache.getPartitionCount(TOPIC, name -> CompletableFuture.completedFuture(2)).join().intValue(), 2);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntryCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.testng.annotations.Test;
+
+/**
+ * Validate the reads by position of KafkaTopicConsumerManager.
+ */
+public class KafkaTopicConsumerManagerReadTest {
+
+    @Test(timeOut = 20000)
+    public void testLimitParallelReads() {
+        PersistentTopic topic = mock(PersistentTopic.class);
+        ManagedLedgerImpl ledger = mock(ManagedLedgerImpl.class);
+        when(topic.getManagedLedger()).thenReturn(ledger);
+        when(ledger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(1, 99));
+        when(ledger.getPreviousPosition(any(PositionImpl.class))).thenAnswer(invocation -> {
+            PositionImpl position = invocation.getArgument(0);
+            return PositionImpl.get(position.getLedgerId(), position.getEntryId() - 1);
+        });
+        when(ledger.getNextValidPosition(any(PositionImpl.class))).thenAnswer(invocation -> {
+            PositionImpl position = invocation.getArgument(0);
+            return PositionImpl.get(position.getLedgerId(), position.getEntryId() + 1);
+        });
+
+        // reads not completed yet, in the order they are issued.
+        List<PositionImpl> readPositions = new ArrayList<>();
+        List<ReadEntryCallback> readCallbacks = new ArrayList<>();
+        doAnswer(invocation -> {
+            readPositions.add(invocation.getArgument(0));
+            readCallbacks.add(invocation.getArgument(1));
+            return null;
+        }).when(ledger).asyncReadEntry(any(PositionImpl.class), any(ReadEntryCallback.class), any());
+
+        KafkaTopicConsumerManager tcm = new KafkaTopicConsumerManager(topic, mock(LogOffsetTracker.class));
+        int maxEntries = KafkaTopicConsumerManager.MAX_PARALLEL_READS * 2 + 1;
+        CompletableFuture<List<Entry>> future = tcm.asyncReadEntries(MessageIdUtils.getOffset(1, 0), maxEntries);
+
+        int completed = 0;
+        while (completed < maxEntries) {
+            int outstanding = readCallbacks.size() - completed;
+            assertTrue(outstanding > 0 && outstanding <= KafkaTopicConsumerManager.MAX_PARALLEL_READS,
+                "outstanding reads: " + outstanding);
+            assertFalse(future.isDone());
+            for (int i = completed; i < completed + outstanding; i++) {
+                readCallbacks.get(i).readEntryComplete(mock(Entry.class), null);
+            }
+            completed += outstanding;
+        }
+
+        assertEquals(future.join().size(), maxEntries);
+        for (int i = 0; i < maxEntries; i++) {
+            assertEquals(readPositions.get(i), PositionImpl.get(1, i));
+        }
+    }
+
+    @Test(timeOut = 20000)
+    public void testNoEntriesFromEmptyCurrentLedger() {
+        PersistentTopic topic = mock(PersistentTopic.class);
+        ManagedLedgerImpl ledger = mock(ManagedLedgerImpl.class);
+        when(topic.getManagedLedger()).thenReturn(ledger);
+        // ledger 1 has the entries 0 to 9 and is closed, the current ledger 2 is empty, e.g. after a rollover.
+        when(ledger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(2, -1));
+        when(ledger.getPreviousPosition(any(PositionImpl.class))).thenAnswer(invocation -> {
+            PositionImpl position = invocation.getArgument(0);
+            return PositionImpl.get(position.getLedgerId(), position.getEntryId() - 1);
+        });
+        when(ledger.getNextValidPosition(any(PositionImpl.class))).thenAnswer(invocation -> {
+            PositionImpl position = invocation.getArgument(0);
+            return position.getLedgerId() == 1 && position.getEntryId() >= 9
+                ? PositionImpl.get(2, 0) : PositionImpl.get(position.getLedgerId(), position.getEntryId() + 1);
+        });
+
+        // the consumer caught up with ledger 1 waits for new entries.
+        KafkaTopicConsumerManager tcm = new KafkaTopicConsumerManager(topic, mock(LogOffsetTracker.class));
+        long offset = MessageIdUtils.getOffset(1, 10);
+        assertFalse(tcm.hasEntriesFrom(offset));
+        assertTrue(tcm.asyncReadEntries(offset, 10).join().isEmpty());
+
+        // the first entry of the current ledger is added.
+        when(ledger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(2, 0));
+        assertTrue(tcm.hasEntriesFrom(offset));
+    }
+}
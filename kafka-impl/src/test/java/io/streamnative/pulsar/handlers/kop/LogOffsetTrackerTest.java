@@ -0,0 +1,79 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.testng.annotations.Test;
+
+/**
+ * Validate LogOffsetTracker.
+ */
+public class LogOffsetTrackerTest {
+
+    @Test(timeOut = 20000)
+    public void testLogEndOffset() {
+        ManagedLedgerImpl managedLedger = mock(ManagedLedgerImpl.class);
+        LogOffsetTracker tracker = new LogOffsetTracker(managedLedger);
+
+        // no entry in ledger.
+        when(managedLedger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(3, -1));
+        assertEquals(tracker.getLogEndOffset(), MessageIdUtils.getOffset(3, 0));
+
+        // published by kop.
+        tracker.onEntryPublished(3, 0, 1000L, 1001L);
+        when(managedLedger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(3, 0));
+        assertEquals(tracker.getLogEndOffset(), MessageIdUtils.getOffset(3, 0));
+
+        // published by others, e.g. pulsar producers, and ledger rolled over.
+        when(managedLedger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(4, 2));
+        assertEquals(tracker.getHighWatermark(), MessageIdUtils.getOffset(4, 2));
+
+        // completion of an earlier entry not moves log end back.
+        tracker.onEntryPublished(3, 1, 1000L, 1001L);
+        assertEquals(tracker.getLogEndOffset(), MessageIdUtils.getOffset(4, 2));
+    }
+
+    @Test(timeOut = 20000)
+    public void testLogStartOffset() {
+        ManagedLedgerImpl managedLedger = mock(ManagedLedgerImpl.class);
+        LogOffsetTracker tracker = new LogOffsetTracker(managedLedger);
+
+        when(managedLedger.getFirstPosition()).thenReturn(null);
+        assertNull(tracker.getLogStartPosition());
+        assertEquals(tracker.getLogStartOffset(), FetchResponse.INVALID_LOG_START_OFFSET);
+
+        when(managedLedger.getFirstPosition()).thenReturn(PositionImpl.get(3, -1));
+        when(managedLedger.getNextValidPosition(any())).thenReturn(PositionImpl.get(3, 0));
+        assertEquals(tracker.getLogStartPosition(), PositionImpl.get(3, 0));
+        assertEquals(tracker.getLogStartOffset(), MessageIdUtils.getOffset(3, 0));
+        // cached until the first ledger changes.
+        verify(managedLedger, times(1)).getNextValidPosition(any());
+
+        // ledger 3 trimmed.
+        when(managedLedger.getFirstPosition()).thenReturn(PositionImpl.get(5, -1));
+        when(managedLedger.getNextValidPosition(any())).thenReturn(PositionImpl.get(5, 0));
+        assertEquals(tracker.getLogStartOffset(), MessageIdUtils.getOffset(5, 0));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.streamnative.pulsar.handlers.kop.utils.EntryFormat;
+import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse;
+import org.apache.pulsar.broker.service.Topic;
+import org.apache.pulsar.broker.service.Topic.PublishContext;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Validate publishMessages of MessagePublishContext.
+ */
+public class MessagePublishContextTest {
+
+    @DataProvider(name = "entryFormats")
+    public static Object[][] entryFormats() {
+        return new Object[][] { { EntryFormat.PULSAR }, { EntryFormat.KAFKA } };
+    }
+
+    private static MemoryRecords records(CompressionType compressionType, int numRecords) {
+        SimpleRecord[] records = new SimpleRecord[numRecords];
+        for (int i = 0; i < numRecords; i++) {
+            records[i] = new SimpleRecord(i, ("key-" + i).getBytes(), ("value-" + i).getBytes());
+        }
+        return MemoryRecords.withRecords(compressionType, records);
+    }
+
+    private static CompletableFuture<PartitionResponse> publish(Topic topic, MemoryRecords records,
+                                                                EntryFormat entryFormat) {
+        CompletableFuture<PartitionResponse> future = new CompletableFuture<>();
+        MessagePublishContext.publishMessages(records, topic, mock(LogOffsetTracker.class), future, null, entryFormat);
+        return future;
+    }
+
+    @Test(timeOut = 20000, dataProvider = "entryFormats")
+    public void testRejectRecordsExceedBatchIndex(EntryFormat entryFormat) {
+        Topic topic = mock(Topic.class);
+        when(topic.getName()).thenReturn("persistent://public/default/test");
+
+        // the index of the last record in the entry not fits in the offset.
+        CompletableFuture<PartitionResponse> future =
+            publish(topic, records(CompressionType.LZ4, (1 << MessageIdUtils.BATCH_BITS) + 1), entryFormat);
+        assertTrue(future.isDone());
+        assertEquals(future.join().error, Errors.MESSAGE_TOO_LARGE);
+        verify(topic, never()).publishMessage(any(ByteBuf.class), any(PublishContext.class));
+
+        // the max number of records is stored in one entry.
+        future = publish(topic, records(CompressionType.LZ4, 1 << MessageIdUtils.BATCH_BITS), entryFormat);
+        assertFalse(future.isDone());
+        verify(topic, times(1)).publishMessage(any(ByteBuf.class), any(PublishContext.class));
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+/**
+ * Validate RequestMemoryPool.
+ */
+public class RequestMemoryPoolTest {
+
+    @Test(timeOut = 20000)
+    public void testPauseAndResume() {
+        RequestMemoryPool pool = new RequestMemoryPool(100);
+        KafkaCommandDecoder connection1 = mock(KafkaCommandDecoder.class);
+        KafkaCommandDecoder connection2 = mock(KafkaCommandDecoder.class);
+
+        pool.acquire(connection1, 60);
+        verify(connection1, never()).pauseRead(anyString());
+
+        // exceeds the limit, the connection that reads the request is paused.
+        pool.acquire(connection2, 60);
+        verify(connection2, times(1)).pauseRead(RequestMemoryPool.PAUSE_REASON);
+        verify(connection1, never()).pauseRead(anyString());
+        assertEquals(pool.getUsedBytes(), 120);
+
+        pool.release(60);
+        verify(connection2, times(1)).resumeRead(RequestMemoryPool.PAUSE_REASON);
+        assertEquals(pool.getUsedBytes(), 60);
+
+        // not resumed again.
+        pool.release(60);
+        verify(connection2, times(1)).resumeRead(RequestMemoryPool.PAUSE_REASON);
+    }
+
+    @Test(timeOut = 20000)
+    public void testNoLimit() {
+        RequestMemoryPool pool = new RequestMemoryPool(0);
+        KafkaCommandDecoder connection = mock(KafkaCommandDecoder.class);
+
+        pool.acquire(connection, Integer.MAX_VALUE);
+        verify(connection, never()).pauseRead(anyString());
+        pool.release(Integer.MAX_VALUE);
+        assertEquals(pool.getUsedBytes(), 0);
+    }
+}
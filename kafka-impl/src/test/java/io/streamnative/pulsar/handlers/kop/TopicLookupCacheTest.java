@@ -0,0 +1,71 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.testng.annotations.Test;
+
+/**
+ * Validate TopicLookupCache.
+ */
+public class TopicLookupCacheTest {
+
+    private static final String TOPIC = "persistent://public/default/topic-partition-0";
+    private static final InetSocketAddress BROKER1 = InetSocketAddress.createUnresolved("broker1", 6650);
+    private static final InetSocketAddress BROKER2 = InetSocketAddress.createUnresolved("broker2", 6650);
+
+    @Test(timeOut = 20000)
+    public void testFailedLookupNotCached() {
+        TopicLookupCache cache = new TopicLookupCache(100, 60000);
+
+        assertNull(cache.get(TOPIC, t -> CompletableFuture.completedFuture(null)).join());
+        assertEquals(cache.get(TOPIC, t -> CompletableFuture.completedFuture(BROKER1)).join(), BROKER1);
+        assertEquals(cache.get(TOPIC, t -> CompletableFuture.completedFuture(BROKER2)).join(), BROKER1);
+    }
+
+    @Test(timeOut = 20000)
+    public void testInvalidatedByBundleOwnership() {
+        TopicLookupCache cache = new TopicLookupCache(100, 60000);
+        cache.get(TOPIC, t -> CompletableFuture.completedFuture(BROKER1)).join();
+
+        NamespaceBundle otherBundle = mock(NamespaceBundle.class);
+        when(otherBundle.includes(any(TopicName.class))).thenReturn(false);
+        cache.onLoad(otherBundle);
+        assertEquals(cache.get(TOPIC, t -> CompletableFuture.completedFuture(BROKER2)).join(), BROKER1);
+
+        NamespaceBundle bundle = mock(NamespaceBundle.class);
+        when(bundle.includes(any(TopicName.class))).thenReturn(true);
+        cache.unLoad(bundle);
+        assertEquals(cache.get(TOPIC, t -> CompletableFuture.completedFuture(BROKER2)).join(), BROKER2);
+    }
+
+    @Test(timeOut = 20000)
+    public void testBoundedSize() {
+        TopicLookupCache cache = new TopicLookupCache(10, 60000);
+        for (int i = 0; i < 100; i++) {
+            cache.get(TOPIC + i, t -> CompletableFuture.completedFuture(BROKER1)).join();
+        }
+        assertTrue(cache.size() <= 10);
+    }
+}
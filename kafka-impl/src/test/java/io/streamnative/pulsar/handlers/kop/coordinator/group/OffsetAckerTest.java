@@ -0,0 +1,202 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.coordinator.group;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+import io.streamnative.pulsar.handlers.kop.offset.OffsetAndMetadata;
+import io.streamnative.pulsar.handlers.kop.utils.MessageIdUtils;
+import io.streamnative.pulsar.handlers.kop.utils.TopicNameUtils;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.pulsar.broker.PulsarService;
+import org.apache.pulsar.broker.namespace.NamespaceService;
+import org.apache.pulsar.broker.service.BrokerService;
+import org.apache.pulsar.broker.service.Topic;
+import org.apache.pulsar.broker.service.persistent.PersistentSubscription;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.client.admin.PulsarAdmin;
+import org.apache.pulsar.client.admin.Topics;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test of {@link OffsetAcker}.
+ */
+public class OffsetAckerTest {
+
+    private final TopicPartition topicPartition = new TopicPartition("test", 0);
+    private BrokerService brokerService;
+    private NamespaceService namespaceService;
+    private PersistentSubscription subscription;
+    private ManagedCursor cursor;
+    private OffsetAcker offsetAcker;
+
+    @BeforeMethod
+    public void setup() throws Exception {
+        brokerService = mock(BrokerService.class);
+        PulsarService pulsar = mock(PulsarService.class);
+        namespaceService = mock(NamespaceService.class);
+        PersistentTopic topic = mock(PersistentTopic.class);
+        ManagedLedger ledger = mock(ManagedLedger.class);
+        subscription = mock(PersistentSubscription.class);
+        cursor = mock(ManagedCursor.class);
+        when(brokerService.pulsar()).thenReturn(pulsar);
+        when(pulsar.getNamespaceService()).thenReturn(namespaceService);
+        when(namespaceService.getBundleAsync(any(TopicName.class)))
+            .thenReturn(CompletableFuture.completedFuture(mock(NamespaceBundle.class)));
+        // the topics are served by this broker, unless a test says otherwise.
+        when(namespaceService.isServiceUnitOwned(any(NamespaceBundle.class))).thenReturn(true);
+        when(brokerService.getTopicIfExists(anyString()))
+            .thenReturn(CompletableFuture.completedFuture(Optional.<Topic>of(topic)));
+        when(topic.getManagedLedger()).thenReturn(ledger);
+        when(ledger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(1, 100));
+        when(topic.getSubscription("group")).thenReturn(subscription);
+        when(subscription.getCursor()).thenReturn(cursor);
+        when(subscription.delete()).thenReturn(CompletableFuture.completedFuture(null));
+        when(cursor.getMarkDeletedPosition()).thenReturn(PositionImpl.get(1, 0));
+
+        // a long interval, so that only the explicit flushes acknowledge.
+        offsetAcker = new OffsetAcker(brokerService, 60000);
+    }
+
+    @AfterMethod
+    public void teardown() {
+        offsetAcker.close();
+    }
+
+    private void commit(long entryId) {
+        offsetAcker.ackOffsets("group", ImmutableMap.of(topicPartition,
+            OffsetAndMetadata.apply(MessageIdUtils.getOffset(1, entryId))));
+    }
+
+    @Test(timeOut = 20000)
+    public void testCoalesceCommits() {
+        commit(5);
+        commit(10);
+        verify(cursor, never()).asyncMarkDelete(any(), any(MarkDeleteCallback.class), any());
+
+        offsetAcker.flush();
+        // the entries before the latest committed offset are consumed.
+        verify(cursor, times(1)).asyncMarkDelete(eq(PositionImpl.get(1, 9)), any(MarkDeleteCallback.class), any());
+
+        // nothing pending.
+        offsetAcker.flush();
+        verify(cursor, times(1)).asyncMarkDelete(any(), any(MarkDeleteCallback.class), any());
+    }
+
+    @Test(timeOut = 20000)
+    public void testMarkDeleteUpToLastConfirmedEntry() {
+        commit(200);
+        offsetAcker.flush();
+        verify(cursor, times(1)).asyncMarkDelete(eq(PositionImpl.get(1, 100)), any(MarkDeleteCallback.class), any());
+    }
+
+    @Test(timeOut = 20000)
+    public void testDeleteSubscriptionOfRemovedOffsets() {
+        commit(5);
+        // the group is deleted, its subscriptions follow the stored offsets removed.
+        offsetAcker.close(Collections.singleton("group"));
+        verify(subscription, never()).delete();
+        offsetAcker.removeOffsets("group", Collections.singleton(topicPartition));
+        verify(subscription, times(1)).delete();
+
+        // the offset committed before is not acknowledged any more.
+        offsetAcker.flush();
+        verify(cursor, never()).asyncMarkDelete(any(), any(MarkDeleteCallback.class), any());
+    }
+
+    @Test(timeOut = 20000)
+    public void testResetCursorOfRemoteTopic() throws Exception {
+        PulsarAdmin admin = mock(PulsarAdmin.class);
+        Topics topics = mock(Topics.class);
+        when(brokerService.pulsar().getAdminClient()).thenReturn(admin);
+        when(admin.topics()).thenReturn(topics);
+        when(topics.resetCursorAsync(anyString(), anyString(), any(MessageId.class)))
+            .thenReturn(CompletableFuture.completedFuture(null));
+        when(namespaceService.isServiceUnitOwned(any(NamespaceBundle.class))).thenReturn(false);
+
+        // the topic of a bundle owned by another broker is not looked up in this broker.
+        commit(5);
+        offsetAcker.flush();
+        verify(brokerService, never()).getTopicIfExists(anyString());
+        verify(cursor, never()).asyncMarkDelete(any(), any(MarkDeleteCallback.class), any());
+        String topic = TopicNameUtils.pulsarTopicName(topicPartition).toString();
+        MessageId committed = MessageIdUtils.getMessageId(MessageIdUtils.getOffset(1, 5));
+        verify(topics, times(1)).resetCursorAsync(topic, "group", committed);
+    }
+
+    // the mark-delete callbacks, in the order of the acknowledgements.
+    private List<MarkDeleteCallback> captureMarkDeletes() {
+        List<MarkDeleteCallback> callbacks = new ArrayList<>();
+        doAnswer(invocation -> {
+            callbacks.add(invocation.getArgument(1));
+            return null;
+        }).when(cursor).asyncMarkDelete(any(), any(MarkDeleteCallback.class), any());
+        return callbacks;
+    }
+
+    @Test(timeOut = 20000)
+    public void testOneAckInFlight() {
+        List<MarkDeleteCallback> callbacks = captureMarkDeletes();
+        commit(5);
+        offsetAcker.flush();
+        assertEquals(callbacks.size(), 1);
+
+        // the commit is acknowledged once the acknowledgement in flight completes.
+        commit(10);
+        offsetAcker.flush();
+        assertEquals(callbacks.size(), 1);
+        callbacks.get(0).markDeleteComplete(null);
+        offsetAcker.flush();
+        assertEquals(callbacks.size(), 2);
+        verify(cursor, times(1)).asyncMarkDelete(eq(PositionImpl.get(1, 9)), any(MarkDeleteCallback.class), any());
+    }
+
+    @Test(timeOut = 20000)
+    public void testDropOffsetsNotNewer() {
+        List<MarkDeleteCallback> callbacks = captureMarkDeletes();
+        commit(10);
+        offsetAcker.flush();
+        callbacks.get(0).markDeleteComplete(null);
+
+        // e.g. a commit of an older offset, the subscription is not moved backward.
+        commit(5);
+        commit(10);
+        offsetAcker.flush();
+        assertEquals(callbacks.size(), 1);
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.coordinator.group;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.utils.Time;
+import org.apache.pulsar.client.api.MessageId;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test of {@link OffsetCommitAccumulator}.
+ */
+public class OffsetCommitAccumulatorTest {
+
+    private ScheduledExecutorService scheduler;
+    private List<ByteBuffer> storedBuffers;
+    private CompletableFuture<MessageId> storeFuture;
+    private OffsetCommitAccumulator accumulator;
+
+    @BeforeMethod
+    public void setup() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        storedBuffers = new ArrayList<>();
+        storeFuture = new CompletableFuture<>();
+        // a long linger, so that only the explicit flushes store.
+        accumulator = newAccumulator(60000, scheduler);
+    }
+
+    private OffsetCommitAccumulator newAccumulator(long lingerMs, ScheduledExecutorService scheduler) {
+        return new OffsetCommitAccumulator(0, lingerMs, CompressionType.NONE, scheduler, Time.SYSTEM,
+            (key, buffer, timestamp) -> {
+                storedBuffers.add(buffer);
+                return storeFuture;
+            });
+    }
+
+    @AfterMethod
+    public void teardown() {
+        scheduler.shutdownNow();
+    }
+
+    private static SimpleRecord record(String key) {
+        return new SimpleRecord(0L, key.getBytes(), "value".getBytes());
+    }
+
+    @Test(timeOut = 20000)
+    public void testMergeCommits() {
+        CompletableFuture<MessageId> commit1 = accumulator.append("key".getBytes(),
+            Lists.newArrayList(record("a"), record("b")));
+        CompletableFuture<MessageId> commit2 = accumulator.append("key".getBytes(),
+            Lists.newArrayList(record("c")));
+        assertTrue(storedBuffers.isEmpty());
+
+        accumulator.flush();
+        assertEquals(storedBuffers.size(), 1);
+        MemoryRecords records = MemoryRecords.readableRecords(storedBuffers.get(0));
+        int numRecords = 0;
+        for (Record ignored : records.records()) {
+            numRecords++;
+        }
+        assertEquals(numRecords, 3);
+
+        assertFalse(commit1.isDone());
+        storeFuture.complete(MessageId.earliest);
+        assertEquals(commit1.join(), MessageId.earliest);
+        assertEquals(commit2.join(), MessageId.earliest);
+
+        // nothing pending.
+        accumulator.flush();
+        assertEquals(storedBuffers.size(), 1);
+    }
+
+    @Test(timeOut = 20000)
+    public void testFailedStore() {
+        CompletableFuture<MessageId> commit = accumulator.append("key".getBytes(),
+            Lists.newArrayList(record("a")));
+        accumulator.flush();
+        storeFuture.completeExceptionally(new Exception("store failed"));
+        assertTrue(commit.isCompletedExceptionally());
+    }
+
+    @Test(timeOut = 20000)
+    public void testFlushOnBatchSize() {
+        byte[] value = new byte[OffsetCommitAccumulator.MAX_BATCH_BYTES];
+        accumulator.append("key".getBytes(), Lists.newArrayList(new SimpleRecord(0L, "a".getBytes(), value)));
+        assertEquals(storedBuffers.size(), 1);
+    }
+
+    @Test(timeOut = 20000)
+    public void testFlushAfterLinger() throws Exception {
+        OffsetCommitAccumulator lingerAccumulator = newAccumulator(10, scheduler);
+        storeFuture.complete(MessageId.earliest);
+
+        // no explicit flush, the commit is stored once the linger window ends.
+        CompletableFuture<MessageId> commit = lingerAccumulator.append("key".getBytes(),
+            Lists.newArrayList(record("a")));
+        assertEquals(commit.get(), MessageId.earliest);
+        assertEquals(storedBuffers.size(), 1);
+    }
+
+    @Test(timeOut = 20000)
+    public void testFlushWhenSchedulerShutdown() {
+        scheduler.shutdown();
+
+        // not lingered once shutting down, so the commit is not lost.
+        accumulator.append("key".getBytes(), Lists.newArrayList(record("a")));
+        assertEquals(storedBuffers.size(), 1);
+    }
+
+    @Test(timeOut = 20000)
+    public void testScheduledFlushOfFlushedBatch() {
+        ScheduledExecutorService manualScheduler = mock(ScheduledExecutorService.class);
+        List<Runnable> scheduledFlushes = new ArrayList<>();
+        when(manualScheduler.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+            scheduledFlushes.add(invocation.getArgument(0));
+            return null;
+        });
+        OffsetCommitAccumulator manualAccumulator = newAccumulator(10, manualScheduler);
+
+        manualAccumulator.append("key".getBytes(), Lists.newArrayList(record("a")));
+        manualAccumulator.flush();
+        manualAccumulator.append("key".getBytes(), Lists.newArrayList(record("b")));
+        assertEquals(scheduledFlushes.size(), 2);
+        assertEquals(storedBuffers.size(), 1);
+
+        // the batch of the first scheduled flush is already flushed, so it not cuts the linger of the next batch.
+        scheduledFlushes.get(0).run();
+        assertEquals(storedBuffers.size(), 1);
+
+        scheduledFlushes.get(1).run();
+        assertEquals(storedBuffers.size(), 2);
+    }
+}
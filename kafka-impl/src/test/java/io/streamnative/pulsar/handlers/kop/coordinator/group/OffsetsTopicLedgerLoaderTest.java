@@ -0,0 +1,113 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.coordinator.group;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.netty.buffer.ByteBuf;
+import io.streamnative.pulsar.handlers.kop.utils.MessageRecordUtils;
+import java.util.List;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedger;
+import org.apache.bookkeeper.mledger.impl.EntryImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.client.impl.TypedMessageBuilderImpl;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test of {@link OffsetsTopicLedgerLoader}.
+ */
+public class OffsetsTopicLedgerLoaderTest {
+
+    @SuppressWarnings("unchecked")
+    private static Entry newEntry(long ledgerId, long entryId, String key, String value) {
+        TypedMessageBuilderImpl<byte[]> builder = new TypedMessageBuilderImpl(null, Schema.BYTES);
+        if (key != null) {
+            builder.keyBytes(key.getBytes(UTF_8));
+        }
+        builder.value(value.getBytes(UTF_8));
+        ByteBuf data = MessageRecordUtils.messageToByteBuf((MessageImpl<byte[]>) builder.getMessage());
+        Entry entry = EntryImpl.create(ledgerId, entryId, data);
+        data.release();
+        return entry;
+    }
+
+    @Test(timeOut = 20000)
+    public void testLoadKeyedMessagesUpToEnd() throws Exception {
+        ManagedLedger ledger = mock(ManagedLedger.class);
+        ManagedCursor cursor = mock(ManagedCursor.class);
+        when(ledger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(1, 2));
+        when(ledger.getNumberOfEntries()).thenReturn(3L);
+        when(ledger.newNonDurableCursor(any(), anyString())).thenReturn(cursor);
+        when(cursor.getName()).thenReturn("cursor");
+        when(cursor.hasMoreEntries()).thenReturn(true, true, false);
+        when(cursor.getReadPosition()).thenReturn(PositionImpl.get(1, 0), PositionImpl.get(1, 2));
+
+        // the placeholder without key is skipped, and the entry written after the load started is not loaded.
+        List<List<Entry>> batches = Lists.newArrayList(
+            Lists.newArrayList(newEntry(1, 0, "k1", "v1"), newEntry(1, 1, null, "")),
+            Lists.newArrayList(newEntry(1, 2, "k2", "v2"), newEntry(1, 3, "k3", "v3")));
+        doAnswer(invocation -> {
+            ReadEntriesCallback callback = invocation.getArgument(1);
+            callback.readEntriesComplete(batches.remove(0), null);
+            return null;
+        }).when(cursor).asyncReadEntries(anyInt(), any(ReadEntriesCallback.class), any());
+
+        List<String> values = Lists.newArrayList();
+        new OffsetsTopicLedgerLoader("offsets-partition-0", ledger, 2, MoreExecutors.directExecutor(),
+            (buffer, snapshotId) -> {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                values.add(new String(bytes, UTF_8));
+            }).load().get();
+
+        assertEquals(values, Lists.newArrayList("v1", "v2"));
+        verify(ledger).asyncDeleteCursor(any(), any(), any());
+    }
+
+    @Test(timeOut = 20000, expectedExceptions = Exception.class)
+    public void testLoadFailsOnConsumerError() throws Exception {
+        ManagedLedger ledger = mock(ManagedLedger.class);
+        ManagedCursor cursor = mock(ManagedCursor.class);
+        when(ledger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(1, 0));
+        when(ledger.newNonDurableCursor(any(), anyString())).thenReturn(cursor);
+        when(cursor.getName()).thenReturn("cursor");
+        when(cursor.hasMoreEntries()).thenReturn(true, false);
+        when(cursor.getReadPosition()).thenReturn(PositionImpl.get(1, 0), PositionImpl.get(1, 1));
+        doAnswer(invocation -> {
+            ReadEntriesCallback callback = invocation.getArgument(1);
+            callback.readEntriesComplete(Lists.newArrayList(newEntry(1, 0, "k1", "v1")), null);
+            return null;
+        }).when(cursor).asyncReadEntries(anyInt(), any(ReadEntriesCallback.class), any());
+
+        new OffsetsTopicLedgerLoader("offsets-partition-0", ledger, 2, MoreExecutors.directExecutor(),
+            (buffer, snapshotId) -> {
+                throw new IllegalStateException("unexpected key");
+            }).load().get();
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.coordinator.group;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.ControlRecordType;
+import org.apache.kafka.common.record.EndTransactionMarker;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.utils.Utils;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test of {@link OffsetsTopicSnapshot}.
+ */
+public class OffsetsTopicSnapshotTest {
+
+    private static SimpleRecord record(String key, String value) {
+        return new SimpleRecord(0L, key.getBytes(UTF_8), value == null ? null : value.getBytes(UTF_8));
+    }
+
+    private static ByteBuffer records(SimpleRecord... records) {
+        return MemoryRecords.withRecords(CompressionType.NONE, records).buffer();
+    }
+
+    private static ByteBuffer transactionalRecords(long producerId, SimpleRecord... records) {
+        return MemoryRecords.withTransactionalRecords(CompressionType.NONE, producerId, (short) 0, 0, records)
+            .buffer();
+    }
+
+    private static ByteBuffer endTransaction(long producerId, ControlRecordType type) {
+        return MemoryRecords.withEndTransactionMarker(producerId, (short) 0, new EndTransactionMarker(type, 0))
+            .buffer();
+    }
+
+    // the values of the non transactional records, and the number of transactional batches.
+    private static int readSnapshot(List<ByteBuffer> buffers, Map<String, String> values) {
+        int transactionalBatches = 0;
+        for (ByteBuffer buffer : buffers) {
+            for (RecordBatch batch : MemoryRecords.readableRecords(buffer).batches()) {
+                if (batch.isTransactional()) {
+                    transactionalBatches++;
+                    continue;
+                }
+                for (Record record : batch) {
+                    values.put(new String(Utils.toArray(record.key()), UTF_8),
+                        new String(Utils.toArray(record.value()), UTF_8));
+                }
+            }
+        }
+        return transactionalBatches;
+    }
+
+    @Test(timeOut = 20000)
+    public void testCompactLatestValues() {
+        OffsetsTopicSnapshot.Compactor compactor = new OffsetsTopicSnapshot.Compactor();
+        compactor.accept(records(record("a", "1"), record("b", "1"), record("c", "1")));
+        compactor.accept(records(record("a", "2"), record("b", null)));
+
+        List<ByteBuffer> buffers = compactor.build(CompressionType.NONE, 0L);
+        Map<String, String> values = new HashMap<>();
+        assertEquals(readSnapshot(buffers, values), 0);
+        assertEquals(values.size(), 2);
+        assertEquals(values.get("a"), "2");
+        assertEquals(values.get("c"), "1");
+    }
+
+    @Test(timeOut = 20000)
+    public void testCompactTransactions() {
+        OffsetsTopicSnapshot.Compactor compactor = new OffsetsTopicSnapshot.Compactor();
+        compactor.accept(records(record("a", "1")));
+        compactor.accept(transactionalRecords(1L, record("a", "committed")));
+        compactor.accept(transactionalRecords(2L, record("b", "aborted")));
+        compactor.accept(transactionalRecords(3L, record("c", "open")));
+        compactor.accept(endTransaction(1L, ControlRecordType.COMMIT));
+        compactor.accept(endTransaction(2L, ControlRecordType.ABORT));
+
+        List<ByteBuffer> buffers = compactor.build(CompressionType.NONE, 0L);
+        Map<String, String> values = new HashMap<>();
+        // the open transaction is kept as a transactional batch, to be completed by its marker after the snapshot.
+        assertEquals(readSnapshot(buffers, values), 1);
+        assertEquals(values.get("a"), "committed");
+        assertFalse(values.containsKey("b"));
+        assertFalse(values.containsKey("c"));
+    }
+
+    @Test(timeOut = 20000)
+    public void testEmptySnapshot() {
+        List<ByteBuffer> buffers = new OffsetsTopicSnapshot.Compactor().build(CompressionType.NONE, 0L);
+        assertEquals(buffers.size(), 1);
+        assertEquals(readSnapshot(buffers, new HashMap<>()), 0);
+    }
+
+    private static Map<String, String> snapshotProperties(String id, String covered, int size) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put(OffsetsTopicSnapshot.SNAPSHOT_PROPERTY, id);
+        properties.put(OffsetsTopicSnapshot.COVERED_PROPERTY, covered);
+        properties.put(OffsetsTopicSnapshot.SIZE_PROPERTY, Integer.toString(size));
+        return properties;
+    }
+
+    @Test(timeOut = 20000)
+    public void testCollectSnapshotMessages() {
+        OffsetsTopicSnapshot.SnapshotMessages messages = new OffsetsTopicSnapshot.SnapshotMessages();
+        ByteBuffer value1 = records(record("a", "1"));
+        ByteBuffer value2 = records(record("b", "1"));
+
+        // the writer of the first snapshot failed after its first message, so the next snapshot drops it.
+        assertFalse(messages.add(snapshotProperties("1", "3:10", 2), value1));
+        assertFalse(messages.add(snapshotProperties("2", "3:20", 2), value1));
+        assertTrue(messages.add(snapshotProperties("2", "3:20", 2), value2));
+        assertEquals(messages.getCovered(), PositionImpl.get(3, 20));
+        assertEquals(messages.getValues(), Arrays.asList(value1, value2));
+
+        // a snapshot not telling what it covers is not applied.
+        Map<String, String> properties = new HashMap<>();
+        properties.put(OffsetsTopicSnapshot.SNAPSHOT_PROPERTY, "3");
+        assertFalse(messages.add(properties, value1));
+    }
+}
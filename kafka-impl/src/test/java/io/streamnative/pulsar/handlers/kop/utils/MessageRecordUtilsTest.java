@@ -0,0 +1,138 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.testng.Assert.assertEquals;
+
+import com.google.common.collect.Lists;
+import io.netty.buffer.ByteBuf;
+import java.util.List;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.impl.EntryImpl;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.utils.Utils;
+import org.testng.annotations.Test;
+
+/**
+ * Validate MessageRecordUtils.
+ */
+public class MessageRecordUtilsTest {
+
+    private static MemoryRecords newRecords(String... values) {
+        return newRecords(CompressionType.NONE, values);
+    }
+
+    private static MemoryRecords newRecords(CompressionType compressionType, String... values) {
+        SimpleRecord[] records = new SimpleRecord[values.length];
+        for (int i = 0; i < values.length; i++) {
+            records[i] = new SimpleRecord(System.currentTimeMillis(), values[i].getBytes(UTF_8));
+        }
+        return MemoryRecords.withRecords(compressionType, records);
+    }
+
+    private static Entry newEntry(long ledgerId, long entryId, ByteBuf data) {
+        Entry entry = EntryImpl.create(ledgerId, entryId, data);
+        data.release();
+        return entry;
+    }
+
+    @Test(timeOut = 20000)
+    public void testKafkaEntryFormat() {
+        List<Entry> entries = Lists.newArrayList(
+            newEntry(3, 0, MessageRecordUtils.recordsToKafkaEntry(newRecords("a", "b"), 2)),
+            newEntry(3, 1, MessageRecordUtils.recordsToKafkaEntry(newRecords("c"), 1)));
+
+        MemoryRecords records = MessageRecordUtils.entriesToRecords(entries);
+
+        List<Long> offsets = Lists.newArrayList();
+        List<String> values = Lists.newArrayList();
+        for (Record record : records.records()) {
+            offsets.add(record.offset());
+            values.add(new String(Utils.toArray(record.value()), UTF_8));
+        }
+        assertEquals(values, Lists.newArrayList("a", "b", "c"));
+        assertEquals(offsets, Lists.newArrayList(
+            MessageIdUtils.getOffset(3, 0, 0),
+            MessageIdUtils.getOffset(3, 0, 1),
+            MessageIdUtils.getOffset(3, 1, 0)));
+    }
+
+    @Test(timeOut = 20000)
+    public void testMixedEntryFormat() {
+        MemoryRecords pulsarRecords = newRecords("a", "b");
+        List<Entry> entries = Lists.newArrayList(
+            newEntry(3, 0, MessageRecordUtils.recordsToByteBuf(pulsarRecords, 2)),
+            newEntry(3, 1, MessageRecordUtils.recordsToKafkaEntry(newRecords("c", "d"), 2)));
+
+        MemoryRecords records = MessageRecordUtils.entriesToRecords(entries);
+
+        List<Long> offsets = Lists.newArrayList();
+        List<String> values = Lists.newArrayList();
+        for (Record record : records.records()) {
+            offsets.add(record.offset());
+            values.add(new String(Utils.toArray(record.value()), UTF_8));
+        }
+        assertEquals(values, Lists.newArrayList("a", "b", "c", "d"));
+        assertEquals(offsets, Lists.newArrayList(
+            MessageIdUtils.getOffset(3, 0, 0),
+            MessageIdUtils.getOffset(3, 0, 1),
+            MessageIdUtils.getOffset(3, 1, 0),
+            MessageIdUtils.getOffset(3, 1, 1)));
+    }
+
+    @Test(timeOut = 20000)
+    public void testCompressionPreserved() {
+        List<Entry> entries = Lists.newArrayList(
+            newEntry(3, 0, MessageRecordUtils.recordsToByteBuf(newRecords(CompressionType.LZ4, "a", "b"), 2)));
+
+        MemoryRecords records = MessageRecordUtils.entriesToRecords(entries);
+
+        List<String> values = Lists.newArrayList();
+        for (RecordBatch batch : records.batches()) {
+            assertEquals(batch.compressionType(), CompressionType.LZ4);
+            for (Record record : batch) {
+                values.add(new String(Utils.toArray(record.value()), UTF_8));
+            }
+        }
+        assertEquals(values, Lists.newArrayList("a", "b"));
+    }
+
+    @Test(timeOut = 20000)
+    public void testPulsarEntryFormat() {
+        Header[] headers = new Header[] { new RecordHeader("header-key", "header-value".getBytes(UTF_8)) };
+        MemoryRecords produced = MemoryRecords.withRecords(CompressionType.NONE,
+            new SimpleRecord(1000L, "key".getBytes(UTF_8), "value".getBytes(UTF_8), headers),
+            new SimpleRecord(2000L, null, "value-without-key".getBytes(UTF_8)));
+        List<Entry> entries = Lists.newArrayList(newEntry(3, 5, MessageRecordUtils.recordsToByteBuf(produced, 2)));
+
+        List<Record> records = Lists.newArrayList(MessageRecordUtils.entriesToRecords(entries).records());
+
+        assertEquals(records.size(), 2);
+        assertEquals(records.get(0).offset(), MessageIdUtils.getOffset(3, 5, 0));
+        assertEquals(records.get(0).timestamp(), 1000L);
+        assertEquals(new String(Utils.toArray(records.get(0).key()), UTF_8), "key");
+        assertEquals(new String(Utils.toArray(records.get(0).value()), UTF_8), "value");
+        assertEquals(records.get(0).headers(), headers);
+        assertEquals(records.get(1).offset(), MessageIdUtils.getOffset(3, 5, 1));
+        assertEquals(records.get(1).timestamp(), 2000L);
+        assertEquals(new String(Utils.toArray(records.get(1).value()), UTF_8), "value-without-key");
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop.utils;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import com.google.common.collect.Range;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Validate TimestampIndex.
+ */
+public class TimestampIndexTest {
+
+    private ManagedLedgerImpl managedLedger;
+    private NavigableMap<Long, LedgerInfo> ledgers;
+
+    @BeforeMethod
+    public void setup() {
+        managedLedger = mock(ManagedLedgerImpl.class);
+        ledgers = new TreeMap<>();
+        // ledger 1 and 2 are closed at 2000 and 4000, ledger 3 is open.
+        ledgers.put(1L, LedgerInfo.newBuilder().setLedgerId(1).setEntries(1000).setTimestamp(2000).build());
+        ledgers.put(2L, LedgerInfo.newBuilder().setLedgerId(2).setEntries(1000).setTimestamp(4000).build());
+        ledgers.put(3L, LedgerInfo.newBuilder().setLedgerId(3).setEntries(0).build());
+
+        when(managedLedger.getLedgersInfo()).thenReturn(ledgers);
+        when(managedLedger.getFirstPosition()).thenReturn(PositionImpl.get(1, -1));
+        when(managedLedger.getNextValidPosition(any())).thenReturn(PositionImpl.get(1, 0));
+        when(managedLedger.getLastConfirmedEntry()).thenReturn(PositionImpl.get(3, 999));
+        when(managedLedger.getPreviousPosition(any())).thenAnswer(invocation -> {
+            PositionImpl position = invocation.getArgument(0);
+            return PositionImpl.get(position.getLedgerId(), position.getEntryId() - 1);
+        });
+    }
+
+    @Test(timeOut = 20000)
+    public void testSearchRangeByLedgers() {
+        TimestampIndex index = new TimestampIndex(managedLedger);
+
+        // before all ledgers closed, search in the first ledger.
+        assertEquals(index.searchRange(1000), Range.closed(PositionImpl.get(1, 0), PositionImpl.get(1, 999)));
+        // between close of ledger 1 and 2, search from the last entry of ledger 1 to the end of ledger 2.
+        assertEquals(index.searchRange(3000), Range.closed(PositionImpl.get(1, 999), PositionImpl.get(2, 999)));
+        // after ledger 2 closed, search from the last entry of ledger 2 in the open ledger.
+        assertEquals(index.searchRange(5000), Range.closed(PositionImpl.get(2, 999), PositionImpl.get(3, 999)));
+    }
+
+    @Test(timeOut = 20000)
+    public void testSearchRangeBySamples() {
+        TimestampIndex index = new TimestampIndex(managedLedger);
+        // entries of the open ledger 3, one published every 10 ms from 5000.
+        for (int i = 0; i < 1000; i++) {
+            index.add(3, i, 5000 + i * 10, 5000 + i * 10 + 1);
+        }
+
+        // samples are taken every 100 entries, so the range is narrowed to 100 entries around the timestamp.
+        Range<PositionImpl> range = index.searchRange(7555);
+        assertEquals(range, Range.closed(PositionImpl.get(3, 200), PositionImpl.get(3, 299)));
+
+        // not indexed ledgers still use ledger close time.
+        assertEquals(index.searchRange(3000), Range.closed(PositionImpl.get(1, 999), PositionImpl.get(2, 999)));
+    }
+}
@@ -149,6 +149,9 @@ public class KafkaApisTest extends KopProtocolHandlerTestBase {
             pulsar,
             (KafkaServiceConfiguration) conf,
             groupCoordinator,
+            ((KafkaProtocolHandler) handler).getFetchPurgatory(),
+            ((KafkaProtocolHandler) handler).getTopicService(),
+            ((KafkaProtocolHandler) handler).getEntryFormat(),
             false);
         ChannelHandlerContext mockCtx = mock(ChannelHandlerContext.class);
         Channel mockChannel = mock(Channel.class);
@@ -20,17 +20,29 @@ import io.netty.buffer.Unpooled;
 import io.streamnative.pulsar.handlers.kop.KafkaCommandDecoder.KafkaHeaderAndRequest;
 import io.streamnative.pulsar.handlers.kop.KafkaCommandDecoder.KafkaHeaderAndResponse;
 import io.streamnative.pulsar.handlers.kop.coordinator.group.GroupCoordinator;
+import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.common.Node;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.message.MetadataResponseData;
 import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.AbstractResponse;
 import org.apache.kafka.common.requests.ApiVersionsRequest;
 import org.apache.kafka.common.requests.ApiVersionsResponse;
+import org.apache.kafka.common.requests.MetadataRequest;
 import org.apache.kafka.common.requests.MetadataResponse.PartitionMetadata;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.ProduceResponse;
 import org.apache.kafka.common.requests.RequestHeader;
 import org.apache.kafka.common.requests.ResponseHeader;
 import org.apache.pulsar.broker.protocol.ProtocolHandler;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.SubscriptionInitialPosition;
 import org.apache.pulsar.common.naming.TopicName;
 import org.apache.pulsar.common.policies.data.ClusterData;
 import org.apache.pulsar.common.policies.data.RetentionPolicies;
@@ -41,9 +53,14 @@ import org.testng.annotations.Test;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static io.streamnative.pulsar.handlers.kop.utils.TopicNameUtils.getKafkaTopicNameFromPulsarTopicname;
 import static io.streamnative.pulsar.handlers.kop.utils.TopicNameUtils.getPartitionedTopicNameWithoutPartitions;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.apache.pulsar.common.naming.TopicName.PARTITIONED_TOPIC_SUFFIX;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
@@ -100,6 +117,9 @@ public class KafkaRequestHandlerTest extends KopProtocolHandlerTestBase {
             pulsar,
             (KafkaServiceConfiguration) conf,
             groupCoordinator,
+            ((KafkaProtocolHandler) handler1).getFetchPurgatory(),
+            ((KafkaProtocolHandler) handler1).getTopicService(),
+            ((KafkaProtocolHandler) handler1).getEntryFormat(),
             false);
     }
 
@@ -239,4 +259,75 @@ public class KafkaRequestHandlerTest extends KopProtocolHandlerTestBase {
         assertEquals(localName, getKafkaTopicNameFromPulsarTopicname(topicName));
         assertEquals(localName, getKafkaTopicNameFromPulsarTopicname(topicNamePartition));
     }
+
+    @Test(timeOut = 20000)
+    public void testProduceInOrderPerPartition() throws Exception {
+        String kafkaTopicName = "kopProduceInOrderPerPartition";
+        String pulsarTopicName = "persistent://public/default/" + kafkaTopicName;
+        admin.topics().createPartitionedTopic(pulsarTopicName, 1);
+        TopicPartition topicPartition = new TopicPartition(kafkaTopicName, 0);
+
+        @Cleanup
+        Consumer<byte[]> consumer = pulsarClient.newConsumer()
+            .topic(pulsarTopicName)
+            .subscriptionName("test-produce-order")
+            .subscriptionInitialPosition(SubscriptionInitialPosition.Earliest)
+            .subscribe();
+
+        // produce requests to the same partition are not waiting for each other to complete.
+        int numRequests = 20;
+        List<CompletableFuture<AbstractResponse>> responseFutures = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            MemoryRecords records = MemoryRecords.withRecords(CompressionType.NONE,
+                new SimpleRecord(("value-" + i).getBytes(UTF_8)));
+            ProduceRequest produceRequest = ProduceRequest.Builder.forCurrentMagic((short) 1, 5000,
+                Collections.singletonMap(topicPartition, records)).build();
+            RequestHeader header = new RequestHeader(ApiKeys.PRODUCE, produceRequest.version(), "client", i);
+            CompletableFuture<AbstractResponse> responseFuture = new CompletableFuture<>();
+            handler.handleProduceRequest(
+                new KafkaHeaderAndRequest(header, produceRequest, Unpooled.buffer(20), null), responseFuture);
+            responseFutures.add(responseFuture);
+        }
+
+        for (CompletableFuture<AbstractResponse> responseFuture : responseFutures) {
+            ProduceResponse response = (ProduceResponse) responseFuture.get();
+            assertEquals(response.responses().get(topicPartition).error, Errors.NONE);
+        }
+
+        // the records are stored in the order of the requests.
+        for (int i = 0; i < numRequests; i++) {
+            Message<byte[]> message = consumer.receive();
+            assertEquals(new String(message.getValue(), UTF_8), "value-" + i);
+        }
+    }
+
+    @Test(timeOut = 20000)
+    public void testPartitionCountInvalidatedAfterAutoCreation() throws Exception {
+        String kafkaTopicName = "kopMetadataAutoCreation";
+        String pulsarTopicName = "persistent://public/default/" + kafkaTopicName;
+        KafkaMetadataCache metadataCache = ((KafkaProtocolHandler) pulsar.getProtocolHandlers().protocol("kafka"))
+            .getTopicService().getMetadataCache();
+
+        long startMs = System.currentTimeMillis();
+        MetadataRequest metadataRequest =
+            new MetadataRequest.Builder(Collections.singletonList(kafkaTopicName), true).build();
+        RequestHeader header = new RequestHeader(ApiKeys.METADATA, metadataRequest.version(), "client", 1);
+        CompletableFuture<AbstractResponse> responseFuture = new CompletableFuture<>();
+        handler.handleTopicMetadataRequest(
+            new KafkaHeaderAndRequest(header, metadataRequest, Unpooled.buffer(20), null), responseFuture);
+        responseFuture.get();
+
+        // the partition count 0 loaded by the request is invalidated once the topic is created, well before
+        // it expires. the loader below is only called once it is invalidated.
+        int partitionCount = 0;
+        while (partitionCount == 0 && System.currentTimeMillis() - startMs < 3000) {
+            partitionCount = metadataCache.getPartitionCount(pulsarTopicName,
+                name -> CompletableFuture.completedFuture(-1)).get();
+            if (partitionCount == 0) {
+                Thread.sleep(100);
+            }
+        }
+        assertEquals(partitionCount, -1);
+        assertEquals(admin.topics().getPartitionedTopicMetadata(pulsarTopicName).partitions, 1);
+    }
 }
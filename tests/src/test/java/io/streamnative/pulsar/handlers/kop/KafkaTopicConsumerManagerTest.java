@@ -70,6 +70,9 @@ public class KafkaTopicConsumerManagerTest extends KopProtocolHandlerTestBase {
             pulsar,
             (KafkaServiceConfiguration) conf,
             groupCoordinator,
+            ((KafkaProtocolHandler) handler).getFetchPurgatory(),
+            ((KafkaProtocolHandler) handler).getTopicService(),
+            ((KafkaProtocolHandler) handler).getEntryFormat(),
             false);
 
         ChannelHandlerContext mockCtx = mock(ChannelHandlerContext.class);
@@ -79,7 +82,8 @@ public class KafkaTopicConsumerManagerTest extends KopProtocolHandlerTestBase {
 
         serviceAddress = new InetSocketAddress(pulsar.getBindAddress(), kafkaBrokerPort);
 
-        kafkaTopicManager = new KafkaTopicManager(kafkaRequestHandler);
+        kafkaTopicManager = new KafkaTopicManager(kafkaRequestHandler,
+            ((KafkaProtocolHandler) handler).getTopicService());
     }
 
     @AfterMethod
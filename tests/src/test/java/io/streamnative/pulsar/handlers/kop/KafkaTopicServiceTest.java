@@ -0,0 +1,241 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.streamnative.pulsar.handlers.kop;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import com.google.common.collect.Sets;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.streamnative.pulsar.handlers.kop.utils.EntryFormat;
+import java.net.InetSocketAddress;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.ProduceResponse.PartitionResponse;
+import org.apache.pulsar.broker.lookup.LookupResult;
+import org.apache.pulsar.broker.namespace.NamespaceService;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.common.lookup.data.LookupData;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.policies.data.RetentionPolicies;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Validate KafkaTopicService.
+ */
+@Slf4j
+public class KafkaTopicServiceTest extends KopProtocolHandlerTestBase {
+
+    private KafkaTopicService topicService;
+
+    @BeforeMethod
+    @Override
+    protected void setup() throws Exception {
+        super.internalSetup();
+        // super class already created clusters and tenants
+        admin.namespaces().createNamespace("public/default");
+        admin.namespaces().setNamespaceReplicationClusters("public/default", Sets.newHashSet("test"));
+        admin.namespaces().setRetention("public/default",
+            new RetentionPolicies(20, 100));
+
+        topicService = ((KafkaProtocolHandler) pulsar.getProtocolHandlers().protocol("kafka")).getTopicService();
+    }
+
+    @AfterMethod
+    @Override
+    protected void cleanup() throws Exception {
+        super.internalCleanup();
+    }
+
+    // a connection of a Kafka client, without a real channel.
+    private KafkaRequestHandler newRequestHandler() throws Exception {
+        KafkaProtocolHandler protocolHandler = (KafkaProtocolHandler) pulsar.getProtocolHandlers().protocol("kafka");
+        KafkaRequestHandler requestHandler = new KafkaRequestHandler(
+            pulsar,
+            (KafkaServiceConfiguration) conf,
+            protocolHandler.getGroupCoordinator(),
+            protocolHandler.getFetchPurgatory(),
+            topicService,
+            protocolHandler.getEntryFormat(),
+            false);
+        ChannelHandlerContext mockCtx = mock(ChannelHandlerContext.class);
+        Channel mockChannel = mock(Channel.class);
+        EventLoop eventLoop = mock(EventLoop.class);
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        }).when(eventLoop).execute(any(Runnable.class));
+        ChannelConfig channelConfig = mock(ChannelConfig.class);
+        doReturn(true).when(channelConfig).isAutoRead();
+        doReturn(mockChannel).when(mockCtx).channel();
+        doReturn(eventLoop).when(mockChannel).eventLoop();
+        doReturn(channelConfig).when(mockChannel).config();
+        requestHandler.ctx = mockCtx;
+        return requestHandler;
+    }
+
+    private static LookupResult ownerLookupResult(String brokerUrl) {
+        LookupData lookupData = mock(LookupData.class);
+        when(lookupData.getBrokerUrl()).thenReturn(brokerUrl);
+        LookupResult lookupResult = mock(LookupResult.class);
+        when(lookupResult.isRedirect()).thenReturn(false);
+        when(lookupResult.getLookupData()).thenReturn(lookupData);
+        return lookupResult;
+    }
+
+    @Test(timeOut = 20000)
+    public void testBundleLookupsCoalesced() throws Exception {
+        TopicName topic1 = TopicName.get("persistent://public/default/testBundleLookupsCoalesced1");
+        TopicName topic2 = TopicName.get("persistent://public/default/testBundleLookupsCoalesced2");
+        NamespaceService namespaceService = mock(NamespaceService.class);
+        NamespaceBundle bundle = mock(NamespaceBundle.class);
+        when(namespaceService.getBundleAsync(any(TopicName.class)))
+            .thenReturn(CompletableFuture.completedFuture(bundle));
+        CompletableFuture<Optional<LookupResult>> lookup = new CompletableFuture<>();
+        when(namespaceService.getBrokerServiceUrlAsync(any(TopicName.class), eq(false))).thenReturn(lookup);
+
+        // topics of the same bundle share the lookup in flight.
+        CompletableFuture<InetSocketAddress> owner1 = topicService.lookupBundleOwner(namespaceService, topic1);
+        CompletableFuture<InetSocketAddress> owner2 = topicService.lookupBundleOwner(namespaceService, topic2);
+        verify(namespaceService, times(1)).getBrokerServiceUrlAsync(any(TopicName.class), eq(false));
+        assertFalse(owner1.isDone());
+
+        lookup.complete(Optional.of(ownerLookupResult("pulsar://broker1:6650")));
+        assertEquals(owner1.get(), InetSocketAddress.createUnresolved("broker1", 6650));
+        assertEquals(owner2.get(), InetSocketAddress.createUnresolved("broker1", 6650));
+
+        // a completed lookup is not shared any more, the lookup cache keeps its result.
+        when(namespaceService.getBrokerServiceUrlAsync(any(TopicName.class), eq(false))).thenReturn(
+            CompletableFuture.completedFuture(Optional.of(ownerLookupResult("pulsar://broker2:6650"))));
+        assertEquals(topicService.lookupBundleOwner(namespaceService, topic1).get(),
+            InetSocketAddress.createUnresolved("broker2", 6650));
+        verify(namespaceService, times(2)).getBrokerServiceUrlAsync(any(TopicName.class), eq(false));
+    }
+
+    @Test(timeOut = 20000)
+    public void testRedirectLookupByClient() throws Exception {
+        TopicName topic = TopicName.get("persistent://public/default/testRedirectLookupByClient");
+        NamespaceService namespaceService = mock(NamespaceService.class);
+        NamespaceBundle bundle = mock(NamespaceBundle.class);
+        when(namespaceService.getBundleAsync(any(TopicName.class)))
+            .thenReturn(CompletableFuture.completedFuture(bundle));
+        LookupResult redirect = mock(LookupResult.class);
+        when(redirect.isRedirect()).thenReturn(true);
+        when(namespaceService.getBrokerServiceUrlAsync(any(TopicName.class), eq(false)))
+            .thenReturn(CompletableFuture.completedFuture(Optional.of(redirect)));
+
+        // the bundle is assigned by another broker, so the lookup falls back to the pulsar client, which
+        // follows the redirects. there is only this broker in the test.
+        InetSocketAddress owner = topicService.lookupBundleOwner(namespaceService, topic).get();
+        assertEquals(owner.getPort(), brokerPort);
+    }
+
+    @Test(timeOut = 20000)
+    public void testTopicClosedKeepsConnection() throws Exception {
+        String topicName = "persistent://public/default/testTopicClosedKeepsConnection";
+        admin.lookups().lookupTopic(topicName);
+        KafkaRequestHandler requestHandler = newRequestHandler();
+        PersistentTopic persistentTopic = requestHandler.getTopicManager().getTopic(topicName).get();
+        assertTrue(topicService.topicExists(topicName));
+
+        // the bundle unload closes the internal producer of the topic.
+        admin.topics().unload(topicName);
+        assertFalse(topicService.topicExists(topicName));
+        verify(requestHandler.ctx, never()).close();
+
+        // a produce still on the closed topic asks the client to lookup the partition again.
+        CompletableFuture<PartitionResponse> response = new CompletableFuture<>();
+        MessagePublishContext.publishMessages(
+            MemoryRecords.withRecords(CompressionType.NONE, new SimpleRecord("value".getBytes())),
+            persistentTopic, topicService.getLogOffsetTracker(persistentTopic), response, null, EntryFormat.PULSAR);
+        assertEquals(response.get().error, Errors.NOT_LEADER_FOR_PARTITION);
+
+        // the topic is referenced again once used later, from its new owner.
+        assertNotNull(requestHandler.getTopicManager().getTopic(topicName).get());
+        assertTrue(topicService.topicExists(topicName));
+        verify(requestHandler.ctx, never()).close();
+    }
+
+    @Test(timeOut = 20000)
+    public void testThrottlePausesPublishersOnly() throws Exception {
+        String topicName = "persistent://public/default/testThrottlePausesPublishersOnly";
+        admin.lookups().lookupTopic(topicName);
+        KafkaRequestHandler publisher = newRequestHandler();
+        KafkaRequestHandler fetcher = newRequestHandler();
+        assertNotNull(publisher.getTopicManager().getTopicForPublish(topicName).get());
+        assertNotNull(fetcher.getTopicManager().getTopicConsumerManager(topicName).get());
+        ChannelConfig publisherConfig = publisher.ctx.channel().config();
+        ChannelConfig fetcherConfig = fetcher.ctx.channel().config();
+
+        // e.g. the publish rate limit of the topic is reached.
+        topicService.setTopicThrottled(topicName, true);
+        verify(publisherConfig, times(1)).setAutoRead(false);
+        verify(fetcherConfig, never()).setAutoRead(anyBoolean());
+
+        // a connection that publishes to the throttled topic later is paused as well.
+        KafkaRequestHandler laterPublisher = newRequestHandler();
+        assertNotNull(laterPublisher.getTopicManager().getTopicForPublish(topicName).get());
+        verify(laterPublisher.ctx.channel().config(), times(1)).setAutoRead(false);
+
+        // once resumed, the fetch-only connection has never been paused.
+        doReturn(false).when(publisherConfig).isAutoRead();
+        topicService.setTopicThrottled(topicName, false);
+        verify(publisherConfig, times(1)).setAutoRead(true);
+        verify(fetcherConfig, never()).setAutoRead(anyBoolean());
+    }
+
+    @Test(timeOut = 20000)
+    public void testCreatePartitionedTopicChecks() throws Exception {
+        // no partitioned topic metadata is written under a namespace that does not exist.
+        TopicName missingNamespaceTopic = TopicName.get("persistent://public/missing/testCreatePartitionedTopic");
+        CompletableFuture<Void> future = topicService.createPartitionedTopic(missingNamespaceTopic, 1);
+        assertTrue(future.handle((ignored, cause) -> cause != null).get());
+        assertFalse(admin.namespaces().getNamespaces("public").contains("public/missing"));
+
+        // a non-partitioned topic with the same name is kept.
+        String topicName = "persistent://public/default/testCreatePartitionedTopicChecks";
+        admin.topics().createNonPartitionedTopic(topicName);
+        future = topicService.createPartitionedTopic(TopicName.get(topicName), 1);
+        assertTrue(future.handle((ignored, cause) -> cause != null).get());
+        assertEquals(admin.topics().getPartitionedTopicMetadata(topicName).partitions, 0);
+
+        // a new topic is created with its partitions.
+        String newTopicName = "persistent://public/default/testCreatePartitionedTopicChecksNew";
+        topicService.createPartitionedTopic(TopicName.get(newTopicName), 1).get();
+        assertEquals(admin.topics().getPartitionedTopicMetadata(newTopicName).partitions, 1);
+    }
+}
@@ -57,7 +57,6 @@ import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.ReaderBuilder;
 import org.apache.pulsar.client.api.Schema;
 import org.apache.pulsar.client.api.SubscriptionInitialPosition;
-import org.apache.pulsar.client.impl.PulsarClientImpl;
 import org.apache.pulsar.common.policies.data.ClusterData;
 import org.apache.pulsar.common.policies.data.RetentionPolicies;
 import org.apache.pulsar.common.policies.data.TenantInfo;
@@ -97,22 +96,22 @@ public class GroupCoordinatorTest extends KopProtocolHandlerTestBase {
     private Map<String, byte[]> protocols;
 
     static class MockOffsetAcker extends OffsetAcker {
-        public MockOffsetAcker(PulsarClientImpl pulsarClient) {
-            super(pulsarClient);
+        public MockOffsetAcker() {
+            super(null, 0);
         }
 
         @Override
-        public void addOffsetsTracker(String groupId, byte[] assignment) {
+        public void ackOffsets(String groupId, Map<TopicPartition, OffsetAndMetadata> offsetMetadata) {
             // non op
         }
 
         @Override
-        public void ackOffsets(String groupId, Map<TopicPartition, OffsetAndMetadata> offsetMetadata) {
+        public void close(Set<String> groupIds) {
             // non op
         }
 
         @Override
-        public void close(Set<String> groupIds) {
+        public void removeOffsets(String groupId, Set<TopicPartition> partitions) {
             // non op
         }
 
@@ -214,7 +213,7 @@ public class GroupCoordinatorTest extends KopProtocolHandlerTestBase {
             heartbeatPurgatory,
             joinPurgatory,
             timer.time(),
-            new MockOffsetAcker((PulsarClientImpl) pulsarClient)
+            new MockOffsetAcker()
         );
 
         // start the group coordinator
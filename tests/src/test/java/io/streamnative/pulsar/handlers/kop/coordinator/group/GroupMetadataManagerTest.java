@@ -23,10 +23,12 @@ import static io.streamnative.pulsar.handlers.kop.coordinator.group.GroupState.S
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.spy;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
@@ -51,11 +53,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import lombok.Cleanup;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.common.util.OrderedScheduler;
@@ -83,9 +89,11 @@ import org.apache.pulsar.client.api.ProducerBuilder;
 import org.apache.pulsar.client.api.ReaderBuilder;
 import org.apache.pulsar.client.api.Schema;
 import org.apache.pulsar.client.api.SubscriptionInitialPosition;
+import org.apache.pulsar.client.impl.MessageIdImpl;
 import org.apache.pulsar.common.policies.data.ClusterData;
 import org.apache.pulsar.common.policies.data.RetentionPolicies;
 import org.apache.pulsar.common.policies.data.TenantInfo;
+import org.apache.pulsar.common.util.FutureUtil;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -1669,10 +1677,14 @@ public class GroupMetadataManagerTest extends KopProtocolHandlerTestBase {
         Errors maybeError = commitErrors.get(topicPartition1);
         assertEquals(Errors.NONE, maybeError);
 
+        Map<String, Set<TopicPartition>> removedOffsets = new ConcurrentHashMap<>();
+        groupMetadataManager.setOffsetsRemovedListener(removedOffsets::put);
         groupMetadataManager.cleanupGroupMetadata();
 
         assertEquals(Optional.of(group), groupMetadataManager.getGroup(groupId));
         assertEquals(Optional.empty(), group.offset(topicPartition1));
+        // the subscription of the expired offset is to be deleted.
+        assertEquals(removedOffsets, ImmutableMap.of(groupId, Collections.singleton(topicPartition1)));
         assertEquals(Optional.of(offset), group.offset(topicPartition2).map(OffsetAndMetadata::offset));
 
         Map<TopicPartition, PartitionData> cachedOffsets = groupMetadataManager.getOffsets(
@@ -1931,4 +1943,110 @@ public class GroupMetadataManagerTest extends KopProtocolHandlerTestBase {
             OffsetFetchResponse.INVALID_OFFSET,
             cachedOffsets.get(topicPartition2).offset);
     }
+
+    private static OrderedScheduler newPartitionScheduler() {
+        return OrderedScheduler.newSchedulerBuilder()
+            .name("test-partition-scheduler")
+            .numThreads(4)
+            .build();
+    }
+
+    @Test(timeOut = 20000)
+    public void testPartitionWorkRunsInOrder() throws Exception {
+        @Cleanup("shutdown")
+        OrderedScheduler partitionScheduler = newPartitionScheduler();
+        GroupMetadataManager manager = new GroupMetadataManager(
+            offsetConfig, producer, consumer, partitionScheduler, new MockTime());
+        assertSame(manager.partitionExecutor(groupPartitionId), manager.partitionExecutor(groupPartitionId));
+
+        // the work queued while the partition is busy runs in the order it is submitted.
+        CompletableFuture<Void> busy = new CompletableFuture<>();
+        manager.partitionExecutor(groupPartitionId).execute(busy::join);
+        List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int index = i;
+            futures.add(CompletableFuture.runAsync(() -> {
+                threads.add(Thread.currentThread());
+                executed.add(index);
+            }, manager.partitionExecutor(groupPartitionId)));
+        }
+        assertTrue(executed.isEmpty());
+
+        busy.complete(null);
+        FutureUtil.waitForAll(futures).get();
+        assertEquals(executed, IntStream.range(0, 10).boxed().collect(Collectors.toList()));
+        assertEquals(threads.size(), 1);
+    }
+
+    @Test(timeOut = 20000)
+    public void testPartitionsWorkInParallel() throws Exception {
+        @Cleanup("shutdown")
+        OrderedScheduler partitionScheduler = newPartitionScheduler();
+        GroupMetadataManager manager = new GroupMetadataManager(
+            offsetConfig, producer, consumer, partitionScheduler, new MockTime());
+        assertNotSame(manager.partitionExecutor(0), manager.partitionExecutor(1));
+
+        // the work on a partition is not blocked by the work on another partition.
+        CompletableFuture<Void> busy = new CompletableFuture<>();
+        CompletableFuture<Void> busyWork = CompletableFuture.runAsync(busy::join, manager.partitionExecutor(0));
+        CompletableFuture.runAsync(() -> { }, manager.partitionExecutor(1)).get();
+        assertFalse(busyWork.isDone());
+
+        busy.complete(null);
+        busyWork.get();
+    }
+
+    // prepare the transactional offset commit of the producer, without writing the offsets topic.
+    private static void storeTxnOffsets(GroupMetadataManager manager, GroupMetadata group,
+                                        TopicPartition topicPartition, long offset,
+                                        long producerId) throws Exception {
+        Map<TopicPartition, Errors> commitErrors = manager.storeOffsets(
+            group, "", ImmutableMap.of(topicPartition, OffsetAndMetadata.apply(offset)), producerId, (short) 0
+        ).get();
+        assertEquals(commitErrors.get(topicPartition), Errors.NONE);
+        assertTrue(group.hasPendingOffsetCommitsFromProducer(producerId));
+    }
+
+    @Test(timeOut = 20000)
+    public void testTxnCompletionSplitByPartition() throws Exception {
+        @Cleanup("shutdown")
+        OrderedScheduler partitionScheduler = newPartitionScheduler();
+        GroupMetadataManager manager = spy(new GroupMetadataManager(
+            offsetConfig, producer, consumer, partitionScheduler, new MockTime(),
+            group -> group.equals("group-0") ? 0 : 1));
+        doReturn(CompletableFuture.completedFuture(new MessageIdImpl(1, 0, -1)))
+            .when(manager).storeOffsetMessage(any(String.class), any(byte[].class), any(ByteBuffer.class), anyLong());
+        TopicPartition topicPartition = new TopicPartition("foo", 0);
+        long committedProducerId = 232L;
+        long abortedProducerId = 233L;
+
+        GroupMetadata group0 = manager.addGroup(new GroupMetadata("group-0", Empty));
+        GroupMetadata group1 = manager.addGroup(new GroupMetadata("group-1", Empty));
+        storeTxnOffsets(manager, group0, topicPartition, 37L, committedProducerId);
+        storeTxnOffsets(manager, group1, topicPartition, 38L, committedProducerId);
+        storeTxnOffsets(manager, group1, topicPartition, 39L, abortedProducerId);
+
+        // the markers of partition 1 are applied while partition 0 is busy.
+        CompletableFuture<Void> busy = new CompletableFuture<>();
+        manager.partitionExecutor(0).execute(busy::join);
+        Future<?> committed = manager.scheduleHandleTxnCompletion(
+            committedProducerId, Sets.newHashSet(0, 1), true);
+        CompletableFuture.runAsync(() -> { }, manager.partitionExecutor(1)).get();
+        assertEquals(group1.offset(topicPartition), Optional.of(OffsetAndMetadata.apply(38L)));
+        assertFalse(group1.hasPendingOffsetCommitsFromProducer(committedProducerId));
+        assertTrue(group0.hasPendingOffsetCommitsFromProducer(committedProducerId));
+        assertTrue(group0.allOffsets().isEmpty());
+
+        busy.complete(null);
+        committed.get();
+        assertEquals(group0.offset(topicPartition), Optional.of(OffsetAndMetadata.apply(37L)));
+        assertFalse(group0.hasPendingOffsetCommitsFromProducer(committedProducerId));
+
+        // the aborted commit is dropped, the committed offset is kept.
+        manager.scheduleHandleTxnCompletion(abortedProducerId, Sets.newHashSet(0, 1), false).get();
+        assertFalse(group1.hasPendingOffsetCommitsFromProducer(abortedProducerId));
+        assertEquals(group1.offset(topicPartition), Optional.of(OffsetAndMetadata.apply(38L)));
+    }
 }